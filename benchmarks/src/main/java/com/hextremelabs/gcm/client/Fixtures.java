@@ -0,0 +1,122 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hextremelabs.gcm.client;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Test data shared by the benchmarks.
+ */
+final class Fixtures {
+
+  private Fixtures() {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Creates a message with a notification and a data payload of roughly the given size in bytes.
+   */
+  static Message message(int payloadSize) {
+    StringBuilder value = new StringBuilder(payloadSize);
+    for (int i = 0; i < payloadSize; i++) {
+      value.append((char) ('a' + i % 26));
+    }
+    return new Message.Builder()
+        .priority(Message.Priority.HIGH)
+        .timeToLive(3600)
+        .collapseKey("campaign")
+        .addData("message", value.toString())
+        .notification(new Notification.Builder("ic_notification")
+            .title("Hello world!")
+            .body("Here is a more detailed description")
+            .build())
+        .build();
+  }
+
+  /**
+   * Creates registration ids shaped like real ones, about 150 characters each.
+   */
+  static List<String> registrationIds(int count) {
+    List<String> ids = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      ids.add(String.format("%010d:APA91bHun4MxP5egoKMwt2KZFBaFUH-1RYqx8A%0128d", i, i));
+    }
+    return ids;
+  }
+
+  /**
+   * Creates results mixing successes, canonical ids, errors and group results with failed registration ids.
+   */
+  static List<GcmResult> results(int count) {
+    List<GcmResult> results = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      GcmResult.Builder result = new GcmResult.Builder();
+      switch (i % 20) {
+        case 0:
+          result.errorCode(Constants.ERROR_NOT_REGISTERED);
+          break;
+        case 1:
+          result.messageId("0:1456" + i).canonicalRegistrationId(String.format("%0152d", i));
+          break;
+        case 2:
+          result.success(1).failure(2).failedRegistrationIds(Arrays.asList("failed-a-" + i, "failed-b-" + i));
+          break;
+        default:
+          result.messageId("0:1456" + i);
+      }
+      results.add(result.build());
+    }
+    return results;
+  }
+
+  /**
+   * Creates a multicast response body in the layout GCM sends, with results mixed like those of {@link #results(int)}.
+   */
+  static byte[] multicastResponse(int count) {
+    StringBuilder json = new StringBuilder(count * 48);
+    int success = 0;
+    int canonicalIds = 0;
+    json.append("{\"multicast_id\":216,\"results\":[");
+    for (int i = 0; i < count; i++) {
+      if (i > 0) {
+        json.append(',');
+      }
+      switch (i % 20) {
+        case 0:
+          json.append("{\"error\":\"").append(Constants.ERROR_NOT_REGISTERED).append("\"}");
+          break;
+        case 1:
+          json.append("{\"message_id\":\"0:1456").append(i).append("\",\"registration_id\":\"")
+              .append(String.format("%0152d", i)).append("\"}");
+          success++;
+          canonicalIds++;
+          break;
+        case 2:
+          json.append("{\"error\":\"").append(Constants.ERROR_UNAVAILABLE).append("\"}");
+          break;
+        default:
+          json.append("{\"message_id\":\"0:1456").append(i).append("\"}");
+          success++;
+      }
+    }
+    json.append("],\"success\":").append(success).append(",\"failure\":").append(count - success)
+        .append(",\"canonical_ids\":").append(canonicalIds).append('}');
+    return json.toString().getBytes(StandardCharsets.UTF_8);
+  }
+}
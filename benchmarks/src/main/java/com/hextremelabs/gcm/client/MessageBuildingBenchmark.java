@@ -0,0 +1,76 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hextremelabs.gcm.client;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures building a {@link Message} and its {@link Notification}, which also encodes the message's fields once for
+ * every request it is sent in.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageBuildingBenchmark {
+
+  @Param({"64", "4096"})
+  private int payloadSize;
+
+  private String value;
+
+  @Setup
+  public void setUp() {
+    StringBuilder builder = new StringBuilder(payloadSize);
+    for (int i = 0; i < payloadSize; i++) {
+      builder.append((char) ('a' + i % 26));
+    }
+    value = builder.toString();
+  }
+
+  @Benchmark
+  public Notification notification() {
+    return new Notification.Builder("ic_notification")
+        .title("Hello world!")
+        .body("Here is a more detailed description")
+        .build();
+  }
+
+  @Benchmark
+  public Message message() {
+    return new Message.Builder()
+        .priority(Message.Priority.HIGH)
+        .timeToLive(3600)
+        .collapseKey("campaign")
+        .addData("message", value)
+        .notification(notification())
+        .build();
+  }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hextremelabs.gcm.client;
+
+import org.json.simple.JSONValue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares encoding a multicast request with {@link JsonRequestWriter} against the former path, which built a
+ * {@link HashMap}, turned it into a String with {@link JSONValue#toJSONString(Object)} and then into UTF-8 bytes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestSerializationBenchmark {
+
+  @Param({"1", "1000"})
+  private int recipients;
+
+  @Param({"64", "4096"})
+  private int payloadSize;
+
+  private Message message;
+  private List<String> registrationIds;
+  private JsonRequestWriter writer;
+
+  @Setup
+  public void setUp() {
+    message = Fixtures.message(payloadSize);
+    registrationIds = Fixtures.registrationIds(recipients);
+    writer = new JsonRequestWriter();
+  }
+
+  @Benchmark
+  public byte[] mapAndJsonValue() {
+    Map<Object, Object> jsonRequest = new HashMap<>();
+    messageToMap(message, jsonRequest);
+    jsonRequest.put(Constants.JSON_REGISTRATION_IDS, registrationIds);
+    return JSONValue.toJSONString(jsonRequest).getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Benchmark
+  public int requestWriter() {
+    return writer.writeRequest(message, registrationIds).size();
+  }
+
+  @Benchmark
+  public int requestWriterUnpooled() {
+    return new JsonRequestWriter().writeRequest(message, registrationIds).size();
+  }
+
+  /**
+   * Copy of the map building code that {@link JsonRequestWriter} replaced in {@link Sender}.
+   */
+  private static void messageToMap(Message message, Map<Object, Object> mapRequest) {
+    setJsonField(mapRequest, Constants.PARAM_PRIORITY, message.getPriority());
+    setJsonField(mapRequest, Constants.PARAM_CONTENT_AVAILABLE, message.getContentAvailable());
+    setJsonField(mapRequest, Constants.PARAM_TIME_TO_LIVE, message.getTimeToLive());
+    setJsonField(mapRequest, Constants.PARAM_COLLAPSE_KEY, message.getCollapseKey());
+    setJsonField(mapRequest, Constants.PARAM_RESTRICTED_PACKAGE_NAME, message.getRestrictedPackageName());
+    setJsonField(mapRequest, Constants.PARAM_DELAY_WHILE_IDLE, message.isDelayWhileIdle());
+    setJsonField(mapRequest, Constants.PARAM_DRY_RUN, message.isDryRun());
+
+    Map<String, String> payload = message.getData();
+    if (!payload.isEmpty()) {
+      mapRequest.put(Constants.JSON_PAYLOAD, payload);
+    }
+
+    if (message.getNotification() != null) {
+      Notification notification = message.getNotification();
+      Map<Object, Object> nMap = new HashMap<>();
+      if (notification.getBadge() != null) {
+        setJsonField(nMap, Constants.JSON_NOTIFICATION_BADGE, notification.getBadge().toString());
+      }
+      setJsonField(nMap, Constants.JSON_NOTIFICATION_BODY, notification.getBody());
+      setJsonField(nMap, Constants.JSON_NOTIFICATION_BODY_LOC_ARGS, notification.getBodyLocArgs());
+      setJsonField(nMap, Constants.JSON_NOTIFICATION_BODY_LOC_KEY, notification.getBodyLocKey());
+      setJsonField(nMap, Constants.JSON_NOTIFICATION_CLICK_ACTION, notification.getClickAction());
+      setJsonField(nMap, Constants.JSON_NOTIFICATION_COLOR, notification.getColor());
+      setJsonField(nMap, Constants.JSON_NOTIFICATION_ICON, notification.getIcon());
+      setJsonField(nMap, Constants.JSON_NOTIFICATION_SOUND, notification.getSound());
+      setJsonField(nMap, Constants.JSON_NOTIFICATION_TAG, notification.getTag());
+      setJsonField(nMap, Constants.JSON_NOTIFICATION_TITLE, notification.getTitle());
+      setJsonField(nMap, Constants.JSON_NOTIFICATION_TITLE_LOC_ARGS, notification.getTitleLocArgs());
+      setJsonField(nMap, Constants.JSON_NOTIFICATION_TITLE_LOC_KEY, notification.getTitleLocKey());
+      mapRequest.put(Constants.JSON_NOTIFICATION, nMap);
+    }
+  }
+
+  private static void setJsonField(Map<Object, Object> json, String field, Object value) {
+    if (value != null) {
+      json.put(field, value);
+    }
+  }
+}
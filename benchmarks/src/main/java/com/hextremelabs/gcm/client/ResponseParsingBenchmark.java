@@ -0,0 +1,96 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hextremelabs.gcm.client;
+
+import org.json.simple.JSONValue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares decoding GCM responses with the streaming {@link GcmResponseParser} against the former path, which read the
+ * whole body with {@link Sender#getString(java.io.InputStream)} and parsed it with {@link JSONValue}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseParsingBenchmark {
+
+  @Param({"1", "1000"})
+  private int results;
+
+  private byte[] response;
+  private byte[] singleResponse;
+  private String to;
+
+  @Setup
+  public void setUp() {
+    response = Fixtures.multicastResponse(results);
+    singleResponse = Fixtures.multicastResponse(1);
+    to = Fixtures.registrationIds(1).get(0);
+  }
+
+  @Benchmark
+  public String getString() throws IOException {
+    return Sender.getString(new ByteArrayInputStream(response));
+  }
+
+  @Benchmark
+  public Object getStringAndJsonValue() throws IOException {
+    return JSONValue.parse(Sender.getString(new ByteArrayInputStream(response)));
+  }
+
+  /**
+   * Decodes the response of a request to a single registration id, which does not depend on {@literal results}.
+   */
+  @Benchmark
+  public GcmResult parseSingle() throws IOException {
+    return GcmResponseParser.parseSingle(new ByteArrayInputStream(singleResponse), to);
+  }
+
+  @Benchmark
+  public void parseMulticast(Blackhole blackhole) throws IOException {
+    GcmResponseParser.parseMulticast(new ByteArrayInputStream(response), new MulticastResponseHandler() {
+      @Override
+      public void result(int index, String messageId, String canonicalRegistrationId, String error) {
+        blackhole.consume(messageId);
+        blackhole.consume(canonicalRegistrationId);
+        blackhole.consume(error);
+      }
+
+      @Override
+      public void summary(int success, int failure, int canonicalIds, long multicastId, int results) {
+        blackhole.consume(success);
+      }
+    });
+  }
+}
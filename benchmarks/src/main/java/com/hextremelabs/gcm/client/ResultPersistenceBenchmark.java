@@ -0,0 +1,111 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hextremelabs.gcm.client;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how many {@link GcmResult} rows per second are written to an embedded H2 database the way
+ * {@link Sender#processQueue()} writes them.
+ *
+ * <p>
+ * {@literal identity} maps ids to an identity column and only flushes, as before; {@literal sequence} uses the pooled
+ * sequence ids of the library and also clears the persistence context after each flush. Both persistence units enable
+ * JDBC batching, which only the latter can use.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@OperationsPerInvocation(ResultPersistenceBenchmark.ROWS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResultPersistenceBenchmark {
+
+  static final int ROWS = 1000;
+
+  private static final int FLUSH_SIZE = 50;
+
+  @Param({"identity", "sequence"})
+  private String strategy;
+
+  private EntityManagerFactory emf;
+  private List<GcmResult> results;
+
+  @Setup(Level.Trial)
+  public void setUpTrial() {
+    emf = Persistence.createEntityManagerFactory("gcm-" + strategy);
+  }
+
+  @Setup(Level.Invocation)
+  public void setUpInvocation() {
+    results = Fixtures.results(ROWS);
+  }
+
+  @TearDown(Level.Iteration)
+  public void tearDownIteration() {
+    EntityManager em = emf.createEntityManager();
+    em.getTransaction().begin();
+    em.createNativeQuery("DELETE FROM gcm_registration_id").executeUpdate();
+    em.createNativeQuery("DELETE FROM gcm_result").executeUpdate();
+    em.getTransaction().commit();
+    em.close();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDownTrial() {
+    emf.close();
+  }
+
+  @Benchmark
+  public int persist() {
+    boolean clear = "sequence".equals(strategy);
+    EntityManager em = emf.createEntityManager();
+    em.getTransaction().begin();
+    int count = 0;
+    for (GcmResult result : results) {
+      em.persist(result);
+      if (++count % FLUSH_SIZE == 0) {
+        em.flush();
+        if (clear) {
+          em.clear();
+        }
+      }
+    }
+    em.getTransaction().commit();
+    em.close();
+    return count;
+  }
+}
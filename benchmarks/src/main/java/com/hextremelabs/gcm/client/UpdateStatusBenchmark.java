@@ -0,0 +1,66 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hextremelabs.gcm.client;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how {@link Sender} records the results of a full multicast and picks the registration ids to retry.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UpdateStatusBenchmark {
+
+  private static final int RESULTS = 1000;
+
+  private Sender sender;
+  private List<String> registrationIds;
+  private MulticastResult multicastResult;
+
+  @Setup
+  public void setUp() {
+    sender = new Sender();
+    registrationIds = Fixtures.registrationIds(RESULTS);
+    List<GcmResult> results = Fixtures.results(RESULTS);
+    MulticastResult.Builder builder = new MulticastResult.Builder(0, 0, 0, 216);
+    results.forEach(builder::addResult);
+    multicastResult = builder.build();
+  }
+
+  @Benchmark
+  public List<String> updateStatus() {
+    Map<String, GcmResult> allResults = new HashMap<>();
+    return sender.updateStatus(registrationIds, allResults, multicastResult);
+  }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hextremelabs.gcm.client.mock;
+
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.EntityDetails;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpException;
+import org.apache.hc.core5.http.HttpRequest;
+import org.apache.hc.core5.http.Message;
+import org.apache.hc.core5.http.URIScheme;
+import org.apache.hc.core5.http.impl.bootstrap.HttpAsyncServer;
+import org.apache.hc.core5.http.nio.AsyncRequestConsumer;
+import org.apache.hc.core5.http.nio.AsyncResponseProducer;
+import org.apache.hc.core5.http.nio.AsyncServerRequestHandler;
+import org.apache.hc.core5.http.nio.entity.AsyncEntityProducers;
+import org.apache.hc.core5.http.nio.entity.BasicAsyncEntityConsumer;
+import org.apache.hc.core5.http.nio.support.AsyncResponseBuilder;
+import org.apache.hc.core5.http.nio.support.BasicRequestConsumer;
+import org.apache.hc.core5.http.protocol.HttpContext;
+import org.apache.hc.core5.http2.H2Error;
+import org.apache.hc.core5.http2.H2StreamResetException;
+import org.apache.hc.core5.http2.HttpVersionPolicy;
+import org.apache.hc.core5.http2.impl.nio.bootstrap.H2ServerBootstrap;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.reactor.IOReactorConfig;
+import org.apache.hc.core5.util.Timeout;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cleartext HTTP/2 front end of {@link MockGcmServer}, built on HttpCore 5.
+ */
+final class H2cServer implements AsyncServerRequestHandler<Message<HttpRequest, byte[]>> {
+
+  private static final byte[] EMPTY = new byte[0];
+
+  private final MockGcmServer mock;
+  private final ScheduledExecutorService scheduler;
+  private final HttpAsyncServer server;
+  private final InetSocketAddress address;
+
+  H2cServer(MockGcmServer mock, ScheduledExecutorService scheduler, InetSocketAddress address) throws IOException {
+    this.mock = mock;
+    this.scheduler = scheduler;
+    server = H2ServerBootstrap.bootstrap()
+        .setVersionPolicy(HttpVersionPolicy.FORCE_HTTP_2)
+        .setIOReactorConfig(IOReactorConfig.custom()
+            .setSoTimeout(Timeout.ofSeconds(30))
+            .build())
+        .register(MockGcmServer.SEND_PATH, this)
+        .create();
+    server.start();
+    try {
+      this.address = (InetSocketAddress) server.listen(address, URIScheme.HTTP).get().getAddress();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      server.close(CloseMode.IMMEDIATE);
+      throw new IOException("Interrupted while binding " + address, e);
+    } catch (ExecutionException e) {
+      server.close(CloseMode.IMMEDIATE);
+      throw new IOException("Could not bind " + address, e.getCause());
+    }
+  }
+
+  InetSocketAddress getAddress() {
+    return address;
+  }
+
+  void close() {
+    server.close(CloseMode.IMMEDIATE);
+  }
+
+  @Override
+  public AsyncRequestConsumer<Message<HttpRequest, byte[]>> prepare(HttpRequest request, EntityDetails entityDetails,
+      HttpContext context) {
+    return new BasicRequestConsumer<>(new BasicAsyncEntityConsumer());
+  }
+
+  @Override
+  public void handle(Message<HttpRequest, byte[]> request, ResponseTrigger trigger, HttpContext context)
+      throws IOException {
+    Random random = ThreadLocalRandom.current();
+    Header authorization = request.getHead().getFirstHeader("Authorization");
+    byte[] body = request.getBody() == null ? EMPTY : request.getBody();
+    MockGcmServer.Reply reply = mock.reply(request.getHead().getMethod(),
+        authorization == null ? null : authorization.getValue(), body, random);
+    if (reply == MockGcmServer.Reply.RESET) {
+      throw new H2StreamResetException(H2Error.INTERNAL_ERROR, "Injected stream reset");
+    }
+
+    AsyncResponseBuilder response = AsyncResponseBuilder.create(reply.status);
+    reply.headers.forEach((name, value) -> {
+      // the entity producer sets the content type
+      if (!"Content-Type".equals(name)) {
+        response.setHeader(name, value);
+      }
+    });
+    AsyncResponseProducer producer = response
+        .setEntity(AsyncEntityProducers.create(reply.body.getBytes(StandardCharsets.UTF_8),
+            reply.status == 200 ? ContentType.APPLICATION_JSON : ContentType.TEXT_PLAIN))
+        .build();
+    scheduler.schedule(() -> {
+      try {
+        trigger.submitResponse(producer, context);
+      } catch (HttpException | IOException e) {
+        // the client went away while the answer was delayed
+      }
+    }, Math.max(mock.nextLatency(random), 0), TimeUnit.MILLISECONDS);
+  }
+}
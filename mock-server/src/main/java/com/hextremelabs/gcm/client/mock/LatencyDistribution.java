@@ -0,0 +1,65 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hextremelabs.gcm.client.mock;
+
+import java.util.Random;
+
+/**
+ * Distribution of the time {@link MockGcmServer} waits before answering a request.
+ */
+@FunctionalInterface
+public interface LatencyDistribution {
+
+  /**
+   * Draws the next latency.
+   *
+   * @return latency in milliseconds, 0 or less to answer at once.
+   */
+  long nextMillis(Random random);
+
+  static LatencyDistribution none() {
+    return random -> 0;
+  }
+
+  static LatencyDistribution fixed(long millis) {
+    return random -> millis;
+  }
+
+  /**
+   * Latencies spread evenly between min and max milliseconds.
+   */
+  static LatencyDistribution uniform(long min, long max) {
+    if (max < min) {
+      throw new IllegalArgumentException("max cannot be less than min");
+    }
+    return random -> min + (long) (random.nextDouble() * (max - min));
+  }
+
+  /**
+   * Latencies with the given mean, in milliseconds, mostly short with a few long ones.
+   */
+  static LatencyDistribution exponential(double mean) {
+    return random -> (long) (-mean * Math.log(1 - random.nextDouble()));
+  }
+
+  /**
+   * Latencies around a median, in milliseconds, with a long tail that grows with sigma; the usual shape of network
+   * latencies.
+   */
+  static LatencyDistribution logNormal(double median, double sigma) {
+    return random -> (long) (median * Math.exp(sigma * random.nextGaussian()));
+  }
+}
@@ -0,0 +1,537 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hextremelabs.gcm.client.mock;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hextremelabs.gcm.client.Constants.ERROR_NOT_REGISTERED;
+import static com.hextremelabs.gcm.client.Constants.ERROR_UNAVAILABLE;
+import static com.hextremelabs.gcm.client.Constants.JSON_CANONICAL_IDS;
+import static com.hextremelabs.gcm.client.Constants.JSON_ERROR;
+import static com.hextremelabs.gcm.client.Constants.JSON_FAILED_REGISTRATION_IDS;
+import static com.hextremelabs.gcm.client.Constants.JSON_FAILURE;
+import static com.hextremelabs.gcm.client.Constants.JSON_MESSAGE_ID;
+import static com.hextremelabs.gcm.client.Constants.JSON_MULTICAST_ID;
+import static com.hextremelabs.gcm.client.Constants.JSON_REGISTRATION_IDS;
+import static com.hextremelabs.gcm.client.Constants.JSON_RESULTS;
+import static com.hextremelabs.gcm.client.Constants.JSON_SUCCESS;
+import static com.hextremelabs.gcm.client.Constants.JSON_TO;
+import static com.hextremelabs.gcm.client.Constants.TOKEN_CANONICAL_REG_ID;
+import static com.hextremelabs.gcm.client.Constants.TOPIC_PREFIX;
+
+/**
+ * In-process stand-in for the GCM HTTP endpoint, to load and fault-inject a {@code Sender} without sending to GCM.
+ *
+ * <p>
+ * It answers {@literal POST /gcm/send} the way GCM does: {@literal registration_ids} and single registration ids get
+ * {@literal results} with a {@literal multicast_id}, topics a {@literal message_id}, and notification keys declared with
+ * {@link Builder#group(String, Collection)} their {@literal failed_registration_ids}. Whether a registration id is
+ * {@literal NotRegistered} or has a canonical id is decided by hashing it, so it stays the same across requests;
+ * {@literal Unavailable} results, 5xx responses and connection resets are drawn again for every request. It speaks
+ * HTTP/1.1, or h2c with {@link Builder#http2(boolean)}.
+ *
+ * <pre>
+ * MockGcmServer server = new MockGcmServer.Builder()
+ *     .latency(LatencyDistribution.logNormal(40, 0.5))
+ *     .notRegisteredRate(0.02)
+ *     .serverErrorRate(0.01)
+ *     .retryAfter(1)
+ *     .start();
+ * // point gcm.endpoint at server.getEndpoint()
+ * </pre>
+ */
+public final class MockGcmServer implements AutoCloseable {
+
+  /**
+   * Path GCM receives messages on.
+   */
+  public static final String SEND_PATH = "/gcm/send";
+
+  private final HttpServer server;
+  private final H2cServer h2cServer;
+  private final ExecutorService executor;
+  private final LatencyDistribution latency;
+  private final double unavailableRate;
+  private final double serverErrorRate;
+  private final int serverErrorStatus;
+  private final int retryAfter;
+  private final double canonicalIdRate;
+  private final double notRegisteredRate;
+  private final double connectionResetRate;
+  private final long seed;
+  private final Map<String, List<String>> groups;
+  private final AtomicLong ids = new AtomicLong(System.currentTimeMillis());
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong results = new AtomicLong();
+  private final AtomicLong serverErrors = new AtomicLong();
+  private final AtomicLong connectionResets = new AtomicLong();
+
+  private MockGcmServer(Builder builder) throws IOException {
+    latency = builder.latency;
+    unavailableRate = builder.unavailableRate;
+    serverErrorRate = builder.serverErrorRate;
+    serverErrorStatus = builder.serverErrorStatus;
+    retryAfter = builder.retryAfter;
+    canonicalIdRate = builder.canonicalIdRate;
+    notRegisteredRate = builder.notRegisteredRate;
+    connectionResetRate = builder.connectionResetRate;
+    seed = builder.seed;
+    groups = new HashMap<>(builder.groups);
+
+    InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), builder.port);
+    ThreadFactory threads = task -> {
+      Thread thread = new Thread(task, "mock-gcm");
+      thread.setDaemon(true);
+      return thread;
+    };
+    if (builder.http2) {
+      // answers are scheduled once their latency elapsed, the I/O reactor is never blocked
+      ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2, threads);
+      executor = scheduler;
+      server = null;
+      h2cServer = new H2cServer(this, scheduler, address);
+    } else {
+      // requests wait out their latency on their own thread, so that slow answers do not hold back the others
+      executor = Executors.newCachedThreadPool(threads);
+      h2cServer = null;
+      server = HttpServer.create(address, builder.backlog);
+      server.setExecutor(executor);
+      server.createContext(SEND_PATH, this::handle);
+      server.start();
+    }
+  }
+
+  /**
+   * Gets the URL to post messages to, for {@literal gcm.endpoint}.
+   */
+  public String getEndpoint() {
+    return "http://" + getAddress().getHostString() + ":" + getPort() + SEND_PATH;
+  }
+
+  public int getPort() {
+    return getAddress().getPort();
+  }
+
+  private InetSocketAddress getAddress() {
+    return server == null ? h2cServer.getAddress() : server.getAddress();
+  }
+
+  /**
+   * Gets the number of requests received, whatever their answer.
+   */
+  public long getRequests() {
+    return requests.get();
+  }
+
+  /**
+   * Gets the number of results sent, one per registration id, topic or notification key answered.
+   */
+  public long getResults() {
+    return results.get();
+  }
+
+  public long getServerErrors() {
+    return serverErrors.get();
+  }
+
+  public long getConnectionResets() {
+    return connectionResets.get();
+  }
+
+  /**
+   * Stops the server, dropping the requests it is still answering.
+   */
+  @Override
+  public void close() {
+    if (server == null) {
+      h2cServer.close();
+    } else {
+      server.stop(0);
+    }
+    executor.shutdownNow();
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try {
+      byte[] body = read(exchange.getRequestBody());
+      Random random = ThreadLocalRandom.current();
+      long delay = latency.nextMillis(random);
+      if (delay > 0) {
+        TimeUnit.MILLISECONDS.sleep(delay);
+      }
+
+      Reply reply = reply(exchange.getRequestMethod(), exchange.getRequestHeaders().getFirst("Authorization"), body,
+          random);
+      // closing before the response is sent drops the connection, the client sees it end unexpectedly
+      if (reply != Reply.RESET) {
+        reply.headers.forEach(exchange.getResponseHeaders()::set);
+        send(exchange, reply.status, reply.body);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      exchange.close();
+    }
+  }
+
+  /**
+   * Draws the time to wait before answering a request.
+   */
+  long nextLatency(Random random) {
+    return latency.nextMillis(random);
+  }
+
+  /**
+   * Decides how to answer a request, whatever the protocol it came in on.
+   *
+   * @param authorization value of the {@literal Authorization} header, if any.
+   */
+  Reply reply(String method, String authorization, byte[] body, Random random) {
+    requests.incrementAndGet();
+    if (!"POST".equals(method)) {
+      return new Reply(405, "Method Not Allowed");
+    } else if (authorization == null || !authorization.startsWith("key=")) {
+      return new Reply(401, "Unauthorized");
+    } else if (random.nextDouble() < connectionResetRate) {
+      connectionResets.incrementAndGet();
+      return Reply.RESET;
+    } else if (random.nextDouble() < serverErrorRate) {
+      serverErrors.incrementAndGet();
+      return retryAfter(new Reply(serverErrorStatus, "Internal Server Error"));
+    }
+
+    Object request = JSONValue.parse(new String(body, StandardCharsets.UTF_8));
+    if (!(request instanceof JSONObject)) {
+      return new Reply(400, "Invalid JSON");
+    }
+    Object registrationIds = ((JSONObject) request).get(JSON_REGISTRATION_IDS);
+    Object to = ((JSONObject) request).get(JSON_TO);
+    StringBuilder json = new StringBuilder();
+    boolean unavailable;
+    if (registrationIds instanceof List) {
+      unavailable = multicast(json, (List<?>) registrationIds, random);
+    } else if (!(to instanceof String)) {
+      return new Reply(400, "Missing \"to\" or \"registration_ids\"");
+    } else if (((String) to).startsWith(TOPIC_PREFIX)) {
+      unavailable = topic(json, random);
+    } else if (groups.containsKey(to)) {
+      unavailable = group(json, groups.get(to), random);
+    } else {
+      List<String> single = new ArrayList<>(1);
+      single.add((String) to);
+      unavailable = multicast(json, single, random);
+    }
+
+    Reply reply = new Reply(200, json.toString());
+    reply.headers.put("Content-Type", "application/json; charset=UTF-8");
+    return unavailable ? retryAfter(reply) : reply;
+  }
+
+  private Reply retryAfter(Reply reply) {
+    if (retryAfter > 0) {
+      reply.headers.put("Retry-After", Integer.toString(retryAfter));
+    }
+    return reply;
+  }
+
+  /**
+   * Writes the response to registration ids.
+   *
+   * @return {@literal true} if any result is {@literal Unavailable}.
+   */
+  private boolean multicast(StringBuilder json, List<?> registrationIds, Random random) {
+    int success = 0;
+    int canonicalIds = 0;
+    boolean unavailable = false;
+    json.append("{\"").append(JSON_RESULTS).append("\":[");
+    for (int i = 0; i < registrationIds.size(); i++) {
+      String regId = String.valueOf(registrationIds.get(i));
+      if (i > 0) {
+        json.append(',');
+      }
+      if (random.nextDouble() < unavailableRate) {
+        unavailable = true;
+        error(json, ERROR_UNAVAILABLE);
+      } else if (fraction(regId, 1) < notRegisteredRate) {
+        error(json, ERROR_NOT_REGISTERED);
+      } else {
+        success++;
+        json.append("{\"").append(JSON_MESSAGE_ID).append("\":\"0:").append(ids.incrementAndGet()).append('"');
+        if (fraction(regId, 2) < canonicalIdRate) {
+          canonicalIds++;
+          json.append(",\"").append(TOKEN_CANONICAL_REG_ID).append("\":\"")
+              .append(JSONValue.escape(canonicalId(regId))).append('"');
+        }
+        json.append('}');
+      }
+    }
+    results.addAndGet(registrationIds.size());
+    json.append("],\"").append(JSON_MULTICAST_ID).append("\":").append(ids.incrementAndGet())
+        .append(",\"").append(JSON_SUCCESS).append("\":").append(success)
+        .append(",\"").append(JSON_FAILURE).append("\":").append(registrationIds.size() - success)
+        .append(",\"").append(JSON_CANONICAL_IDS).append("\":").append(canonicalIds).append('}');
+    return unavailable;
+  }
+
+  private boolean topic(StringBuilder json, Random random) {
+    results.incrementAndGet();
+    if (random.nextDouble() < unavailableRate) {
+      error(json, ERROR_UNAVAILABLE);
+      return true;
+    }
+    json.append("{\"").append(JSON_MESSAGE_ID).append("\":").append(ids.incrementAndGet()).append('}');
+    return false;
+  }
+
+  private boolean group(StringBuilder json, List<String> members, Random random) {
+    List<String> failed = new ArrayList<>();
+    for (String regId : members) {
+      if (random.nextDouble() < unavailableRate || fraction(regId, 1) < notRegisteredRate) {
+        failed.add(regId);
+      }
+    }
+    results.incrementAndGet();
+    json.append("{\"").append(JSON_SUCCESS).append("\":").append(members.size() - failed.size())
+        .append(",\"").append(JSON_FAILURE).append("\":").append(failed.size());
+    if (!failed.isEmpty()) {
+      json.append(",\"").append(JSON_FAILED_REGISTRATION_IDS).append("\":[");
+      for (int i = 0; i < failed.size(); i++) {
+        json.append(i > 0 ? ",\"" : "\"").append(JSONValue.escape(failed.get(i))).append('"');
+      }
+      json.append(']');
+    }
+    json.append('}');
+    return !failed.isEmpty();
+  }
+
+  private static void error(StringBuilder json, String error) {
+    json.append("{\"").append(JSON_ERROR).append("\":\"").append(error).append("\"}");
+  }
+
+  /**
+   * Gets the canonical id the server gives a registration id, when it gives one.
+   */
+  public static String canonicalId(String regId) {
+    return "canonical-" + regId;
+  }
+
+  /**
+   * Maps a registration id to a number in [0, 1) that does not change between requests.
+   */
+  private double fraction(String regId, long salt) {
+    long h = regId.hashCode() ^ (seed + salt * 0x9E3779B97F4A7C15L);
+    h = (h ^ (h >>> 33)) * 0xFF51AFD7ED558CCDL;
+    h = (h ^ (h >>> 33)) * 0xC4CEB9FE1A85EC53L;
+    h ^= h >>> 33;
+    return (h >>> 11) * 0x1.0p-53;
+  }
+
+  private static byte[] read(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    for (int n; (n = in.read(buffer)) != -1; ) {
+      out.write(buffer, 0, n);
+    }
+    return out.toByteArray();
+  }
+
+  private static void send(HttpExchange exchange, int status, String body) throws IOException {
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    exchange.sendResponseHeaders(status, bytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+
+  /**
+   * Answer to a request.
+   */
+  static final class Reply {
+
+    /**
+     * Drops the connection, or resets the stream over HTTP/2, instead of answering.
+     */
+    static final Reply RESET = new Reply(0, null);
+
+    final int status;
+    final String body;
+    final Map<String, String> headers = new HashMap<>();
+
+    Reply(int status, String body) {
+      this.status = status;
+      this.body = body;
+    }
+  }
+
+  /**
+   * Configures and starts a {@link MockGcmServer}. By default it listens on a free port and answers every request at
+   * once and successfully.
+   */
+  public static final class Builder {
+
+    private int port;
+    private int backlog = 128;
+    private boolean http2;
+    private LatencyDistribution latency = LatencyDistribution.none();
+    private double unavailableRate;
+    private double serverErrorRate;
+    private int serverErrorStatus = 503;
+    private int retryAfter;
+    private double canonicalIdRate;
+    private double notRegisteredRate;
+    private double connectionResetRate;
+    private long seed;
+    private final Map<String, List<String>> groups = new HashMap<>();
+
+    /**
+     * Port to listen on, 0 (the default) for any free port.
+     */
+    public Builder port(int value) {
+      port = value;
+      return this;
+    }
+
+    /**
+     * Connections waiting to be accepted before new ones are refused.
+     */
+    public Builder backlog(int value) {
+      backlog = value;
+      return this;
+    }
+
+    /**
+     * Answers with cleartext HTTP/2 with prior knowledge (h2c) instead of HTTP/1.1, as {@code Http2Transport} speaks
+     * to {@literal http} URLs. Over HTTP/2, connection resets reset the request's stream.
+     */
+    public Builder http2(boolean value) {
+      http2 = value;
+      return this;
+    }
+
+    public Builder latency(LatencyDistribution value) {
+      latency = value;
+      return this;
+    }
+
+    /**
+     * Share of results, drawn on every request, that are {@literal Unavailable}.
+     */
+    public Builder unavailableRate(double value) {
+      unavailableRate = rate(value);
+      return this;
+    }
+
+    /**
+     * Share of requests answered with a 5xx status, 503 unless {@link #serverErrorStatus(int)} is set.
+     */
+    public Builder serverErrorRate(double value) {
+      serverErrorRate = rate(value);
+      return this;
+    }
+
+    public Builder serverErrorStatus(int value) {
+      if (value < 500 || value > 599) {
+        throw new IllegalArgumentException("status must be a 5xx");
+      }
+      serverErrorStatus = value;
+      return this;
+    }
+
+    /**
+     * Seconds of {@literal Retry-After} sent with 5xx responses and with results holding {@literal Unavailable}, none
+     * if 0 (the default).
+     */
+    public Builder retryAfter(int seconds) {
+      retryAfter = seconds;
+      return this;
+    }
+
+    /**
+     * Share of registration ids given a canonical id, {@link MockGcmServer#canonicalId(String)}.
+     */
+    public Builder canonicalIdRate(double value) {
+      canonicalIdRate = rate(value);
+      return this;
+    }
+
+    /**
+     * Share of registration ids that are {@literal NotRegistered}.
+     */
+    public Builder notRegisteredRate(double value) {
+      notRegisteredRate = rate(value);
+      return this;
+    }
+
+    /**
+     * Share of requests whose connection is dropped without an answer.
+     */
+    public Builder connectionResetRate(double value) {
+      connectionResetRate = rate(value);
+      return this;
+    }
+
+    /**
+     * Changes which registration ids are {@literal NotRegistered} or have a canonical id.
+     */
+    public Builder seed(long value) {
+      seed = value;
+      return this;
+    }
+
+    /**
+     * Declares a notification key, so that messages sent to it are answered as to a device group.
+     */
+    public Builder group(String notificationKey, Collection<String> registrationIds) {
+      groups.put(notificationKey, new ArrayList<>(registrationIds));
+      return this;
+    }
+
+    public MockGcmServer start() throws IOException {
+      return new MockGcmServer(this);
+    }
+
+    private static double rate(double value) {
+      if (value < 0 || value > 1) {
+        throw new IllegalArgumentException("rate must be between 0 and 1");
+      }
+      return value;
+    }
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hextremelabs.gcm.client;
+
+import java.util.Collection;
+import java.util.Iterator;
+
+/**
+ * Log argument that shortens a collection or a long text, and only does so when the message is actually logged.
+ */
+final class Abbreviated {
+
+  /**
+   * Longest text logged, in characters, such as a request or an error response.
+   */
+  static final int MAX_TEXT_LENGTH = 1024;
+
+  /**
+   * Most elements of a collection logged, unless {@literal gcm.log.recipients} is set.
+   */
+  static final int DEFAULT_MAX_ELEMENTS = 10;
+
+  private static volatile int maxElements = DEFAULT_MAX_ELEMENTS;
+
+  private final Object value;
+
+  private Abbreviated(Object value) {
+    this.value = value;
+  }
+
+  static void setMaxElements(int max) {
+    maxElements = max;
+  }
+
+  /**
+   * Shows the first elements of a collection, such as registration ids, and how many more there are.
+   */
+  static Object list(Collection<?> elements) {
+    return new Abbreviated(elements);
+  }
+
+  /**
+   * Shows the beginning of an object's text, and how long the rest is.
+   */
+  static Object text(Object value) {
+    return new Abbreviated(value);
+  }
+
+  @Override
+  public String toString() {
+    if (value instanceof Collection) {
+      return abbreviate((Collection<?>) value);
+    }
+
+    String text = String.valueOf(value);
+    if (text.length() <= MAX_TEXT_LENGTH) {
+      return text;
+    }
+
+    return text.substring(0, MAX_TEXT_LENGTH) + "... (" + (text.length() - MAX_TEXT_LENGTH) + " more characters)";
+  }
+
+  private static String abbreviate(Collection<?> elements) {
+    int max = maxElements;
+    StringBuilder builder = new StringBuilder().append('[');
+    Iterator<?> iterator = elements.iterator();
+    for (int i = 0; i < max && iterator.hasNext(); i++) {
+      if (i > 0) {
+        builder.append(", ");
+      }
+      builder.append(iterator.next());
+    }
+    int more = elements.size() - max;
+    if (more > 0) {
+      builder.append(max > 0 ? ", " : "").append("... ").append(more).append(" more");
+    }
+
+    return builder.append(']').toString();
+  }
+}
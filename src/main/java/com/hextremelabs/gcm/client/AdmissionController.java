@@ -0,0 +1,191 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hextremelabs.gcm.client;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Admits requests to GCM under a requests-per-second limit, enforced by a token bucket, and a limit on requests in
+ * flight that adapts to how GCM copes with the load.
+ *
+ * <p>
+ * The concurrency limit grows by one for every limit's worth of requests that succeed in reasonable time, and shrinks
+ * by a tenth whenever one is dropped: it could not be posted, GCM answered with a 5xx status or asked for a retry, or
+ * it took more than twice the lowest latency seen recently.
+ */
+final class AdmissionController {
+
+  /**
+   * Returned by {@link #tryAcquire(long)} for a request that cannot be admitted within the maximum wait.
+   */
+  static final long REJECTED = -1;
+
+  private static final double BACKOFF_RATIO = 0.9;
+
+  /**
+   * Time, in nanoseconds, a request refused for the concurrency limit waits before trying again.
+   */
+  private static final long CONCURRENCY_POLL_INTERVAL = TimeUnit.MILLISECONDS.toNanos(10);
+
+  private static final int MIN_LIMIT = 1;
+
+  /**
+   * Factor by which a latency must exceed the lowest recent latency for the request to count as dropped.
+   */
+  private static final int LATENCY_TOLERANCE = 2;
+
+  /**
+   * Weight given to the previous value when the lowest latency is raised towards a new sample, so that it follows a
+   * slower GCM back up.
+   */
+  private static final double MIN_LATENCY_DECAY = 0.99;
+
+  private final double rate;
+  private final double burst;
+  private final int maxLimit;
+  private final long maxWait;
+  private final LongAdder throttled = new LongAdder();
+  private final LongAdder rejected = new LongAdder();
+
+  private double tokens;
+  private long refilled = System.nanoTime();
+  private double limit;
+  private int inFlight;
+  private double minLatency = Double.MAX_VALUE;
+
+  /**
+   * @param rate requests admitted per second, 0 for no limit.
+   * @param burst requests admitted at once after an idle period.
+   * @param initialLimit requests in flight allowed at first.
+   * @param maxLimit most requests in flight ever allowed.
+   * @param maxWait longest time, in milliseconds, a request waits to be admitted.
+   */
+  AdmissionController(int rate, int burst, int initialLimit, int maxLimit, long maxWait) {
+    if (rate < 0 || burst < 1 || initialLimit < 1 || maxLimit < initialLimit || maxWait < 0) {
+      throw new IllegalArgumentException("Invalid admission limits");
+    }
+    this.rate = rate;
+    this.burst = burst;
+    tokens = burst;
+    this.maxLimit = maxLimit;
+    limit = initialLimit;
+    this.maxWait = TimeUnit.MILLISECONDS.toNanos(maxWait);
+  }
+
+  /**
+   * Admits a request if both limits allow it now, without waiting. Every admitted request must be followed by a call
+   * to {@link #release(long, boolean)}.
+   *
+   * @param waitingSince {@link System#nanoTime()} when the request was first refused, 0 if it was not.
+   * @return 0 if it was admitted, otherwise nanoseconds to wait before trying again, or {@link #REJECTED} if it could
+   * not be admitted within the maximum wait.
+   */
+  synchronized long tryAcquire(long waitingSince) {
+    long now = System.nanoTime();
+    long wait = 0;
+    if (rate > 0) {
+      tokens = Math.min(burst, tokens + (now - refilled) * rate / TimeUnit.SECONDS.toNanos(1));
+      refilled = now;
+      if (tokens < 1) {
+        wait = (long) ((1 - tokens) * TimeUnit.SECONDS.toNanos(1) / rate);
+      }
+    }
+    if (wait == 0 && inFlight >= (int) limit) {
+      wait = CONCURRENCY_POLL_INTERVAL;
+    }
+    if (wait == 0) {
+      // the token is only taken along with a slot, so a refused request holds neither
+      if (rate > 0) {
+        tokens--;
+      }
+      inFlight++;
+      if (waitingSince != 0) {
+        throttled.increment();
+      }
+      return 0;
+    }
+    if ((waitingSince == 0 ? 0 : now - waitingSince) + wait > maxWait) {
+      rejected.increment();
+      return REJECTED;
+    }
+    return wait;
+  }
+
+  /**
+   * Waits on the calling thread for a request to be admitted, see {@link #tryAcquire(long)}. Only for callers that
+   * own their thread: scheduled attempts must be rescheduled instead.
+   *
+   * @return {@literal true} if it was admitted, {@literal false} if it could not be within the maximum wait.
+   */
+  boolean acquire() throws InterruptedException {
+    long waitingSince = 0;
+    long wait;
+    while ((wait = tryAcquire(waitingSince)) > 0) {
+      if (waitingSince == 0) {
+        waitingSince = System.nanoTime();
+      }
+      TimeUnit.NANOSECONDS.sleep(wait);
+    }
+    return wait == 0;
+  }
+
+  /**
+   * Ends an admitted request, adapting the concurrency limit to its outcome.
+   *
+   * @param latency time, in nanoseconds, the request took.
+   * @param dropped whether GCM failed or refused the request.
+   */
+  synchronized void release(long latency, boolean dropped) {
+    inFlight--;
+    if (!dropped) {
+      minLatency = latency < minLatency ? latency
+          : minLatency * MIN_LATENCY_DECAY + latency * (1 - MIN_LATENCY_DECAY);
+      dropped = latency > LATENCY_TOLERANCE * minLatency;
+    }
+    if (dropped) {
+      limit = Math.max(MIN_LIMIT, limit * BACKOFF_RATIO);
+    } else if (inFlight + 1 >= (int) limit) {
+      // only grow while the limit is actually being used
+      limit = Math.min(maxLimit, limit + 1 / limit);
+    }
+  }
+
+  /**
+   * Shrinks the concurrency limit after a response asked for some of its messages to be retried.
+   */
+  synchronized void overloaded() {
+    limit = Math.max(MIN_LIMIT, limit * BACKOFF_RATIO);
+  }
+
+  synchronized int getLimit() {
+    return (int) limit;
+  }
+
+  /**
+   * Gets the number of requests that had to wait to be admitted.
+   */
+  long getThrottled() {
+    return throttled.sum();
+  }
+
+  /**
+   * Gets the number of requests that could not be admitted within the maximum wait.
+   */
+  long getRejected() {
+    return rejected.sum();
+  }
+}
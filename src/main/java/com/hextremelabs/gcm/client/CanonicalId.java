@@ -0,0 +1,68 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hextremelabs.gcm.client;
+
+import javax.persistence.Basic;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import java.io.Serializable;
+
+/**
+ * Canonical registration id GCM gave for a registration id, which is sent to in its place.
+ */
+@Entity
+@Table(name = "gcm_canonical_id")
+public class CanonicalId implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  @Id
+  @Basic(optional = false)
+  @Column(name = "registration_id", nullable = false, length = 255)
+  private String registrationId;
+
+  @Column(name = "canonical_id", nullable = false, length = 255)
+  private String canonicalId;
+
+  @Column(name = "created", nullable = false)
+  private long created;
+
+  protected CanonicalId() {
+  }
+
+  CanonicalId(String registrationId, String canonicalId) {
+    this.registrationId = registrationId;
+    this.canonicalId = canonicalId;
+    created = System.currentTimeMillis();
+  }
+
+  public String getRegistrationId() {
+    return registrationId;
+  }
+
+  public String getCanonicalId() {
+    return canonicalId;
+  }
+
+  /**
+   * Gets the time GCM gave the canonical id, in milliseconds since the epoch.
+   */
+  public long getCreated() {
+    return created;
+  }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hextremelabs.gcm.client;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+/**
+ * Bounded map of registration ids to the canonical registration id GCM gave for them. Once full, the oldest mappings
+ * are evicted first.
+ */
+final class CanonicalIdCache {
+
+  /**
+   * Number of mappings followed from a registration id, in case its canonical id was itself replaced.
+   */
+  private static final int MAX_HOPS = 4;
+
+  private final int capacity;
+  private final Map<String, String> canonicalIds = new ConcurrentHashMap<>();
+  private final Queue<String> insertionOrder = new ConcurrentLinkedQueue<>();
+  private final Map<String, String> pending;
+  private final LongAdder rewritten = new LongAdder();
+
+  /**
+   * @param capacity maximum number of mappings held.
+   * @param persistent whether new mappings are kept for {@link #drainPending(BiConsumer)}.
+   */
+  CanonicalIdCache(int capacity, boolean persistent) {
+    this.capacity = capacity;
+    pending = persistent ? new ConcurrentHashMap<>() : null;
+  }
+
+  /**
+   * Adds a persisted mapping.
+   */
+  void load(String regId, String canonicalId) {
+    if (!regId.equals(canonicalId) && canonicalIds.put(regId, canonicalId) == null) {
+      insertionOrder.add(regId);
+      evict();
+    }
+  }
+
+  /**
+   * Records the canonical id GCM gave for a registration id.
+   */
+  void put(String regId, String canonicalId) {
+    load(regId, canonicalId);
+    if (pending != null && !regId.equals(canonicalId)) {
+      pending.put(regId, canonicalId);
+    }
+  }
+
+  private void evict() {
+    while (canonicalIds.size() > capacity) {
+      String eldest = insertionOrder.poll();
+      if (eldest == null) {
+        return;
+      }
+      canonicalIds.remove(eldest);
+    }
+  }
+
+  /**
+   * Gets the canonical id of a registration id, or the registration id itself if it has none.
+   */
+  String resolve(String regId) {
+    String resolved = regId;
+    for (int i = 0; i < MAX_HOPS; i++) {
+      String canonicalId = canonicalIds.get(resolved);
+      if (canonicalId == null) {
+        break;
+      }
+      resolved = canonicalId;
+    }
+    if (!resolved.equals(regId)) {
+      rewritten.increment();
+    }
+    return resolved;
+  }
+
+  /**
+   * Gets the canonical id of every registration id that has one.
+   */
+  Map<String, String> resolve(Collection<String> regIds) {
+    Map<String, String> rewrites = new HashMap<>();
+    if (canonicalIds.isEmpty()) {
+      return rewrites;
+    }
+    for (String regId : regIds) {
+      String canonicalId = resolve(regId);
+      if (!canonicalId.equals(regId)) {
+        rewrites.put(regId, canonicalId);
+      }
+    }
+    return rewrites;
+  }
+
+  /**
+   * Hands the mappings recorded since the last call to consumer, to be persisted.
+   */
+  void drainPending(BiConsumer<String, String> consumer) {
+    if (pending == null) {
+      return;
+    }
+    for (String regId : pending.keySet()) {
+      String canonicalId = pending.remove(regId);
+      if (canonicalId != null) {
+        consumer.accept(regId, canonicalId);
+      }
+    }
+  }
+
+  /**
+   * Gets the number of recipients rewritten to their canonical id.
+   */
+  long getRewritten() {
+    return rewritten.sum();
+  }
+}
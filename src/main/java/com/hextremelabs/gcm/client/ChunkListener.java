@@ -0,0 +1,48 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hextremelabs.gcm.client;
+
+import java.util.List;
+
+/**
+ * Receives the outcome of each chunk of a multicast that {@link Sender} splits into requests of at most
+ * {@link Constants#MULTICAST_SIZE_LIMIT} registration ids.
+ *
+ * <p>
+ * Callbacks run on the sender's executor threads, possibly concurrently for different chunks, and should return
+ * quickly.
+ */
+public interface ChunkListener {
+
+  /**
+   * Called once a chunk has been sent, including its retries.
+   *
+   * @param index position of the chunk in the audience, starting from {@literal 0}.
+   * @param registrationIds registration ids of the chunk.
+   * @param result result of the chunk, listing individual results in the same order as registrationIds.
+   */
+  void onChunkSent(int index, List<String> registrationIds, MulticastResult result);
+
+  /**
+   * Called when a chunk could not be posted to GCM after all its retries.
+   *
+   * @param index position of the chunk in the audience, starting from {@literal 0}.
+   * @param registrationIds registration ids of the chunk.
+   * @param cause why the chunk could not be posted.
+   */
+  default void onChunkFailed(int index, List<String> registrationIds, Throwable cause) {
+  }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hextremelabs.gcm.client;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Circuit breaker in front of GCM.
+ *
+ * <p>
+ * The outcome of the last requests is kept in a sliding window. Once the window is full and the share of failures in it
+ * reaches the threshold the circuit opens, and requests fail fast. After the open time, the circuit half-opens: a few
+ * probe requests are let through, which close the circuit if they all succeed, or open it again as soon as one fails.
+ */
+final class CircuitBreaker {
+
+  private final boolean[] outcomes;
+  private final int threshold;
+  private final long openTime;
+  private final int maxProbes;
+  private final Consumer<CircuitBreakerEvent> listener;
+  private final LongAdder rejected = new LongAdder();
+
+  private CircuitState state = CircuitState.CLOSED;
+  private int next;
+  private int recorded;
+  private int failures;
+  private long openUntil;
+  private int probes;
+  private int succeededProbes;
+
+  /**
+   * @param window number of outcomes the failure share is computed over.
+   * @param threshold percentage of failures that opens the circuit.
+   * @param openTime time, in milliseconds, the circuit stays open.
+   * @param maxProbes number of probe requests let through when half-open.
+   * @param listener notified of every change of state, outside of any lock.
+   */
+  CircuitBreaker(int window, int threshold, long openTime, int maxProbes, Consumer<CircuitBreakerEvent> listener) {
+    if (window < 1 || threshold < 1 || threshold > 100 || openTime < 0 || maxProbes < 1) {
+      throw new IllegalArgumentException("Invalid circuit breaker settings");
+    }
+    outcomes = new boolean[window];
+    this.threshold = threshold;
+    this.openTime = openTime;
+    this.maxProbes = maxProbes;
+    this.listener = listener;
+  }
+
+  /**
+   * Tells whether a request may be sent. Every allowed request must be followed by a call to {@link #record(boolean)}
+   * or {@link #ignore()}.
+   */
+  boolean allowRequest() {
+    CircuitBreakerEvent event = null;
+    boolean allowed;
+    synchronized (this) {
+      if (state == CircuitState.OPEN && System.currentTimeMillis() >= openUntil) {
+        event = transition(CircuitState.HALF_OPEN);
+      }
+      if (state == CircuitState.HALF_OPEN) {
+        allowed = probes < maxProbes;
+        if (allowed) {
+          probes++;
+        }
+      } else {
+        allowed = state == CircuitState.CLOSED;
+      }
+    }
+    if (!allowed) {
+      rejected.increment();
+    }
+    fire(event);
+    return allowed;
+  }
+
+  /**
+   * Records the outcome of an allowed request.
+   */
+  void record(boolean success) {
+    CircuitBreakerEvent event = null;
+    synchronized (this) {
+      if (state == CircuitState.HALF_OPEN) {
+        probes--;
+        if (!success) {
+          event = transition(CircuitState.OPEN);
+        } else if (++succeededProbes >= maxProbes) {
+          event = transition(CircuitState.CLOSED);
+        }
+      } else if (state == CircuitState.CLOSED) {
+        if (recorded == outcomes.length) {
+          if (!outcomes[next]) {
+            failures--;
+          }
+        } else {
+          recorded++;
+        }
+        outcomes[next] = success;
+        next = (next + 1) % outcomes.length;
+        if (!success && ++failures * 100 >= threshold * outcomes.length && recorded == outcomes.length) {
+          event = transition(CircuitState.OPEN);
+        }
+      }
+    }
+    fire(event);
+  }
+
+  /**
+   * Ends an allowed request whose outcome says nothing about the health of GCM.
+   */
+  synchronized void ignore() {
+    if (state == CircuitState.HALF_OPEN) {
+      probes--;
+    }
+  }
+
+  private CircuitBreakerEvent transition(CircuitState to) {
+    CircuitState from = state;
+    state = to;
+    if (to == CircuitState.OPEN) {
+      openUntil = System.currentTimeMillis() + openTime;
+    } else if (to == CircuitState.HALF_OPEN) {
+      probes = 0;
+      succeededProbes = 0;
+    } else {
+      next = 0;
+      recorded = 0;
+      failures = 0;
+    }
+    return new CircuitBreakerEvent(from, to);
+  }
+
+  private void fire(CircuitBreakerEvent event) {
+    if (event != null) {
+      listener.accept(event);
+    }
+  }
+
+  synchronized CircuitState getState() {
+    return state;
+  }
+
+  /**
+   * Gets the time, in milliseconds, until the circuit half-opens, 0 if it is not open.
+   */
+  synchronized long getRemainingOpenTime() {
+    return state == CircuitState.OPEN ? Math.max(0, openUntil - System.currentTimeMillis()) : 0;
+  }
+
+  /**
+   * Gets the number of requests that failed fast.
+   */
+  long getRejected() {
+    return rejected.sum();
+  }
+}
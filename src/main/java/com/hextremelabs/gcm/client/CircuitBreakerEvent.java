@@ -0,0 +1,53 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hextremelabs.gcm.client;
+
+/**
+ * CDI event fired when the circuit breaker in front of GCM changes state. Observe it with
+ * {@code @Observes CircuitBreakerEvent}.
+ */
+public final class CircuitBreakerEvent {
+
+  private final CircuitState previous;
+  private final CircuitState state;
+  private final long timestamp;
+
+  CircuitBreakerEvent(CircuitState previous, CircuitState state) {
+    this.previous = previous;
+    this.state = state;
+    timestamp = System.currentTimeMillis();
+  }
+
+  public CircuitState getPrevious() {
+    return previous;
+  }
+
+  public CircuitState getState() {
+    return state;
+  }
+
+  /**
+   * Gets the time of the change, in milliseconds since the epoch.
+   */
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  @Override
+  public String toString() {
+    return "CircuitBreakerEvent(" + previous + " -> " + state + ")";
+  }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hextremelabs.gcm.client;
+
+/**
+ * State of the circuit breaker in front of GCM.
+ */
+public enum CircuitState {
+
+  /**
+   * Requests are sent.
+   */
+  CLOSED,
+
+  /**
+   * Requests fail fast without being sent, until the circuit is half-opened.
+   */
+  OPEN,
+
+  /**
+   * A limited number of requests are sent to probe GCM, which close the circuit if they succeed or open it again if
+   * they fail.
+   */
+  HALF_OPEN
+}
@@ -91,6 +91,11 @@ public final class Constants {
    */
   public static final String MESSAGE_PRIORITY_HIGH = "high";
 
+  /**
+   * Maximum number of registration ids GCM accepts in a single multicast request.
+   */
+  public static final int MULTICAST_SIZE_LIMIT = 1000;
+
   /**
    * Too many messages sent by the sender. Retry after a while.
    */
@@ -150,6 +155,18 @@ public final class Constants {
    */
   public static final String ERROR_INVALID_TTL = "InvalidTtl";
 
+  /**
+   * Not returned by GCM. The message could not be posted for this registration id, for example because its chunk of a
+   * large multicast exhausted its retries while other chunks were sent.
+   */
+  public static final String ERROR_NOT_SENT = "NotSent";
+
+  /**
+   * Not returned by GCM. The message was not retried because the retry would have started after the deadline of the
+   * send, by default when its time to live expires.
+   */
+  public static final String ERROR_DEADLINE_EXCEEDED = "DeadlineExceeded";
+
   /**
    * Token returned by GCM when a message was successfully sent.
    */
@@ -270,6 +287,11 @@ public final class Constants {
    */
   public static final String JSON_RESULTS = "results";
 
+  /**
+   * JSON-only field representing the registration ids a group message could not be sent to.
+   */
+  public static final String JSON_FAILED_REGISTRATION_IDS = "failed_registration_ids";
+
   /**
    * JSON-only field representing the error field of an individual request.
    */
@@ -0,0 +1,71 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hextremelabs.gcm.client;
+
+import javax.persistence.Basic;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import java.io.Serializable;
+
+/**
+ * Registration id that GCM reported as no longer valid, which is not sent to anymore.
+ */
+@Entity
+@Table(name = "gcm_dead_token")
+public class DeadToken implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  @Id
+  @Basic(optional = false)
+  @Column(name = "registration_id", nullable = false, length = 255)
+  private String registrationId;
+
+  @Column(name = "error_code", nullable = false, length = 45)
+  private String errorCode;
+
+  @Column(name = "created", nullable = false)
+  private long created;
+
+  protected DeadToken() {
+  }
+
+  DeadToken(String registrationId, String errorCode) {
+    this.registrationId = registrationId;
+    this.errorCode = errorCode;
+    created = System.currentTimeMillis();
+  }
+
+  public String getRegistrationId() {
+    return registrationId;
+  }
+
+  /**
+   * Gets the error code GCM gave for the registration id.
+   */
+  public String getErrorCode() {
+    return errorCode;
+  }
+
+  /**
+   * Gets the time the registration id was found dead, in milliseconds since the epoch.
+   */
+  public long getCreated() {
+    return created;
+  }
+}
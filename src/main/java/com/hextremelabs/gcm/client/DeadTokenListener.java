@@ -0,0 +1,34 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hextremelabs.gcm.client;
+
+/**
+ * Notified when GCM reports a registration id as no longer valid, so that the application can remove it from its own
+ * store. Produce an implementation as a CDI bean to receive the notifications.
+ *
+ * <p>
+ * Notifications are made from the thread that decoded the response, which may be one of the container's managed
+ * executor threads.
+ */
+public interface DeadTokenListener {
+
+  /**
+   * @param registrationId registration id GCM rejected.
+   * @param errorCode error code GCM gave, either {@link Constants#ERROR_NOT_REGISTERED} or
+   * {@link Constants#ERROR_INVALID_REGISTRATION}.
+   */
+  void onDeadToken(String registrationId, String errorCode);
+}
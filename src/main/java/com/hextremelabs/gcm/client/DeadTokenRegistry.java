@@ -0,0 +1,137 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hextremelabs.gcm.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import static com.hextremelabs.gcm.client.Constants.ERROR_INVALID_REGISTRATION;
+import static com.hextremelabs.gcm.client.Constants.ERROR_NOT_REGISTERED;
+
+/**
+ * Registration ids known to be dead, which are not sent to.
+ *
+ * <p>
+ * A {@link BloomFilter} screens out live registration ids without any I/O. The few that match it are checked against
+ * the exact set: the dead ids found since the last {@link #drainPending(BiConsumer)}, then the persisted ones.
+ */
+final class DeadTokenRegistry {
+
+  private static final Logger L = LoggerFactory.getLogger(DeadTokenRegistry.class);
+
+  private final BloomFilter filter;
+  private final Map<String, String> pending = new ConcurrentHashMap<>();
+  private final LongAdder skipped = new LongAdder();
+
+  /**
+   * @param expected number of dead registration ids the filter is sized for.
+   */
+  DeadTokenRegistry(long expected) {
+    filter = new BloomFilter(expected, 0.01);
+  }
+
+  /**
+   * Tells whether an error code means the registration id will never be valid again.
+   */
+  static boolean isDead(String errorCode) {
+    return ERROR_NOT_REGISTERED.equals(errorCode) || ERROR_INVALID_REGISTRATION.equals(errorCode);
+  }
+
+  /**
+   * Adds a persisted dead registration id to the filter.
+   */
+  void load(String registrationId) {
+    filter.put(registrationId);
+  }
+
+  /**
+   * Records a registration id found dead, to be persisted on the next {@link #drainPending(BiConsumer)}.
+   */
+  void add(String registrationId, String errorCode) {
+    filter.put(registrationId);
+    pending.put(registrationId, errorCode);
+  }
+
+  /**
+   * Finds which registration ids are dead.
+   *
+   * @param store finds which of the given registration ids are persisted as dead, mapped to their error code.
+   * @return error code of every dead registration id.
+   */
+  Map<String, String> find(Collection<String> regIds, Function<Collection<String>, Map<String, String>> store) {
+    List<String> candidates = new ArrayList<>();
+    Map<String, String> dead = new HashMap<>();
+    for (String regId : regIds) {
+      if (filter.mightContain(regId)) {
+        String error = pending.get(regId);
+        if (error != null) {
+          dead.put(regId, error);
+        } else {
+          candidates.add(regId);
+        }
+      }
+    }
+    if (!candidates.isEmpty()) {
+      try {
+        dead.putAll(store.apply(candidates));
+      } catch (RuntimeException e) {
+        // fail open, GCM will reject them again
+        L.warn("Could not look up {} possibly dead registration ids", candidates.size(), e);
+      }
+    }
+    if (!dead.isEmpty()) {
+      skipped.add(dead.size());
+    }
+    return dead;
+  }
+
+  /**
+   * Gets the error code of a registration id if it is dead, {@literal null} otherwise.
+   */
+  String find(String regId, Function<Collection<String>, Map<String, String>> store) {
+    return find(Collections.singletonList(regId), store).get(regId);
+  }
+
+  /**
+   * Hands the dead registration ids found since the last call to consumer, to be persisted.
+   */
+  void drainPending(BiConsumer<String, String> consumer) {
+    for (String regId : pending.keySet()) {
+      String error = pending.remove(regId);
+      if (error != null) {
+        consumer.accept(regId, error);
+      }
+    }
+  }
+
+  /**
+   * Gets the number of sends to dead registration ids that were skipped.
+   */
+  long getSkipped() {
+    return skipped.sum();
+  }
+}
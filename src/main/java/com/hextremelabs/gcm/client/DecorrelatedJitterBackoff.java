@@ -0,0 +1,50 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hextremelabs.gcm.client;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * "Decorrelated jitter" back-off: each delay is picked at random between the base delay and three times the previous
+ * one, up to a maximum. Retries of many senders spread out faster than with {@link ExponentialBackoff}.
+ */
+public final class DecorrelatedJitterBackoff implements RetryPolicy {
+
+  private final long baseDelay;
+  private final long maxDelay;
+
+  public DecorrelatedJitterBackoff() {
+    this(ExponentialBackoff.DEFAULT_INITIAL_DELAY, ExponentialBackoff.DEFAULT_MAX_DELAY);
+  }
+
+  /**
+   * @param baseDelay smallest delay, in milliseconds.
+   * @param maxDelay largest delay, in milliseconds.
+   */
+  public DecorrelatedJitterBackoff(long baseDelay, long maxDelay) {
+    if (baseDelay <= 0 || maxDelay < baseDelay) {
+      throw new IllegalArgumentException("baseDelay must be positive and not greater than maxDelay");
+    }
+    this.baseDelay = baseDelay;
+    this.maxDelay = maxDelay;
+  }
+
+  @Override
+  public long delay(int attempt, long previousDelay, long retryAfter) {
+    long upper = Math.min(Math.max(previousDelay, baseDelay) * 3, maxDelay);
+    return upper <= baseDelay ? baseDelay : ThreadLocalRandom.current().nextLong(baseDelay, upper + 1);
+  }
+}
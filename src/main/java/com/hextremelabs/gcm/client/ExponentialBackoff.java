@@ -0,0 +1,63 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hextremelabs.gcm.client;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Exponential back-off with jitter: the base delay doubles after every attempt, up to a maximum, and each delay is
+ * picked at random between half and one and a half times the base.
+ */
+public final class ExponentialBackoff implements RetryPolicy {
+
+  /**
+   * Base delay before the first retry, in milliseconds.
+   */
+  public static final long DEFAULT_INITIAL_DELAY = 1000;
+
+  /**
+   * Largest base delay, in milliseconds.
+   */
+  public static final long DEFAULT_MAX_DELAY = 1024000;
+
+  private final long initialDelay;
+  private final long maxDelay;
+
+  public ExponentialBackoff() {
+    this(DEFAULT_INITIAL_DELAY, DEFAULT_MAX_DELAY);
+  }
+
+  /**
+   * @param initialDelay base delay before the first retry, in milliseconds.
+   * @param maxDelay largest base delay, in milliseconds.
+   */
+  public ExponentialBackoff(long initialDelay, long maxDelay) {
+    if (initialDelay <= 0 || maxDelay < initialDelay) {
+      throw new IllegalArgumentException("initialDelay must be positive and not greater than maxDelay");
+    }
+    this.initialDelay = initialDelay;
+    this.maxDelay = maxDelay;
+  }
+
+  @Override
+  public long delay(int attempt, long previousDelay, long retryAfter) {
+    long backoff = initialDelay;
+    for (int i = 1; i < attempt && backoff < maxDelay; i++) {
+      backoff = Math.min(backoff * 2, maxDelay);
+    }
+    return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff);
+  }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hextremelabs.gcm.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics of the requests made to GCM by every {@link Sender}: counters of results by error code, latency histograms of
+ * every phase of a request, and gauges of the queues and limits. They are exposed through JMX, and handed to the
+ * {@link MetricsAdapter}s found when the first sender is created.
+ */
+public final class GcmMetrics implements GcmMetricsMXBean {
+
+  /**
+   * Phase of a request to GCM whose latency is recorded. Transports other than the built-in ones may only report
+   * {@link #REQUEST}.
+   */
+  public enum Phase {
+
+    /**
+     * Getting a connection, including the TLS handshake if a new one is opened.
+     */
+    CONNECT,
+
+    /**
+     * Writing the request.
+     */
+    WRITE,
+
+    /**
+     * Waiting for the response status and headers once the request is written.
+     */
+    FIRST_BYTE,
+
+    /**
+     * Whole post, from getting a connection to the response headers.
+     */
+    REQUEST,
+
+    /**
+     * Decoding the response body.
+     */
+    PARSE
+  }
+
+  public static final String OBJECT_NAME = "com.hextremelabs.gcm:type=GcmMetrics";
+
+  /**
+   * Key under which sent messages are counted in {@link #getResults()}.
+   */
+  public static final String SUCCESS = "Success";
+
+  private static final Logger L = LoggerFactory.getLogger(GcmMetrics.class);
+
+  private static final GcmMetrics INSTANCE = new GcmMetrics();
+
+  private final Map<String, LongAdder> results = new ConcurrentHashMap<>();
+  private final Map<Phase, LatencyHistogram> latencies = new EnumMap<>(Phase.class);
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final List<MetricsAdapter> adapters = new CopyOnWriteArrayList<>();
+
+  private GcmMetrics() {
+    for (Phase phase : Phase.values()) {
+      latencies.put(phase, new LatencyHistogram());
+    }
+  }
+
+  public static GcmMetrics get() {
+    return INSTANCE;
+  }
+
+  /**
+   * Registers the metrics with the platform MBean server, replacing those of a previous deployment.
+   */
+  void register() {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    try {
+      ObjectName name = new ObjectName(OBJECT_NAME);
+      try {
+        server.registerMBean(this, name);
+      } catch (InstanceAlreadyExistsException e) {
+        server.unregisterMBean(name);
+        server.registerMBean(this, name);
+      }
+    } catch (JMException e) {
+      L.warn("Could not register {}", OBJECT_NAME, e);
+    }
+  }
+
+  /**
+   * Hands the gauges to an adapter, and every result and latency recorded from now on.
+   */
+  void bind(MetricsAdapter adapter) {
+    adapter.gauge("gcm.requests.inflight", this::getInFlightRequests);
+    adapter.gauge("gcm.requests.limit", this::getConcurrencyLimit);
+    adapter.gauge("gcm.retries.pending", this::getPendingRetries);
+    adapter.gauge("gcm.queue.results", this::getQueuedResults);
+    adapter.gauge("gcm.queue.dropped", this::getDroppedResults);
+    adapter.gauge("gcm.queue.spilled", this::getSpilledResults);
+    adapter.gauge("gcm.journal.records", this::getJournaledRecords);
+    adapters.add(adapter);
+  }
+
+  /**
+   * Counts a result decoded from a GCM response.
+   *
+   * @param errorCode error code of the result, {@literal null} if the message was sent.
+   */
+  void recordResult(String errorCode) {
+    String key = errorCode == null ? SUCCESS : errorCode;
+    LongAdder counter = results.get(key);
+    if (counter == null) {
+      counter = results.computeIfAbsent(key, code -> new LongAdder());
+    }
+    counter.increment();
+    for (MetricsAdapter adapter : adapters) {
+      adapter.result(errorCode);
+    }
+  }
+
+  void recordLatency(Phase phase, long nanos) {
+    latencies.get(phase).record(nanos);
+    for (MetricsAdapter adapter : adapters) {
+      adapter.latency(phase, nanos);
+    }
+  }
+
+  void requestStarted() {
+    inFlight.incrementAndGet();
+  }
+
+  void requestEnded() {
+    inFlight.decrementAndGet();
+  }
+
+  /**
+   * Gets the number of results decoded with the given error code, {@literal null} for sent messages.
+   */
+  public long getResults(String errorCode) {
+    LongAdder counter = results.get(errorCode == null ? SUCCESS : errorCode);
+    return counter == null ? 0 : counter.sum();
+  }
+
+  public LatencySnapshot getLatency(Phase phase) {
+    return new LatencySnapshot(latencies.get(phase));
+  }
+
+  @Override
+  public Map<String, Long> getResults() {
+    Map<String, Long> counts = new TreeMap<>();
+    results.forEach((code, counter) -> counts.put(code, counter.sum()));
+    return counts;
+  }
+
+  @Override
+  public Map<String, LatencySnapshot> getLatencies() {
+    Map<String, LatencySnapshot> snapshots = new TreeMap<>();
+    latencies.forEach((phase, histogram) -> snapshots.put(phase.name(), new LatencySnapshot(histogram)));
+    return snapshots;
+  }
+
+  /**
+   * Gets the number of requests posted to GCM whose response headers have not been received yet.
+   */
+  @Override
+  public int getInFlightRequests() {
+    return inFlight.get();
+  }
+
+  @Override
+  public int getConcurrencyLimit() {
+    return Sender.getConcurrencyLimit();
+  }
+
+  @Override
+  public long getThrottledRequests() {
+    return Sender.getThrottledRequests();
+  }
+
+  @Override
+  public long getRejectedRequests() {
+    return Sender.getRejectedRequests();
+  }
+
+  @Override
+  public String getCircuitState() {
+    return Sender.getCircuitState().name();
+  }
+
+  @Override
+  public long getShortCircuitedRequests() {
+    return Sender.getShortCircuitedRequests();
+  }
+
+  @Override
+  public int getPendingRetries() {
+    return Sender.getPendingRetries();
+  }
+
+  @Override
+  public long getExpiredSends() {
+    return Sender.getExpiredSends();
+  }
+
+  @Override
+  public int getQueuedResults() {
+    return Sender.getQueuedResults();
+  }
+
+  @Override
+  public long getDroppedResults() {
+    return Sender.getDroppedResults();
+  }
+
+  @Override
+  public long getSpilledResults() {
+    return Sender.getSpilledResults();
+  }
+
+  @Override
+  public int getJournaledRecords() {
+    return Sender.getJournaledRecords();
+  }
+
+  @Override
+  public long getSkippedDeadTokens() {
+    return Sender.getSkippedDeadTokens();
+  }
+
+  @Override
+  public long getRewrittenCanonicalIds() {
+    return Sender.getRewrittenCanonicalIds();
+  }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hextremelabs.gcm.client;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link GcmMetrics}, registered as {@value GcmMetrics#OBJECT_NAME}.
+ */
+public interface GcmMetricsMXBean {
+
+  /**
+   * Gets the number of results decoded from GCM responses, by error code, sent messages being counted under
+   * {@value GcmMetrics#SUCCESS}.
+   */
+  Map<String, Long> getResults();
+
+  /**
+   * Gets the latencies of every phase of the requests to GCM, in microseconds, by phase.
+   */
+  Map<String, LatencySnapshot> getLatencies();
+
+  int getInFlightRequests();
+
+  int getConcurrencyLimit();
+
+  long getThrottledRequests();
+
+  long getRejectedRequests();
+
+  String getCircuitState();
+
+  long getShortCircuitedRequests();
+
+  int getPendingRetries();
+
+  long getExpiredSends();
+
+  int getQueuedResults();
+
+  long getDroppedResults();
+
+  long getSpilledResults();
+
+  int getJournaledRecords();
+
+  long getSkippedDeadTokens();
+
+  long getRewrittenCanonicalIds();
+}
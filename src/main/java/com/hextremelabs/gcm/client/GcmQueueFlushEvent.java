@@ -0,0 +1,59 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hextremelabs.gcm.client;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event spanning one drain of the result queue into the database. Only use it if
+ * {@link Jfr#AVAILABLE}.
+ */
+@Name("com.hextremelabs.gcm.QueueFlush")
+@Label("GCM Queue Flush")
+@Category("GCM")
+final class GcmQueueFlushEvent extends Event {
+
+  @Label("Results Persisted")
+  int results;
+
+  @Label("Dead Tokens Persisted")
+  int deadTokens;
+
+  @Label("Canonical Ids Persisted")
+  int canonicalIds;
+
+  static GcmQueueFlushEvent start() {
+    GcmQueueFlushEvent event = new GcmQueueFlushEvent();
+    event.begin();
+    return event;
+  }
+
+  /**
+   * Ends the event, and commits it if it is recorded.
+   */
+  void complete(int results, int deadTokens, int canonicalIds) {
+    end();
+    if (shouldCommit()) {
+      this.results = results;
+      this.deadTokens = deadTokens;
+      this.canonicalIds = canonicalIds;
+      commit();
+    }
+  }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hextremelabs.gcm.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.DateTimeException;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * HTTP response returned by a {@link GcmTransport}.
+ *
+ * <p>
+ * Closing the response closes its body, which lets pooled transports reuse the underlying connection.
+ */
+public final class GcmResponse implements Closeable {
+
+  private static final InputStream EMPTY = new ByteArrayInputStream(new byte[0]);
+
+  private final int status;
+  private final Map<String, String> headers;
+  private final InputStream body;
+  private long connectNanos = -1;
+  private long writeNanos = -1;
+  private long firstByteNanos = -1;
+
+  /**
+   * @param status HTTP status code.
+   * @param headers response headers, looked up ignoring case.
+   * @param body response body, or {@literal null} if there is none.
+   */
+  public GcmResponse(int status, Map<String, String> headers, InputStream body) {
+    this.status = status;
+    Map<String, String> tmp = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    tmp.putAll(headers);
+    this.headers = Collections.unmodifiableMap(tmp);
+    this.body = body == null ? EMPTY : body;
+  }
+
+  /**
+   * Gets the HTTP status code.
+   */
+  public int getStatus() {
+    return status;
+  }
+
+  /**
+   * Gets the value of a response header, or {@literal null} if it is absent.
+   */
+  public String getHeader(String name) {
+    return headers.get(name);
+  }
+
+  /**
+   * Gets the delay the server asked for in the {@literal Retry-After} header, given either in seconds or as an HTTP
+   * date.
+   *
+   * @return delay in milliseconds, or -1 if the header is absent or invalid.
+   */
+  public long getRetryAfter() {
+    String value = getHeader("Retry-After");
+    if (value == null) {
+      return -1;
+    }
+    value = value.trim();
+    try {
+      return Math.max(0, Long.parseLong(value)) * 1000;
+    } catch (NumberFormatException e) {
+      // not a number of seconds, try the date form
+    }
+    try {
+      long date = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+      return Math.max(0, date - System.currentTimeMillis());
+    } catch (DateTimeException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Records how long the phases of the request took, for {@link GcmMetrics}. Called by transports that can tell them
+   * apart.
+   *
+   * @return this response.
+   */
+  public GcmResponse timings(long connectNanos, long writeNanos, long firstByteNanos) {
+    this.connectNanos = connectNanos;
+    this.writeNanos = writeNanos;
+    this.firstByteNanos = firstByteNanos;
+    return this;
+  }
+
+  /**
+   * Gets the time, in nanoseconds, taken to get a connection, or -1 if the transport did not tell.
+   */
+  public long getConnectNanos() {
+    return connectNanos;
+  }
+
+  /**
+   * Gets the time, in nanoseconds, taken to write the request, or -1 if the transport did not tell.
+   */
+  public long getWriteNanos() {
+    return writeNanos;
+  }
+
+  /**
+   * Gets the time, in nanoseconds, between writing the request and receiving the response headers, or -1 if the
+   * transport did not tell.
+   */
+  public long getFirstByteNanos() {
+    return firstByteNanos;
+  }
+
+  /**
+   * Gets the response body, which is never {@literal null}.
+   */
+  public InputStream getBody() {
+    return body;
+  }
+
+  @Override
+  public void close() throws IOException {
+    body.close();
+  }
+}
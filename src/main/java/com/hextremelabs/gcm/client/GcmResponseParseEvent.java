@@ -0,0 +1,68 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hextremelabs.gcm.client;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event spanning the decoding of one GCM response. Only use it if {@link Jfr#AVAILABLE}.
+ */
+@Name("com.hextremelabs.gcm.ResponseParse")
+@Label("GCM Response Parse")
+@Category("GCM")
+final class GcmResponseParseEvent extends Event {
+
+  @Label("Recipients")
+  int recipients;
+
+  @Label("Attempt")
+  int attempt;
+
+  @Label("Succeeded")
+  int success;
+
+  @Label("Failed")
+  int failure;
+
+  @Label("Error Code")
+  String errorCode;
+
+  static GcmResponseParseEvent start() {
+    GcmResponseParseEvent event = new GcmResponseParseEvent();
+    event.begin();
+    return event;
+  }
+
+  /**
+   * Ends the event, and commits it if it is recorded.
+   *
+   * @param errorCode error code of the result of a single-recipient send, if any.
+   */
+  void complete(int recipients, int attempt, int success, int failure, String errorCode) {
+    end();
+    if (shouldCommit()) {
+      this.recipients = recipients;
+      this.attempt = attempt;
+      this.success = success;
+      this.failure = failure;
+      this.errorCode = errorCode;
+      commit();
+    }
+  }
+}
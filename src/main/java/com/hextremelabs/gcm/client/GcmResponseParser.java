@@ -0,0 +1,237 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hextremelabs.gcm.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.hextremelabs.gcm.client.Constants.JSON_CANONICAL_IDS;
+import static com.hextremelabs.gcm.client.Constants.JSON_ERROR;
+import static com.hextremelabs.gcm.client.Constants.JSON_FAILED_REGISTRATION_IDS;
+import static com.hextremelabs.gcm.client.Constants.JSON_FAILURE;
+import static com.hextremelabs.gcm.client.Constants.JSON_MESSAGE_ID;
+import static com.hextremelabs.gcm.client.Constants.JSON_MULTICAST_ID;
+import static com.hextremelabs.gcm.client.Constants.JSON_RESULTS;
+import static com.hextremelabs.gcm.client.Constants.JSON_SUCCESS;
+import static com.hextremelabs.gcm.client.Constants.TOKEN_CANONICAL_REG_ID;
+import static com.hextremelabs.gcm.client.Constants.TOPIC_PREFIX;
+
+/**
+ * Decodes GCM responses straight from the response stream, without reading them into a String or a JSON tree first.
+ */
+final class GcmResponseParser {
+
+  private static final Logger L = LoggerFactory.getLogger(GcmResponseParser.class);
+
+  private GcmResponseParser() {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Decodes the response of a multicast request, handing each entry of {@literal results} to handler as soon as it is
+   * read.
+   *
+   * @throws JsonReader.SyntaxException if the response is not valid JSON or misses a summary field.
+   * @throws IOException if the response could not be read.
+   */
+  static void parseMulticast(InputStream in, MulticastResponseHandler handler) throws IOException {
+    JsonReader reader = new JsonReader(in);
+    Long success = null;
+    Long failure = null;
+    Long canonicalIds = null;
+    Long multicastId = null;
+    int count = 0;
+
+    reader.beginObject();
+    while (reader.hasNext()) {
+      switch (reader.nextName()) {
+        case JSON_SUCCESS:
+          success = reader.nextLong();
+          break;
+        case JSON_FAILURE:
+          failure = reader.nextLong();
+          break;
+        case JSON_CANONICAL_IDS:
+          canonicalIds = reader.nextLong();
+          break;
+        case JSON_MULTICAST_ID:
+          multicastId = reader.nextLong();
+          break;
+        case JSON_RESULTS:
+          reader.beginArray();
+          while (reader.hasNext()) {
+            readResult(reader, handler, count++);
+          }
+          reader.endArray();
+          break;
+        default:
+          reader.skipValue();
+      }
+    }
+    reader.endObject();
+
+    handler.summary(required(success, JSON_SUCCESS).intValue(), required(failure, JSON_FAILURE).intValue(),
+        required(canonicalIds, JSON_CANONICAL_IDS).intValue(), required(multicastId, JSON_MULTICAST_ID), count);
+  }
+
+  /**
+   * Decodes the response of a request sent to a single registration token, notification key or topic.
+   *
+   * @param to recipient of the request.
+   *
+   * @return result of the request, or {@literal null} if the response was not the expected one and the request may be
+   * retried.
+   *
+   * @throws JsonReader.SyntaxException if the response is not valid JSON or is not recognized.
+   * @throws IOException if the response could not be read.
+   */
+  static GcmResult parseSingle(InputStream in, String to) throws IOException {
+    JsonReader reader = new JsonReader(in);
+    GcmResult.Builder result = null;
+    int results = -1;
+    String messageId = null;
+    String error = null;
+    Long success = null;
+    Long failure = null;
+    List<String> failedIds = null;
+
+    reader.beginObject();
+    while (reader.hasNext()) {
+      switch (reader.nextName()) {
+        case JSON_RESULTS:
+          // Handle response from message sent to specific device.
+          results = 0;
+          reader.beginArray();
+          while (reader.hasNext()) {
+            if (results++ == 0) {
+              SingleResult single = new SingleResult();
+              readResult(reader, single, 0);
+              result = single.builder;
+            } else {
+              reader.skipValue();
+            }
+          }
+          reader.endArray();
+          break;
+        case JSON_MESSAGE_ID:
+          // message_id is expected when this is the response from a topic message.
+          messageId = reader.nextScalar();
+          break;
+        case JSON_ERROR:
+          error = reader.nextString();
+          break;
+        case JSON_SUCCESS:
+          success = reader.nextLong();
+          break;
+        case JSON_FAILURE:
+          failure = reader.nextLong();
+          break;
+        case JSON_FAILED_REGISTRATION_IDS:
+          failedIds = new ArrayList<>();
+          reader.beginArray();
+          while (reader.hasNext()) {
+            failedIds.add(reader.nextString());
+          }
+          reader.endArray();
+          break;
+        default:
+          reader.skipValue();
+      }
+    }
+    reader.endObject();
+
+    if (results != -1) {
+      if (results != 1) {
+        L.warn("Found {} results, expected one", results);
+        return null;
+      }
+      return result.build();
+    } else if (to.startsWith(TOPIC_PREFIX)) {
+      if (messageId != null) {
+        return new GcmResult.Builder().messageId(messageId).build();
+      } else if (error != null) {
+        return new GcmResult.Builder().errorCode(error).build();
+      }
+      L.warn("Expected {} or {} in topic response", JSON_MESSAGE_ID, JSON_ERROR);
+      return null;
+    } else if (success != null && failure != null) {
+      // success and failure are expected when response is from group message.
+      return new GcmResult.Builder()
+          .success(success.intValue())
+          .failure(failure.intValue())
+          .failedRegistrationIds(failedIds)
+          .build();
+    }
+    throw new JsonReader.SyntaxException("Unrecognized response");
+  }
+
+  private static void readResult(JsonReader reader, MulticastResponseHandler handler, int index)
+      throws IOException {
+    String messageId = null;
+    String canonicalRegId = null;
+    String error = null;
+    reader.beginObject();
+    while (reader.hasNext()) {
+      switch (reader.nextName()) {
+        case JSON_MESSAGE_ID:
+          messageId = reader.nextScalar();
+          break;
+        case TOKEN_CANONICAL_REG_ID:
+          canonicalRegId = reader.nextString();
+          break;
+        case JSON_ERROR:
+          error = reader.nextString();
+          break;
+        default:
+          reader.skipValue();
+      }
+    }
+    reader.endObject();
+    handler.result(index, messageId, canonicalRegId, error);
+  }
+
+  private static Long required(Long value, String field) throws JsonReader.SyntaxException {
+    if (value == null) {
+      throw new JsonReader.SyntaxException("Missing field: " + field);
+    }
+    return value;
+  }
+
+  /**
+   * Keeps the single entry of a {@literal results} array.
+   */
+  private static final class SingleResult implements MulticastResponseHandler {
+
+    private GcmResult.Builder builder;
+
+    @Override
+    public void result(int index, String messageId, String canonicalRegistrationId, String error) {
+      builder = new GcmResult.Builder()
+          .messageId(messageId)
+          .canonicalRegistrationId(canonicalRegistrationId)
+          .errorCode(error);
+    }
+
+    @Override
+    public void summary(int success, int failure, int canonicalIds, long multicastId, int results) {
+    }
+  }
+}
@@ -26,7 +26,9 @@ import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.JoinColumn;
+import javax.persistence.SequenceGenerator;
 import javax.persistence.Table;
+import javax.persistence.Transient;
 import javax.validation.constraints.Size;
 import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlRootElement;
@@ -66,8 +68,18 @@ public class GcmResult implements Serializable {
 
   private static final long serialVersionUID = 1L;
 
+  /**
+   * Number of ids reserved from the sequence at once.
+   */
+  static final int ID_ALLOCATION_SIZE = 50;
+
+  /**
+   * Ids are taken from a sequence in blocks of {@value #ID_ALLOCATION_SIZE}, so that results can be inserted in JDBC
+   * batches, which identity columns prevent.
+   */
   @Id
-  @GeneratedValue(strategy = GenerationType.IDENTITY)
+  @SequenceGenerator(name = "gcm_result_id", sequenceName = "gcm_result_seq", allocationSize = ID_ALLOCATION_SIZE)
+  @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "gcm_result_id")
   @Basic(optional = false)
   @Column(nullable = false)
   private Long id;
@@ -95,6 +107,12 @@ public class GcmResult implements Serializable {
       foreignKey = @ForeignKey(name = "FK-gcm_result-failed_registration_ids")))
   private List<String> failedRegistrationIds;
 
+  /**
+   * Sequence number of the journal record of this result, 0 if it has none.
+   */
+  @Transient
+  private long journalSequence;
+
   protected GcmResult() {
   }
 
@@ -178,6 +196,14 @@ public class GcmResult implements Serializable {
     this.failedRegistrationIds = failedRegistrationIds;
   }
 
+  long getJournalSequence() {
+    return journalSequence;
+  }
+
+  void setJournalSequence(long journalSequence) {
+    this.journalSequence = journalSequence;
+  }
+
   @Override
   public String toString() {
     StringBuilder builder = new StringBuilder("[");
@@ -0,0 +1,62 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hextremelabs.gcm.client;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight Recorder event spanning the wait of a send before its next attempt. Only use it if {@link Jfr#AVAILABLE}.
+ */
+@Name("com.hextremelabs.gcm.RetryBackoff")
+@Label("GCM Retry Backoff")
+@Category("GCM")
+final class GcmRetryBackoffEvent extends Event {
+
+  @Label("Failed Attempt")
+  int attempt;
+
+  @Label("Delay")
+  @Timespan(Timespan.MILLISECONDS)
+  long delay;
+
+  @Label("Retry-After")
+  @Timespan(Timespan.MILLISECONDS)
+  long retryAfter;
+
+  /**
+   * Wraps the next attempt of a send so that it commits the event, which begins now, before running.
+   *
+   * @return task itself if the event is not recorded.
+   */
+  static Runnable wrap(Runnable task, int attempt, long delay, long retryAfter) {
+    GcmRetryBackoffEvent event = new GcmRetryBackoffEvent();
+    if (!event.isEnabled()) {
+      return task;
+    }
+    event.attempt = attempt;
+    event.delay = delay;
+    event.retryAfter = retryAfter;
+    event.begin();
+    return () -> {
+      event.commit();
+      task.run();
+    };
+  }
+}
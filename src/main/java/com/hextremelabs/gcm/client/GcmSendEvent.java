@@ -0,0 +1,71 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hextremelabs.gcm.client;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event spanning one post to GCM, up to its response headers. Only use it if {@link Jfr#AVAILABLE}.
+ */
+@Name("com.hextremelabs.gcm.Send")
+@Label("GCM Send")
+@Category("GCM")
+final class GcmSendEvent extends Event {
+
+  @Label("Recipients")
+  int recipients;
+
+  @Label("Payload Size")
+  @DataAmount
+  int payloadBytes;
+
+  @Label("Status")
+  int status = -1;
+
+  @Label("Attempt")
+  int attempt;
+
+  @Label("Error")
+  String error;
+
+  static GcmSendEvent start() {
+    GcmSendEvent event = new GcmSendEvent();
+    event.begin();
+    return event;
+  }
+
+  /**
+   * Ends the event, and commits it if it is recorded.
+   *
+   * @param status HTTP status of the response, -1 if there was none.
+   * @param error exception that prevented the post, if any.
+   */
+  void complete(int recipients, int payloadBytes, int attempt, int status, Exception error) {
+    end();
+    if (shouldCommit()) {
+      this.recipients = recipients;
+      this.payloadBytes = payloadBytes;
+      this.attempt = attempt;
+      this.status = status;
+      this.error = error == null ? null : error.toString();
+      commit();
+    }
+  }
+}
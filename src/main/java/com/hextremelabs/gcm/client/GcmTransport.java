@@ -0,0 +1,55 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hextremelabs.gcm.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Transport used by {@link Sender} to post requests to GCM.
+ *
+ * <p>
+ * The default transport is {@link HttpUrlConnectionTransport}. A different one, such as {@link PooledHttpTransport}
+ * or {@link Http2Transport}, can be plugged in by exposing it as a CDI bean, for example from an application scoped producer method.
+ *
+ * <p>
+ * Implementations must be safe for use by many threads at once.
+ */
+public interface GcmTransport extends Closeable {
+
+  /**
+   * Makes an HTTP POST request to a given endpoint.
+   *
+   * @param url endpoint to post the request.
+   * @param contentType type of request.
+   * @param authorization value of the {@literal Authorization} header.
+   * @param body buffer holding the body of the request.
+   * @param length number of bytes of body to send, starting from the first one.
+   *
+   * @return the response, which the caller must close once it has been read.
+   *
+   * @throws IOException if the request could not be sent or no response was received.
+   */
+  GcmResponse post(String url, String contentType, String authorization, byte[] body, int length)
+      throws IOException;
+
+  /**
+   * Releases any connection held by this transport.
+   */
+  @Override
+  default void close() throws IOException {
+  }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hextremelabs.gcm.client;
+
+import org.apache.hc.client5.http.async.methods.SimpleHttpRequest;
+import org.apache.hc.client5.http.async.methods.SimpleHttpResponse;
+import org.apache.hc.client5.http.async.methods.SimpleRequestBuilder;
+import org.apache.hc.client5.http.config.ConnectionConfig;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.client5.http.impl.async.HttpAsyncClients;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http2.config.H2Config;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.reactor.IOReactorConfig;
+import org.apache.hc.core5.util.Timeout;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link GcmTransport} multiplexing concurrent requests as HTTP/2 streams over a few connections.
+ *
+ * <p>
+ * Requests are spread round-robin over {@link Builder#connections(int)} clients, each keeping one HTTP/2 connection
+ * per route. At most {@link Builder#maxConcurrentStreams(int)} streams per connection are open in total; further
+ * requests wait up to the connect timeout for a stream to be released.
+ *
+ * <p>
+ * {@literal https} URLs negotiate HTTP/2 through ALPN, which needs Java 8u252 or later. {@literal http} URLs use
+ * cleartext HTTP/2 with prior knowledge, which allows pointing the transport at a local h2c server such as the mock
+ * server of the {@literal mock-server} module started with {@literal http2(true)}.
+ *
+ * <p>
+ * This transport needs Apache HttpClient 5 on the classpath, which is an optional dependency of this library.
+ */
+public final class Http2Transport implements GcmTransport {
+
+  private final CloseableHttpAsyncClient[] clients;
+  private final Semaphore streams;
+  private final AtomicInteger next = new AtomicInteger();
+  private final int connectTimeout;
+  private final int readTimeout;
+
+  private Http2Transport(Builder builder) {
+    connectTimeout = builder.connectTimeout;
+    readTimeout = builder.readTimeout;
+    streams = new Semaphore(builder.connections * builder.maxConcurrentStreams, true);
+    clients = new CloseableHttpAsyncClient[builder.connections];
+    for (int i = 0; i < clients.length; i++) {
+      clients[i] = HttpAsyncClients.customHttp2()
+          .setH2Config(H2Config.custom()
+              .setMaxConcurrentStreams(builder.maxConcurrentStreams)
+              .setPushEnabled(false)
+              .build())
+          .setIOReactorConfig(IOReactorConfig.custom()
+              .setIoThreadCount(1)
+              .setSoTimeout(Timeout.ofMilliseconds(readTimeout))
+              .build())
+          .setDefaultConnectionConfig(ConnectionConfig.custom()
+              .setConnectTimeout(Timeout.ofMilliseconds(connectTimeout))
+              .setSocketTimeout(Timeout.ofMilliseconds(readTimeout))
+              .build())
+          .setDefaultRequestConfig(RequestConfig.custom()
+              .setResponseTimeout(Timeout.ofMilliseconds(readTimeout))
+              .build())
+          .build();
+      clients[i].start();
+    }
+  }
+
+  @Override
+  public GcmResponse post(String url, String contentType, String authorization, byte[] body, int length)
+      throws IOException {
+    if (url == null || contentType == null || body == null) {
+      throw new IllegalArgumentException("arguments cannot be null");
+    }
+
+    SimpleRequestBuilder requestBuilder = SimpleRequestBuilder.post(url)
+        .setBody(length == body.length ? body : Arrays.copyOf(body, length), ContentType.parse(contentType));
+    if (authorization != null) {
+      requestBuilder.addHeader("Authorization", authorization);
+    }
+    SimpleHttpRequest request = requestBuilder.build();
+
+    acquireStream();
+    try {
+      CloseableHttpAsyncClient client = clients[Math.floorMod(next.getAndIncrement(), clients.length)];
+      Future<SimpleHttpResponse> future = client.execute(request, null);
+      SimpleHttpResponse response = await(future);
+      Map<String, String> headers = new HashMap<>();
+      for (Header header : response.getHeaders()) {
+        headers.putIfAbsent(header.getName(), header.getValue());
+      }
+      byte[] responseBody = response.getBodyBytes();
+      return new GcmResponse(response.getCode(), headers,
+          responseBody == null ? null : new ByteArrayInputStream(responseBody));
+    } finally {
+      streams.release();
+    }
+  }
+
+  private void acquireStream() throws IOException {
+    try {
+      if (!streams.tryAcquire(connectTimeout, TimeUnit.MILLISECONDS)) {
+        throw new IOException("Timed out waiting for a free HTTP/2 stream");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted waiting for a free HTTP/2 stream");
+    }
+  }
+
+  private SimpleHttpResponse await(Future<SimpleHttpResponse> future) throws IOException {
+    try {
+      // the client enforces the connect and response timeouts, this only guards against a stuck exchange
+      return future.get((long) connectTimeout + readTimeout, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      future.cancel(true);
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted waiting for HTTP/2 response");
+    } catch (TimeoutException e) {
+      future.cancel(true);
+      throw new IOException("Timed out waiting for HTTP/2 response", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+    }
+  }
+
+  @Override
+  public void close() {
+    for (CloseableHttpAsyncClient client : clients) {
+      client.close(CloseMode.GRACEFUL);
+    }
+  }
+
+  public static final class Builder {
+
+    private int connections = 1;
+    private int maxConcurrentStreams = 100;
+    private int connectTimeout = 10000;
+    private int readTimeout = 30000;
+
+    /**
+     * Sets the number of HTTP/2 connections kept per route (default value is {@literal 1}).
+     */
+    public Builder connections(int value) {
+      if (value < 1) {
+        throw new IllegalArgumentException("connections must be positive");
+      }
+      connections = value;
+      return this;
+    }
+
+    /**
+     * Sets the maximum number of streams open at once on each connection (default value is {@literal 100}).
+     */
+    public Builder maxConcurrentStreams(int value) {
+      if (value < 1) {
+        throw new IllegalArgumentException("maxConcurrentStreams must be positive");
+      }
+      maxConcurrentStreams = value;
+      return this;
+    }
+
+    /**
+     * Sets the timeout, in milliseconds, for connecting and for waiting on a free stream (default value is
+     * {@literal 10000}).
+     */
+    public Builder connectTimeout(int value) {
+      connectTimeout = value;
+      return this;
+    }
+
+    /**
+     * Sets the timeout, in milliseconds, for each response (default value is {@literal 30000}).
+     */
+    public Builder readTimeout(int value) {
+      readTimeout = value;
+      return this;
+    }
+
+    public Http2Transport build() {
+      return new Http2Transport(this);
+    }
+  }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hextremelabs.gcm.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link GcmTransport} backed by {@link HttpURLConnection}.
+ *
+ * <p>
+ * A new connection is opened for every request, and reuse is left to the JDK's keep-alive cache.
+ */
+public class HttpUrlConnectionTransport implements GcmTransport {
+
+  protected static final Logger L = LoggerFactory.getLogger(HttpUrlConnectionTransport.class);
+
+  private final int connectTimeout;
+  private final int readTimeout;
+
+  /**
+   * Creates a transport using the JDK's default timeouts.
+   */
+  public HttpUrlConnectionTransport() {
+    this(0, 0);
+  }
+
+  /**
+   * @param connectTimeout connect timeout in milliseconds, {@literal 0} meaning no timeout.
+   * @param readTimeout read timeout in milliseconds, {@literal 0} meaning no timeout.
+   */
+  public HttpUrlConnectionTransport(int connectTimeout, int readTimeout) {
+    this.connectTimeout = connectTimeout;
+    this.readTimeout = readTimeout;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>
+   * <strong>Note: </strong> the underlying connection is never disconnected, otherwise it would kill persistent
+   * connections made using Keep-Alive.
+   */
+  @Override
+  public GcmResponse post(String url, String contentType, String authorization, byte[] body, int length)
+      throws IOException {
+    if (url == null || contentType == null || body == null) {
+      throw new IllegalArgumentException("arguments cannot be null");
+    }
+    if (!url.startsWith("https://")) {
+      L.warn("URL does not use https: {}", url);
+    }
+
+    L.debug("Sending POST to {}", url);
+    HttpURLConnection conn = getConnection(url);
+    conn.setConnectTimeout(connectTimeout);
+    conn.setReadTimeout(readTimeout);
+    conn.setDoOutput(true);
+    conn.setUseCaches(false);
+    conn.setFixedLengthStreamingMode(length);
+    conn.setRequestMethod("POST");
+    conn.setRequestProperty("Content-Type", contentType);
+    if (authorization != null) {
+      conn.setRequestProperty("Authorization", authorization);
+    }
+
+    long started = System.nanoTime();
+    conn.connect();
+    long connected = System.nanoTime();
+    try (OutputStream out = conn.getOutputStream()) {
+      out.write(body, 0, length);
+    }
+    long written = System.nanoTime();
+
+    int status = conn.getResponseCode();
+    long firstByte = System.nanoTime();
+    Map<String, String> headers = new HashMap<>();
+    for (Map.Entry<String, List<String>> header : conn.getHeaderFields().entrySet()) {
+      if (header.getKey() != null && !header.getValue().isEmpty()) {
+        headers.put(header.getKey(), header.getValue().get(0));
+      }
+    }
+    return new GcmResponse(status, headers, status == 200 ? conn.getInputStream() : conn.getErrorStream())
+        .timings(connected - started, written - connected, firstByte - written);
+  }
+
+  /**
+   * Gets an {@link HttpURLConnection} given an URL.
+   */
+  protected HttpURLConnection getConnection(String url) throws IOException {
+    return (HttpURLConnection) new URL(url).openConnection();
+  }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hextremelabs.gcm.client;
+
+/**
+ * Tells whether the Java Flight Recorder event API is available, which it is on Java 8u262 and later.
+ *
+ * <p>
+ * The event classes of this package extend {@code jdk.jfr.Event}, so they must not be touched unless
+ * {@link #AVAILABLE} is {@literal true}.
+ */
+final class Jfr {
+
+  static final boolean AVAILABLE = isAvailable();
+
+  private Jfr() {
+  }
+
+  private static boolean isAvailable() {
+    try {
+      Class.forName("jdk.jfr.Event", false, Jfr.class.getClassLoader());
+      return true;
+    } catch (ClassNotFoundException | LinkageError e) {
+      return false;
+    }
+  }
+}
@@ -0,0 +1,475 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hextremelabs.gcm.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of records that must survive a restart until they are acknowledged, stored in memory-mapped
+ * segment files.
+ *
+ * <p>
+ * Each record is written as its payload length, type, sequence number, payload and a CRC32, so that a torn write at the
+ * end of a segment is detected and ignored on replay. Acknowledging a record appends an {@link #ACK} record. A background
+ * thread forces written segments to disk, so concurrent appends share one fsync; {@link #awaitDurable(long)} waits for
+ * it.
+ *
+ * <p>
+ * Segments are rolled over once full. The oldest segments are deleted once all of their records are acknowledged, and
+ * the oldest one is compacted, its live records copied forward, if few of them remain.
+ */
+final class Journal implements Closeable {
+
+  /**
+   * Record of a send that has not completed yet.
+   */
+  static final byte SEND = 1;
+
+  /**
+   * Record of a result that has not been persisted yet.
+   */
+  static final byte RESULT = 2;
+
+  /**
+   * Record acknowledging another one, whose sequence number is its payload.
+   */
+  static final byte ACK = 3;
+
+  private static final Logger L = LoggerFactory.getLogger(Journal.class);
+
+  /**
+   * Payload length, type and sequence number.
+   */
+  private static final int HEADER_SIZE = 4 + 1 + 8;
+
+  private static final int CRC_SIZE = 4;
+
+  private final Path directory;
+  private final int segmentSize;
+  private final long syncInterval;
+  private final TreeMap<Long, Segment> segments = new TreeMap<>();
+  private final Map<Long, Location> live = new HashMap<>();
+  private final Thread syncer;
+  private List<Record> recovered;
+  private Segment active;
+  private long nextSequence = 1;
+  private long written;
+  private long synced;
+  private boolean compacting;
+  private boolean closed;
+
+  /**
+   * Opens the journal kept in directory, reading back the records that were not acknowledged.
+   *
+   * @param directory directory holding the segment files, created if needed.
+   * @param segmentSize size of each segment file, in bytes.
+   * @param syncInterval time, in milliseconds, the syncer waits after an fsync for more records to accumulate.
+   */
+  Journal(Path directory, int segmentSize, long syncInterval) throws IOException {
+    if (segmentSize < 4096) {
+      throw new IllegalArgumentException("segmentSize must be at least 4096 bytes");
+    }
+    this.directory = Files.createDirectories(directory);
+    this.segmentSize = segmentSize;
+    this.syncInterval = syncInterval;
+    recovered = replay();
+    active = openSegment(segments.isEmpty() ? 1 : segments.lastKey() + 1);
+    deleteAcknowledgedSegments();
+    syncer = new Thread(this::sync, "gcm-journal-sync");
+    syncer.setDaemon(true);
+    syncer.start();
+  }
+
+  /**
+   * Returns the records that were not acknowledged when the journal was last closed, in sequence order, and forgets
+   * them. They remain live until acknowledged.
+   */
+  synchronized List<Record> recover() {
+    List<Record> records = recovered;
+    recovered = new ArrayList<>();
+    return records;
+  }
+
+  /**
+   * Appends a record.
+   *
+   * @return sequence number of the record, used to acknowledge it and to wait for it to be durable.
+   *
+   * @throws IOException if the record is larger than a segment or a new segment could not be created.
+   */
+  synchronized long append(byte type, byte[] payload) throws IOException {
+    return append(type, nextSequence++, payload);
+  }
+
+  private long append(byte type, long sequence, byte[] payload) throws IOException {
+    if (closed) {
+      throw new IOException("Journal is closed");
+    }
+    int size = HEADER_SIZE + payload.length + CRC_SIZE;
+    if (size > segmentSize) {
+      throw new IOException("Record of " + payload.length + " bytes does not fit in a journal segment");
+    }
+    if (active.buffer.remaining() < size) {
+      roll();
+    }
+
+    MappedByteBuffer buffer = active.buffer;
+    int offset = buffer.position();
+    buffer.putInt(payload.length).put(type).putLong(sequence).put(payload);
+    buffer.putInt(crc(buffer, offset, size - CRC_SIZE));
+    if (type != ACK) {
+      live.put(sequence, new Location(active, offset, size));
+      active.live++;
+      active.liveBytes += size;
+    }
+    written = Math.max(written, sequence);
+    notifyAll();
+    return sequence;
+  }
+
+  /**
+   * Gets the size, in bytes, of the largest payload a record can hold.
+   */
+  int maxPayloadSize() {
+    return segmentSize - HEADER_SIZE - CRC_SIZE;
+  }
+
+  /**
+   * Acknowledges a record, which will not be recovered again. Unknown or already acknowledged sequence numbers are
+   * ignored.
+   */
+  synchronized void acknowledge(long sequence) {
+    Location location = live.remove(sequence);
+    if (location == null) {
+      return;
+    }
+    location.segment.live--;
+    location.segment.liveBytes -= location.size;
+    try {
+      append(ACK, nextSequence++, ByteBuffer.allocate(8).putLong(sequence).array());
+    } catch (IOException e) {
+      L.warn("Could not acknowledge journal record {}, it will be recovered again", sequence, e);
+    }
+  }
+
+  /**
+   * Waits until the record with the given sequence number, and every one before it, has been forced to disk.
+   */
+  synchronized void awaitDurable(long sequence) throws InterruptedException {
+    while (synced < sequence && !closed) {
+      wait();
+    }
+  }
+
+  /**
+   * Gets the number of records not acknowledged yet.
+   */
+  synchronized int size() {
+    return live.size();
+  }
+
+  @Override
+  public void close() throws IOException {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      notifyAll();
+    }
+    try {
+      syncer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    synchronized (this) {
+      active.buffer.force();
+      for (Segment segment : segments.values()) {
+        segment.channel.close();
+      }
+    }
+  }
+
+  /**
+   * Forces written records to disk until closed, waiting syncInterval between two fsyncs so that they are shared.
+   */
+  private void sync() {
+    while (true) {
+      MappedByteBuffer buffer;
+      long target;
+      synchronized (this) {
+        while (synced >= written && !closed) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+        if (closed) {
+          return;
+        }
+        // records of earlier segments were forced when they were rolled over
+        buffer = active.buffer;
+        target = written;
+      }
+      buffer.force();
+      synchronized (this) {
+        synced = Math.max(synced, target);
+        notifyAll();
+      }
+      try {
+        Thread.sleep(syncInterval);
+      } catch (InterruptedException e) {
+        return;
+      }
+    }
+  }
+
+  private void roll() throws IOException {
+    active.buffer.force();
+    active = openSegment(active.number + 1);
+    L.debug("Rolled journal over to segment {}", active.number);
+    if (!compacting) {
+      compact();
+    }
+  }
+
+  /**
+   * Deletes the oldest segments that have no live record, then copies the live records of the oldest remaining segment
+   * forward if they take less than a quarter of it, so that it can be deleted as well.
+   */
+  private void compact() throws IOException {
+    deleteAcknowledgedSegments();
+    Segment oldest = segments.firstEntry().getValue();
+    if (oldest == active || oldest.liveBytes >= segmentSize / 4) {
+      return;
+    }
+
+    compacting = true;
+    try {
+      List<Location> locations = new ArrayList<>(oldest.live);
+      for (Location location : live.values()) {
+        if (location.segment == oldest) {
+          locations.add(location);
+        }
+      }
+      for (Location location : locations) {
+        ByteBuffer record = oldest.buffer.duplicate();
+        record.position(location.offset);
+        byte[] payload = new byte[record.getInt()];
+        byte type = record.get();
+        long sequence = record.getLong();
+        record.get(payload);
+        // keep the sequence number, so that the record is still acknowledged with it
+        append(type, sequence, payload);
+      }
+      oldest.live = 0;
+      oldest.liveBytes = 0;
+      active.buffer.force();
+      deleteAcknowledgedSegments();
+    } finally {
+      compacting = false;
+    }
+  }
+
+  private void deleteAcknowledgedSegments() throws IOException {
+    // only a prefix can go: a later segment may hold the acknowledgements of an earlier one
+    while (segments.size() > 1) {
+      Segment oldest = segments.firstEntry().getValue();
+      if (oldest == active || oldest.live > 0) {
+        return;
+      }
+      segments.remove(oldest.number);
+      oldest.channel.close();
+      Files.delete(oldest.path);
+      L.debug("Deleted journal segment {}", oldest.number);
+    }
+  }
+
+  private List<Record> replay() throws IOException {
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "segment-*.log")) {
+      for (Path path : files) {
+        String name = path.getFileName().toString();
+        long number = Long.parseLong(name.substring("segment-".length(), name.length() - ".log".length()));
+        segments.put(number, mapSegment(number, path));
+      }
+    }
+
+    TreeMap<Long, Record> records = new TreeMap<>();
+    for (Segment segment : segments.values()) {
+      MappedByteBuffer buffer = segment.buffer;
+      while (buffer.remaining() >= HEADER_SIZE + CRC_SIZE) {
+        int offset = buffer.position();
+        int length = buffer.getInt(offset);
+        int size = HEADER_SIZE + length + CRC_SIZE;
+        if (length <= 0 || size > buffer.remaining()
+            || buffer.getInt(offset + size - CRC_SIZE) != crc(buffer, offset, size - CRC_SIZE)) {
+          // end of the segment, or a record torn by a crash
+          break;
+        }
+        buffer.position(offset + 4);
+        byte type = buffer.get();
+        long sequence = buffer.getLong();
+        byte[] payload = new byte[length];
+        buffer.get(payload);
+        buffer.position(offset + size);
+        nextSequence = Math.max(nextSequence, sequence + 1);
+
+        if (type == ACK) {
+          long acknowledged = ByteBuffer.wrap(payload).getLong();
+          records.remove(acknowledged);
+          Location location = live.remove(acknowledged);
+          if (location != null) {
+            location.segment.live--;
+            location.segment.liveBytes -= location.size;
+          }
+        } else {
+          Location previous = live.put(sequence, new Location(segment, offset, size));
+          if (previous != null) {
+            // copied forward by a compaction that did not get to delete the original
+            previous.segment.live--;
+            previous.segment.liveBytes -= previous.size;
+          }
+          segment.live++;
+          segment.liveBytes += size;
+          records.put(sequence, new Record(sequence, type, payload));
+        }
+      }
+    }
+    written = nextSequence - 1;
+    synced = written;
+    if (!records.isEmpty()) {
+      L.info("Recovered {} journal records from {}", records.size(), directory);
+    }
+    return new ArrayList<>(records.values());
+  }
+
+  private Segment openSegment(long number) throws IOException {
+    Segment segment = mapSegment(number, directory.resolve(String.format("segment-%016d.log", number)));
+    segments.put(number, segment);
+    return segment;
+  }
+
+  private Segment mapSegment(long number, Path path) throws IOException {
+    FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+    try {
+      // a new file is zero-filled, and a zero length marks the end of the records
+      return new Segment(number, path, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize));
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  private static int crc(ByteBuffer buffer, int offset, int length) {
+    ByteBuffer slice = buffer.duplicate();
+    slice.limit(offset + length).position(offset);
+    CRC32 crc = new CRC32();
+    crc.update(slice);
+    return (int) crc.getValue();
+  }
+
+  /**
+   * Serializes a payload for {@link #append(byte, byte[])}.
+   */
+  static byte[] encode(Serializable value) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      out.writeObject(value);
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Deserializes a payload written by {@link #encode(Serializable)}.
+   */
+  static Object decode(byte[] payload) throws IOException {
+    try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(payload))) {
+      return in.readObject();
+    } catch (ClassNotFoundException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * Record read back from the journal.
+   */
+  static final class Record {
+
+    final long sequence;
+    final byte type;
+    final byte[] payload;
+
+    Record(long sequence, byte type, byte[] payload) {
+      this.sequence = sequence;
+      this.type = type;
+      this.payload = payload;
+    }
+  }
+
+  private static final class Segment {
+
+    final long number;
+    final Path path;
+    final FileChannel channel;
+    final MappedByteBuffer buffer;
+    int live;
+    long liveBytes;
+
+    Segment(long number, Path path, FileChannel channel, MappedByteBuffer buffer) {
+      this.number = number;
+      this.path = path;
+      this.channel = channel;
+      this.buffer = buffer;
+    }
+  }
+
+  private static final class Location {
+
+    final Segment segment;
+    final int offset;
+    final int size;
+
+    Location(Segment segment, int offset, int size) {
+      this.segment = segment;
+      this.offset = offset;
+      this.size = size;
+    }
+  }
+}
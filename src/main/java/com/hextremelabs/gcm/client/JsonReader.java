@@ -0,0 +1,326 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hextremelabs.gcm.client;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Minimal pull parser reading UTF-8 JSON straight from a stream, one token at a time.
+ *
+ * <p>
+ * Only what is needed to decode GCM responses is supported. Values are read with the {@literal next*} methods and
+ * members are separated implicitly: call {@link #hasNext()} before each member of an object or element of an array.
+ *
+ * <p>
+ * Instances are not thread safe.
+ */
+final class JsonReader {
+
+  private final InputStream in;
+  private final byte[] buffer;
+  private final StringBuilder chars = new StringBuilder(64);
+  private int pos;
+  private int limit;
+
+  JsonReader(InputStream in) {
+    this(in, 8192);
+  }
+
+  JsonReader(InputStream in, int bufferSize) {
+    this.in = in;
+    buffer = new byte[bufferSize];
+  }
+
+  void beginObject() throws IOException {
+    expect('{');
+  }
+
+  void endObject() throws IOException {
+    expect('}');
+  }
+
+  void beginArray() throws IOException {
+    expect('[');
+  }
+
+  void endArray() throws IOException {
+    expect(']');
+  }
+
+  /**
+   * Tells whether the current object or array has another member, consuming the comma before it, if any.
+   */
+  boolean hasNext() throws IOException {
+    int c = peek();
+    if (c == ',') {
+      pos++;
+      c = peek();
+    }
+    return c != '}' && c != ']';
+  }
+
+  /**
+   * Gets the first character of the next value without consuming it: {@literal "}, {@literal {}, {@literal [},
+   * {@literal n}, {@literal t}, {@literal f}, or the first character of a number.
+   */
+  int peek() throws IOException {
+    while (true) {
+      if (pos == limit && !fill()) {
+        throw new EOFException("Unexpected end of JSON input");
+      }
+      byte b = buffer[pos];
+      if (b == ' ' || b == '\t' || b == '\n' || b == '\r') {
+        pos++;
+      } else {
+        return b;
+      }
+    }
+  }
+
+  /**
+   * Reads a member name and the colon after it.
+   */
+  String nextName() throws IOException {
+    String name = nextString();
+    expect(':');
+    return name;
+  }
+
+  /**
+   * Reads a string, or returns {@literal null} if the value is null.
+   */
+  String nextString() throws IOException {
+    int c = peek();
+    if (c == 'n') {
+      nextNull();
+      return null;
+    }
+    if (c != '"') {
+      throw syntaxError("Expected a string");
+    }
+    pos++;
+    chars.setLength(0);
+    while (true) {
+      int b = read();
+      if (b == '"') {
+        return chars.toString();
+      } else if (b == '\\') {
+        readEscape();
+      } else if (b < 0x80) {
+        chars.append((char) b);
+      } else {
+        readMultiByte(b);
+      }
+    }
+  }
+
+  /**
+   * Reads a number, returning its literal text so that no precision is lost, or {@literal null} if the value is null.
+   * Strings are returned as they are, since some fields may be sent either way.
+   */
+  String nextScalar() throws IOException {
+    int c = peek();
+    if (c == '"' || c == 'n') {
+      return nextString();
+    }
+    chars.setLength(0);
+    while (true) {
+      if (pos == limit && !fill()) {
+        break;
+      }
+      byte b = buffer[pos];
+      if ((b >= '0' && b <= '9') || b == '-' || b == '+' || b == '.' || b == 'e' || b == 'E') {
+        chars.append((char) b);
+        pos++;
+      } else {
+        break;
+      }
+    }
+    if (chars.length() == 0) {
+      throw syntaxError("Expected a number");
+    }
+    return chars.toString();
+  }
+
+  /**
+   * Reads a number as a long.
+   */
+  long nextLong() throws IOException {
+    String value = nextScalar();
+    if (value == null) {
+      throw syntaxError("Expected a number but was null");
+    }
+    try {
+      return Long.parseLong(value);
+    } catch (NumberFormatException e) {
+      try {
+        return (long) Double.parseDouble(value);
+      } catch (NumberFormatException e2) {
+        throw syntaxError("Expected a number but was " + value);
+      }
+    }
+  }
+
+  void nextNull() throws IOException {
+    expectLiteral("null");
+  }
+
+  /**
+   * Skips the next value, including nested objects and arrays.
+   */
+  void skipValue() throws IOException {
+    int c = peek();
+    switch (c) {
+      case '{':
+        beginObject();
+        while (hasNext()) {
+          nextName();
+          skipValue();
+        }
+        endObject();
+        break;
+      case '[':
+        beginArray();
+        while (hasNext()) {
+          skipValue();
+        }
+        endArray();
+        break;
+      case 't':
+        expectLiteral("true");
+        break;
+      case 'f':
+        expectLiteral("false");
+        break;
+      default:
+        nextScalar();
+    }
+  }
+
+  private void readEscape() throws IOException {
+    int b = read();
+    switch (b) {
+      case '"':
+      case '\\':
+      case '/':
+        chars.append((char) b);
+        break;
+      case 'b':
+        chars.append('\b');
+        break;
+      case 'f':
+        chars.append('\f');
+        break;
+      case 'n':
+        chars.append('\n');
+        break;
+      case 'r':
+        chars.append('\r');
+        break;
+      case 't':
+        chars.append('\t');
+        break;
+      case 'u':
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+          int digit = Character.digit(read(), 16);
+          if (digit == -1) {
+            throw syntaxError("Malformed unicode escape");
+          }
+          value = (value << 4) | digit;
+        }
+        chars.append((char) value);
+        break;
+      default:
+        throw syntaxError("Invalid escape");
+    }
+  }
+
+  private void readMultiByte(int first) throws IOException {
+    int codePoint;
+    int continuation;
+    if ((first & 0xe0) == 0xc0) {
+      codePoint = first & 0x1f;
+      continuation = 1;
+    } else if ((first & 0xf0) == 0xe0) {
+      codePoint = first & 0x0f;
+      continuation = 2;
+    } else if ((first & 0xf8) == 0xf0) {
+      codePoint = first & 0x07;
+      continuation = 3;
+    } else {
+      throw syntaxError("Malformed UTF-8");
+    }
+    for (int i = 0; i < continuation; i++) {
+      int b = read();
+      if ((b & 0xc0) != 0x80) {
+        throw syntaxError("Malformed UTF-8");
+      }
+      codePoint = (codePoint << 6) | (b & 0x3f);
+    }
+    chars.appendCodePoint(codePoint);
+  }
+
+  private void expect(char c) throws IOException {
+    if (peek() != c) {
+      throw syntaxError("Expected '" + c + "'");
+    }
+    pos++;
+  }
+
+  private void expectLiteral(String literal) throws IOException {
+    for (int i = 0; i < literal.length(); i++) {
+      if (read() != literal.charAt(i)) {
+        throw syntaxError("Expected " + literal);
+      }
+    }
+  }
+
+  private int read() throws IOException {
+    if (pos == limit && !fill()) {
+      throw new EOFException("Unexpected end of JSON input");
+    }
+    return buffer[pos++] & 0xff;
+  }
+
+  private boolean fill() throws IOException {
+    int read = in.read(buffer, 0, buffer.length);
+    if (read <= 0) {
+      return false;
+    }
+    pos = 0;
+    limit = read;
+    return true;
+  }
+
+  private IOException syntaxError(String message) {
+    return new SyntaxException(message + " in JSON response");
+  }
+
+  /**
+   * Thrown when the input is not valid JSON, as opposed to an {@link IOException} reading it.
+   */
+  static final class SyntaxException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    SyntaxException(String message) {
+      super(message);
+    }
+  }
+}
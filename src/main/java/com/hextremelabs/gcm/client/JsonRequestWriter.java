@@ -0,0 +1,429 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hextremelabs.gcm.client;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import static com.hextremelabs.gcm.client.Constants.JSON_NOTIFICATION;
+import static com.hextremelabs.gcm.client.Constants.JSON_NOTIFICATION_BADGE;
+import static com.hextremelabs.gcm.client.Constants.JSON_NOTIFICATION_BODY;
+import static com.hextremelabs.gcm.client.Constants.JSON_NOTIFICATION_BODY_LOC_ARGS;
+import static com.hextremelabs.gcm.client.Constants.JSON_NOTIFICATION_BODY_LOC_KEY;
+import static com.hextremelabs.gcm.client.Constants.JSON_NOTIFICATION_CLICK_ACTION;
+import static com.hextremelabs.gcm.client.Constants.JSON_NOTIFICATION_COLOR;
+import static com.hextremelabs.gcm.client.Constants.JSON_NOTIFICATION_ICON;
+import static com.hextremelabs.gcm.client.Constants.JSON_NOTIFICATION_SOUND;
+import static com.hextremelabs.gcm.client.Constants.JSON_NOTIFICATION_TAG;
+import static com.hextremelabs.gcm.client.Constants.JSON_NOTIFICATION_TITLE;
+import static com.hextremelabs.gcm.client.Constants.JSON_NOTIFICATION_TITLE_LOC_ARGS;
+import static com.hextremelabs.gcm.client.Constants.JSON_NOTIFICATION_TITLE_LOC_KEY;
+import static com.hextremelabs.gcm.client.Constants.JSON_PAYLOAD;
+import static com.hextremelabs.gcm.client.Constants.JSON_REGISTRATION_IDS;
+import static com.hextremelabs.gcm.client.Constants.JSON_TO;
+import static com.hextremelabs.gcm.client.Constants.PARAM_COLLAPSE_KEY;
+import static com.hextremelabs.gcm.client.Constants.PARAM_CONTENT_AVAILABLE;
+import static com.hextremelabs.gcm.client.Constants.PARAM_DELAY_WHILE_IDLE;
+import static com.hextremelabs.gcm.client.Constants.PARAM_DRY_RUN;
+import static com.hextremelabs.gcm.client.Constants.PARAM_PRIORITY;
+import static com.hextremelabs.gcm.client.Constants.PARAM_RESTRICTED_PACKAGE_NAME;
+import static com.hextremelabs.gcm.client.Constants.PARAM_TIME_TO_LIVE;
+
+/**
+ * Writes GCM JSON requests as UTF-8 straight into a growable byte buffer, which can be reused across requests.
+ *
+ * <p>
+ * Field names are encoded once, from {@link Constants}. Fields with {@literal null} values are omitted.
+ *
+ * <p>
+ * Instances are not thread safe.
+ */
+final class JsonRequestWriter {
+
+  private static final byte[] PRIORITY = fieldName(PARAM_PRIORITY);
+  private static final byte[] CONTENT_AVAILABLE = fieldName(PARAM_CONTENT_AVAILABLE);
+  private static final byte[] TIME_TO_LIVE = fieldName(PARAM_TIME_TO_LIVE);
+  private static final byte[] COLLAPSE_KEY = fieldName(PARAM_COLLAPSE_KEY);
+  private static final byte[] RESTRICTED_PACKAGE_NAME = fieldName(PARAM_RESTRICTED_PACKAGE_NAME);
+  private static final byte[] DELAY_WHILE_IDLE = fieldName(PARAM_DELAY_WHILE_IDLE);
+  private static final byte[] DRY_RUN = fieldName(PARAM_DRY_RUN);
+  private static final byte[] PAYLOAD = fieldName(JSON_PAYLOAD);
+  private static final byte[] NOTIFICATION = fieldName(JSON_NOTIFICATION);
+  private static final byte[] NOTIFICATION_BADGE = fieldName(JSON_NOTIFICATION_BADGE);
+  private static final byte[] NOTIFICATION_BODY = fieldName(JSON_NOTIFICATION_BODY);
+  private static final byte[] NOTIFICATION_BODY_LOC_ARGS = fieldName(JSON_NOTIFICATION_BODY_LOC_ARGS);
+  private static final byte[] NOTIFICATION_BODY_LOC_KEY = fieldName(JSON_NOTIFICATION_BODY_LOC_KEY);
+  private static final byte[] NOTIFICATION_CLICK_ACTION = fieldName(JSON_NOTIFICATION_CLICK_ACTION);
+  private static final byte[] NOTIFICATION_COLOR = fieldName(JSON_NOTIFICATION_COLOR);
+  private static final byte[] NOTIFICATION_ICON = fieldName(JSON_NOTIFICATION_ICON);
+  private static final byte[] NOTIFICATION_SOUND = fieldName(JSON_NOTIFICATION_SOUND);
+  private static final byte[] NOTIFICATION_TAG = fieldName(JSON_NOTIFICATION_TAG);
+  private static final byte[] NOTIFICATION_TITLE = fieldName(JSON_NOTIFICATION_TITLE);
+  private static final byte[] NOTIFICATION_TITLE_LOC_ARGS = fieldName(JSON_NOTIFICATION_TITLE_LOC_ARGS);
+  private static final byte[] NOTIFICATION_TITLE_LOC_KEY = fieldName(JSON_NOTIFICATION_TITLE_LOC_KEY);
+  private static final byte[] TO = fieldName(JSON_TO);
+  private static final byte[] REGISTRATION_IDS = fieldName(JSON_REGISTRATION_IDS);
+  private static final byte[] TRUE = "true".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] FALSE = "false".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] NULL = "null".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+  private byte[] buffer;
+  private int count;
+  private int recipients;
+  private boolean needsComma;
+
+  JsonRequestWriter() {
+    this(1024);
+  }
+
+  JsonRequestWriter(int initialCapacity) {
+    buffer = new byte[initialCapacity];
+  }
+
+  private static byte[] fieldName(String name) {
+    return ('"' + name + "\":").getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Writes a complete request for a message sent to a single registration token, notification key or topic.
+   */
+  JsonRequestWriter writeRequest(Message message, String to) {
+    return writeRequest(message, to, null);
+  }
+
+  /**
+   * Writes a complete request for a message sent to a single registration token, notification key or topic, replacing
+   * its time to live.
+   *
+   * @param timeToLive time to live sent instead of the message's, {@literal null} to keep the message's.
+   */
+  JsonRequestWriter writeRequest(Message message, String to, Integer timeToLive) {
+    reset();
+    recipients = 1;
+    writeByte('{');
+    writeFields(message, timeToLive);
+    field(TO);
+    writeString(to);
+    writeByte('}');
+    return this;
+  }
+
+  /**
+   * Writes a complete request for a message sent to many registration ids.
+   */
+  JsonRequestWriter writeRequest(Message message, Collection<String> registrationIds) {
+    return writeRequest(message, registrationIds, null);
+  }
+
+  /**
+   * Writes a complete request for a message sent to many registration ids, replacing its time to live.
+   *
+   * @param timeToLive time to live sent instead of the message's, {@literal null} to keep the message's.
+   */
+  JsonRequestWriter writeRequest(Message message, Collection<String> registrationIds, Integer timeToLive) {
+    reset();
+    recipients = registrationIds.size();
+    writeByte('{');
+    writeFields(message, timeToLive);
+    field(REGISTRATION_IDS);
+    writeStrings(registrationIds);
+    writeByte('}');
+    return this;
+  }
+
+  /**
+   * Encodes the fields of a message, without the enclosing braces, so that they can be spliced into requests.
+   *
+   * @return the encoded fields, empty if the message has none.
+   */
+  static byte[] encodeFields(Message message) {
+    JsonRequestWriter writer = new JsonRequestWriter(256);
+    writer.writeMessageFields(message, message.getTimeToLive());
+    return Arrays.copyOf(writer.buffer, writer.count);
+  }
+
+  /**
+   * Discards everything written so far, keeping the buffer for reuse.
+   */
+  void reset() {
+    count = 0;
+    recipients = 0;
+    needsComma = false;
+  }
+
+  /**
+   * Gets the buffer holding the encoded bytes. Only the first {@link #size()} bytes are meaningful.
+   */
+  byte[] buffer() {
+    return buffer;
+  }
+
+  /**
+   * Gets the number of bytes written.
+   */
+  int size() {
+    return count;
+  }
+
+  /**
+   * Gets the number of recipients of the request written.
+   */
+  int recipients() {
+    return recipients;
+  }
+
+  /**
+   * Gets the buffer's capacity.
+   */
+  int capacity() {
+    return buffer.length;
+  }
+
+  @Override
+  public String toString() {
+    return new String(buffer, 0, count, StandardCharsets.UTF_8);
+  }
+
+  private void writeFields(Message message, Integer timeToLive) {
+    if (timeToLive == null) {
+      writeEncodedFields(message);
+    } else {
+      // the encoded fields hold the message's own time to live
+      writeMessageFields(message, timeToLive);
+    }
+  }
+
+  private void writeEncodedFields(Message message) {
+    if (message != null) {
+      byte[] fields = message.getEncodedFields();
+      if (fields.length > 0) {
+        writeBytes(fields);
+        needsComma = true;
+      }
+    }
+  }
+
+  private void writeMessageFields(Message message, Integer timeToLive) {
+    if (message == null) {
+      return;
+    }
+
+    stringField(PRIORITY, message.getPriority());
+    booleanField(CONTENT_AVAILABLE, message.getContentAvailable());
+    if (timeToLive != null) {
+      field(TIME_TO_LIVE);
+      writeAscii(timeToLive.toString());
+    }
+    stringField(COLLAPSE_KEY, message.getCollapseKey());
+    stringField(RESTRICTED_PACKAGE_NAME, message.getRestrictedPackageName());
+    booleanField(DELAY_WHILE_IDLE, message.isDelayWhileIdle());
+    booleanField(DRY_RUN, message.isDryRun());
+
+    Map<String, String> payload = message.getData();
+    if (!payload.isEmpty()) {
+      field(PAYLOAD);
+      writeByte('{');
+      boolean first = true;
+      for (Map.Entry<String, String> entry : payload.entrySet()) {
+        if (!first) {
+          writeByte(',');
+        }
+        first = false;
+        writeString(entry.getKey());
+        writeByte(':');
+        writeString(entry.getValue());
+      }
+      writeByte('}');
+    }
+
+    Notification notification = message.getNotification();
+    if (notification != null) {
+      field(NOTIFICATION);
+      writeByte('{');
+      needsComma = false;
+      if (notification.getBadge() != null) {
+        stringField(NOTIFICATION_BADGE, notification.getBadge().toString());
+      }
+      stringField(NOTIFICATION_BODY, notification.getBody());
+      stringsField(NOTIFICATION_BODY_LOC_ARGS, notification.getBodyLocArgs());
+      stringField(NOTIFICATION_BODY_LOC_KEY, notification.getBodyLocKey());
+      stringField(NOTIFICATION_CLICK_ACTION, notification.getClickAction());
+      stringField(NOTIFICATION_COLOR, notification.getColor());
+      stringField(NOTIFICATION_ICON, notification.getIcon());
+      stringField(NOTIFICATION_SOUND, notification.getSound());
+      stringField(NOTIFICATION_TAG, notification.getTag());
+      stringField(NOTIFICATION_TITLE, notification.getTitle());
+      stringsField(NOTIFICATION_TITLE_LOC_ARGS, notification.getTitleLocArgs());
+      stringField(NOTIFICATION_TITLE_LOC_KEY, notification.getTitleLocKey());
+      writeByte('}');
+      needsComma = true;
+    }
+  }
+
+  private void stringField(byte[] name, String value) {
+    if (value != null) {
+      field(name);
+      writeString(value);
+    }
+  }
+
+  private void booleanField(byte[] name, Boolean value) {
+    if (value != null) {
+      field(name);
+      writeBytes(value ? TRUE : FALSE);
+    }
+  }
+
+  private void stringsField(byte[] name, List<String> values) {
+    if (values != null) {
+      field(name);
+      writeStrings(values);
+    }
+  }
+
+  private void field(byte[] name) {
+    if (needsComma) {
+      writeByte(',');
+    }
+    writeBytes(name);
+    needsComma = true;
+  }
+
+  private void writeStrings(Collection<String> values) {
+    writeByte('[');
+    boolean first = true;
+    for (String value : values) {
+      if (!first) {
+        writeByte(',');
+      }
+      first = false;
+      writeString(value);
+    }
+    writeByte(']');
+  }
+
+  /**
+   * Writes a JSON string, escaping quotes, backslashes and control characters.
+   */
+  private void writeString(String value) {
+    if (value == null) {
+      writeBytes(NULL);
+      return;
+    }
+
+    int length = value.length();
+    // worst case is 3 bytes per char, plus quotes
+    ensureCapacity(count + 3 * length + 2);
+    byte[] buf = buffer;
+    int pos = count;
+    buf[pos++] = '"';
+    for (int i = 0; i < length; i++) {
+      char c = value.charAt(i);
+      if (c < 0x80) {
+        if (c >= 0x20 && c != '"' && c != '\\') {
+          buf[pos++] = (byte) c;
+          continue;
+        }
+        count = pos;
+        writeEscaped(c);
+        ensureCapacity(count + 3 * (length - i - 1) + 1);
+        buf = buffer;
+        pos = count;
+      } else if (c < 0x800) {
+        buf[pos++] = (byte) (0xc0 | (c >> 6));
+        buf[pos++] = (byte) (0x80 | (c & 0x3f));
+      } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+        int codePoint = Character.toCodePoint(c, value.charAt(++i));
+        buf[pos++] = (byte) (0xf0 | (codePoint >> 18));
+        buf[pos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+        buf[pos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+        buf[pos++] = (byte) (0x80 | (codePoint & 0x3f));
+      } else if (Character.isSurrogate(c)) {
+        // unpaired surrogate, encoded the way String.getBytes does
+        buf[pos++] = '?';
+      } else {
+        buf[pos++] = (byte) (0xe0 | (c >> 12));
+        buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+        buf[pos++] = (byte) (0x80 | (c & 0x3f));
+      }
+    }
+    buf[pos++] = '"';
+    count = pos;
+  }
+
+  private void writeEscaped(char c) {
+    ensureCapacity(count + 6);
+    buffer[count++] = '\\';
+    switch (c) {
+      case '"':
+        buffer[count++] = '"';
+        break;
+      case '\\':
+        buffer[count++] = '\\';
+        break;
+      case '\n':
+        buffer[count++] = 'n';
+        break;
+      case '\r':
+        buffer[count++] = 'r';
+        break;
+      case '\t':
+        buffer[count++] = 't';
+        break;
+      case '\b':
+        buffer[count++] = 'b';
+        break;
+      case '\f':
+        buffer[count++] = 'f';
+        break;
+      default:
+        buffer[count++] = 'u';
+        buffer[count++] = '0';
+        buffer[count++] = '0';
+        buffer[count++] = HEX[c >> 4];
+        buffer[count++] = HEX[c & 0xf];
+    }
+  }
+
+  private void writeAscii(String value) {
+    int length = value.length();
+    ensureCapacity(count + length);
+    for (int i = 0; i < length; i++) {
+      buffer[count++] = (byte) value.charAt(i);
+    }
+  }
+
+  private void writeBytes(byte[] bytes) {
+    ensureCapacity(count + bytes.length);
+    System.arraycopy(bytes, 0, buffer, count, bytes.length);
+    count += bytes.length;
+  }
+
+  private void writeByte(char b) {
+    ensureCapacity(count + 1);
+    buffer[count++] = (byte) b;
+  }
+
+  private void ensureCapacity(int capacity) {
+    if (capacity > buffer.length) {
+      buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, capacity));
+    }
+  }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hextremelabs.gcm.client;
+
+/**
+ * Summary of the latencies recorded for one phase of the requests to GCM, in microseconds.
+ */
+public final class LatencySnapshot {
+
+  private final long count;
+  private final double mean;
+  private final long p50;
+  private final long p90;
+  private final long p99;
+  private final long max;
+
+  LatencySnapshot(LatencyHistogram histogram) {
+    count = histogram.getCount();
+    mean = histogram.getMean() / 1000;
+    p50 = histogram.getPercentile(50) / 1000;
+    p90 = histogram.getPercentile(90) / 1000;
+    p99 = histogram.getPercentile(99) / 1000;
+    max = histogram.getMax() / 1000;
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  public double getMean() {
+    return mean;
+  }
+
+  public long getP50() {
+    return p50;
+  }
+
+  public long getP90() {
+    return p90;
+  }
+
+  public long getP99() {
+    return p99;
+  }
+
+  public long getMax() {
+    return max;
+  }
+
+  @Override
+  public String toString() {
+    return "LatencySnapshot(count=" + count + ", mean=" + mean + ", p50=" + p50 + ", p90=" + p90 + ", p99=" + p99
+        + ", max=" + max + ")";
+  }
+}
@@ -70,10 +70,15 @@ public final class Message implements Serializable {
   private final Boolean contentAvailable;
   private final Notification notification;
 
+  /**
+   * Fields of this message encoded as JSON, computed on first use and shared by every request sending it.
+   */
+  private transient volatile byte[] encodedFields;
+
   private Message(Builder builder) {
     collapseKey = builder.collapseKey;
     delayWhileIdle = builder.delayWhileIdle;
-    data = Collections.unmodifiableMap(builder.data);
+    data = Collections.unmodifiableMap(new LinkedHashMap<>(builder.data));
     timeToLive = builder.timeToLive;
     dryRun = builder.dryRun;
     restrictedPackageName = builder.restrictedPackageName;
@@ -145,6 +150,19 @@ public final class Message implements Serializable {
     return notification;
   }
 
+  /**
+   * Gets the fields of this message encoded as UTF-8 JSON, without the enclosing braces, so that every request for
+   * this message only has to encode its recipients. The returned array must not be modified.
+   */
+  byte[] getEncodedFields() {
+    byte[] fields = encodedFields;
+    if (fields == null) {
+      fields = JsonRequestWriter.encodeFields(this);
+      encodedFields = fields;
+    }
+    return fields;
+  }
+
   @Override
   public String toString() {
     StringBuilder builder = new StringBuilder("Message(");
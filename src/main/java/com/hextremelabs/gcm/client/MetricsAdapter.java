@@ -0,0 +1,54 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hextremelabs.gcm.client;
+
+import java.util.function.Supplier;
+
+/**
+ * Bridges {@link GcmMetrics} to a metrics registry such as Micrometer or Dropwizard Metrics. Produce an implementation
+ * as a CDI bean to have it bound when the first {@link Sender} is created.
+ *
+ * <p>
+ * Methods other than {@link #gauge(String, Supplier)} are called on the sending threads and must be cheap.
+ */
+public interface MetricsAdapter {
+
+  /**
+   * Called once for every gauge of {@link GcmMetrics}, to be registered with the registry.
+   *
+   * @param name name of the gauge, such as {@literal gcm.queue.results}.
+   * @param value reads the current value.
+   */
+  default void gauge(String name, Supplier<Number> value) {
+  }
+
+  /**
+   * Called for every result decoded from a GCM response.
+   *
+   * @param errorCode error code of the result, {@literal null} if the message was sent.
+   */
+  default void result(String errorCode) {
+  }
+
+  /**
+   * Called for every latency measured.
+   *
+   * @param phase phase of the request that was measured.
+   * @param nanos its duration, in nanoseconds.
+   */
+  default void latency(GcmMetrics.Phase phase, long nanos) {
+  }
+}
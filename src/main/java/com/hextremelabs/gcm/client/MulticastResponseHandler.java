@@ -0,0 +1,39 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hextremelabs.gcm.client;
+
+/**
+ * Receives the contents of a multicast response as it is decoded, so that callers decide what to keep.
+ */
+interface MulticastResponseHandler {
+
+  /**
+   * Called for each entry of the {@literal results} array, in order.
+   *
+   * @param index position of the entry, which matches the position of its registration id in the request.
+   * @param messageId message id, {@literal null} if the message was not sent.
+   * @param canonicalRegistrationId canonical registration id, if any.
+   * @param error error code, {@literal null} if the message was sent.
+   */
+  void result(int index, String messageId, String canonicalRegistrationId, String error);
+
+  /**
+   * Called once, after every result, with the summary fields of the response.
+   *
+   * @param results number of entries of the {@literal results} array.
+   */
+  void summary(int success, int failure, int canonicalIds, long multicastId, int results);
+}
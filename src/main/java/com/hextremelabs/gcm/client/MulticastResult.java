@@ -27,6 +27,11 @@ public final class MulticastResult implements Serializable {
 
   private static final long serialVersionUID = 1L;
 
+  /**
+   * Multicast id of a result for which no request was posted, such as a send to dead registration ids only.
+   */
+  public static final long NO_MULTICAST_ID = -1;
+
   private final int success;
   private final int failure;
   private final int canonicalIds;
@@ -48,7 +53,7 @@ public final class MulticastResult implements Serializable {
   }
 
   /**
-   * Gets the multicast id.
+   * Gets the multicast id, {@link #NO_MULTICAST_ID} if no request was posted.
    */
   public long getMulticastId() {
     return multicastId;
@@ -16,6 +16,7 @@
 package com.hextremelabs.gcm.client;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
@@ -295,7 +296,7 @@ public final class Notification implements Serializable {
      * Sets the body localization values property.
      */
     public Builder bodyLocArgs(List<String> value) {
-      bodyLocArgs = Collections.unmodifiableList(value);
+      bodyLocArgs = Collections.unmodifiableList(new ArrayList<>(value));
       return this;
     }
 
@@ -311,7 +312,7 @@ public final class Notification implements Serializable {
      * Sets the title localization values property.
      */
     public Builder titleLocArgs(List<String> value) {
-      titleLocArgs = Collections.unmodifiableList(value);
+      titleLocArgs = Collections.unmodifiableList(new ArrayList<>(value));
       return this;
     }
 
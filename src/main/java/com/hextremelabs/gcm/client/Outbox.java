@@ -0,0 +1,62 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hextremelabs.gcm.client;
+
+import javax.ejb.Stateless;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * Transactional outbox of messages, delivered by the {@link OutboxDispatcher} of any node sharing the database.
+ *
+ * <p>
+ * Messages are added in the caller's transaction, so they are only sent if it commits.
+ */
+@Stateless
+public class Outbox {
+
+  private static final int FLUSH_SIZE = 50;
+
+  @PersistenceContext
+  private EntityManager em;
+
+  /**
+   * Adds a message for every registration id to the outbox.
+   *
+   * @return id of the {@link OutboxMessage} created.
+   *
+   * @throws IllegalArgumentException if regIds is {@literal null} or empty.
+   * @throws IOException if the message could not be serialized.
+   */
+  public long add(Message message, Collection<String> regIds) throws IOException {
+    if (Sender.nonNull(regIds).isEmpty()) {
+      throw new IllegalArgumentException("registrationIds cannot be empty");
+    }
+
+    OutboxMessage outboxMessage = new OutboxMessage(Sender.nonNull(message));
+    em.persist(outboxMessage);
+    int count = 0;
+    for (String regId : regIds) {
+      em.persist(new OutboxEntry(outboxMessage, regId));
+      if (++count % FLUSH_SIZE == 0) {
+        em.flush();
+      }
+    }
+    return outboxMessage.getId();
+  }
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hextremelabs.gcm.client;
+
+import com.hextremelabs.quickee.configuration.Config;
+import com.hextremelabs.quickee.configuration.Key;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Resource;
+import javax.ejb.Schedule;
+import javax.ejb.SessionContext;
+import javax.ejb.Stateless;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import javax.persistence.LockModeType;
+import javax.persistence.PersistenceContext;
+import javax.persistence.Query;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static com.hextremelabs.gcm.client.Constants.ERROR_DEADLINE_EXCEEDED;
+import static com.hextremelabs.gcm.client.Constants.ERROR_NOT_SENT;
+
+/**
+ * Sends the messages of the {@link Outbox}, on every node sharing its database.
+ *
+ * <p>
+ * Each node repeatedly claims a batch of pending entries by leasing them, sends them and records their results. Leases
+ * keep nodes from claiming the same entries, so throughput grows with the number of nodes; an entry whose node dies is
+ * claimed again once its lease expires. Entries are claimed with optimistic updates of their version column, which
+ * works on any database, or with {@literal SELECT ... FOR UPDATE SKIP LOCKED} if {@literal gcm.outbox.claim} is
+ * {@literal skip-locked}.
+ */
+@Stateless
+@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+public class OutboxDispatcher {
+
+  /**
+   * Number of entries claimed at once, unless {@literal gcm.outbox.batch.size} is set.
+   */
+  protected static final int DEFAULT_BATCH_SIZE = Constants.MULTICAST_SIZE_LIMIT;
+
+  /**
+   * Duration of a lease, in seconds, unless {@literal gcm.outbox.lease} is set.
+   */
+  protected static final int DEFAULT_LEASE = 60;
+
+  /**
+   * Number of times an entry is claimed before giving up on it, unless {@literal gcm.outbox.max.attempts} is set.
+   */
+  protected static final int DEFAULT_MAX_ATTEMPTS = 5;
+
+  /**
+   * Number of retries of each send.
+   */
+  private static final int RETRIES = 3;
+
+  private static final int FLUSH_SIZE = 50;
+
+  /**
+   * Part of the lease, as a divisor of its duration, left between the deadline of a send and the end of the lease.
+   */
+  private static final int LEASE_MARGIN_DIVISOR = 4;
+
+  /**
+   * Lock timeout hint asking Hibernate to skip locked rows.
+   */
+  private static final int SKIP_LOCKED = -2;
+
+  private static final Logger L = LoggerFactory.getLogger(OutboxDispatcher.class);
+
+  @Inject
+  @Config
+  @Key("gcm.outbox.enabled")
+  private Boolean enabled;
+
+  @Inject
+  @Config
+  @Key("gcm.outbox.batch.size")
+  private Integer batchSize;
+
+  @Inject
+  @Config
+  @Key("gcm.outbox.lease")
+  private Integer lease;
+
+  @Inject
+  @Config
+  @Key("gcm.outbox.max.attempts")
+  private Integer maxAttempts;
+
+  @Inject
+  @Config
+  @Key("gcm.outbox.claim")
+  private String claimMode;
+
+  @Inject
+  private Sender sender;
+
+  @PersistenceContext
+  private EntityManager em;
+
+  @Resource
+  private SessionContext context;
+
+  /**
+   * Claims and sends batches until the outbox is empty, or for at most half a lease so that the timer stays responsive.
+   */
+  @Schedule(hour = "*", minute = "*", second = "*/10", persistent = false)
+  public void dispatch() {
+    if (enabled == null || !enabled) {
+      return;
+    }
+
+    OutboxDispatcher self = context.getBusinessObject(OutboxDispatcher.class);
+    long deadline = System.currentTimeMillis() + leaseMillis() / 2;
+    List<OutboxEntry> batch;
+    do {
+      batch = self.claim();
+      if (!batch.isEmpty()) {
+        send(self, batch);
+      }
+    } while (!batch.isEmpty() && System.currentTimeMillis() < deadline);
+  }
+
+  /**
+   * Leases a batch of pending entries whose lease, if any, has expired.
+   *
+   * @return the entries leased, with their message.
+   */
+  @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+  public List<OutboxEntry> claim() {
+    String token = UUID.randomUUID().toString();
+    long now = System.currentTimeMillis();
+    long until = now + leaseMillis();
+    int size = batchSize == null ? DEFAULT_BATCH_SIZE : batchSize;
+
+    if ("skip-locked".equals(claimMode)) {
+      List<OutboxEntry> entries = em.createQuery("SELECT e FROM OutboxEntry e WHERE e.status = :status"
+          + " AND (e.leaseUntil IS NULL OR e.leaseUntil < :now) ORDER BY e.id", OutboxEntry.class)
+          .setParameter("status", OutboxEntry.Status.PENDING)
+          .setParameter("now", now)
+          .setLockMode(LockModeType.PESSIMISTIC_WRITE)
+          .setHint("javax.persistence.lock.timeout", SKIP_LOCKED)
+          .setMaxResults(size)
+          .getResultList();
+      entries.forEach(entry -> entry.lease(token, until));
+      em.flush();
+    } else {
+      List<Object[]> candidates = em.createQuery("SELECT e.id, e.version FROM OutboxEntry e WHERE e.status = :status"
+          + " AND (e.leaseUntil IS NULL OR e.leaseUntil < :now) ORDER BY e.id", Object[].class)
+          .setParameter("status", OutboxEntry.Status.PENDING)
+          .setParameter("now", now)
+          .setMaxResults(size)
+          .getResultList();
+      // only one node's update of an entry matches its version, the others skip it
+      Query update = em.createQuery("UPDATE OutboxEntry e SET e.leaseToken = :token, e.leaseUntil = :until,"
+          + " e.attempts = e.attempts + 1, e.version = e.version + 1 WHERE e.id = :id AND e.version = :version")
+          .setParameter("token", token)
+          .setParameter("until", until);
+      for (Object[] candidate : candidates) {
+        update.setParameter("id", candidate[0]).setParameter("version", candidate[1]).executeUpdate();
+      }
+    }
+
+    List<OutboxEntry> claimed = em.createQuery("SELECT e FROM OutboxEntry e JOIN FETCH e.message"
+        + " WHERE e.leaseToken = :token ORDER BY e.id", OutboxEntry.class)
+        .setParameter("token", token)
+        .getResultList();
+    L.debug("Claimed {} outbox entries", claimed.size());
+    return claimed;
+  }
+
+  /**
+   * Records the results of a send, unless the lease on an entry was lost meanwhile.
+   *
+   * @param entries entries sent, in the order of the results.
+   * @param result result of the send, or {@literal null} if it could not be sent.
+   */
+  @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+  public void record(List<OutboxEntry> entries, MulticastResult result) {
+    int attempts = maxAttempts == null ? DEFAULT_MAX_ATTEMPTS : maxAttempts;
+    for (int i = 0; i < entries.size(); i++) {
+      OutboxEntry claimed = entries.get(i);
+      OutboxEntry entry = em.find(OutboxEntry.class, claimed.getId());
+      if (entry == null || !claimed.getLeaseToken().equals(entry.getLeaseToken())) {
+        L.debug("Lease on outbox entry {} lost, not recording its result", claimed.getId());
+        continue;
+      }
+      GcmResult sent = result == null ? null : result.getResults().get(i);
+      // a recipient given up for lack of lease is not sent yet, like one that could not be sent
+      if (sent != null && !ERROR_DEADLINE_EXCEEDED.equals(sent.getErrorCodeName())) {
+        entry.complete(sent);
+      } else if (entry.getAttempts() >= attempts) {
+        entry.fail(ERROR_NOT_SENT);
+      }
+      // otherwise the entry stays leased until it expires, which delays the next attempt
+      if ((i + 1) % FLUSH_SIZE == 0) {
+        em.flush();
+        em.clear();
+      }
+    }
+  }
+
+  private void send(OutboxDispatcher self, List<OutboxEntry> batch) {
+    Map<Long, List<OutboxEntry>> byMessage = new LinkedHashMap<>();
+    for (OutboxEntry entry : batch) {
+      byMessage.computeIfAbsent(entry.getMessage().getId(), id -> new ArrayList<>()).add(entry);
+    }
+
+    List<List<OutboxEntry>> sent = new ArrayList<>();
+    List<CompletableFuture<MulticastResult>> futures = new ArrayList<>();
+    for (List<OutboxEntry> entries : byMessage.values()) {
+      List<String> regIds = new ArrayList<>(entries.size());
+      entries.forEach(entry -> regIds.add(entry.getRegistrationId()));
+      try {
+        Message message = entries.get(0).getMessage().getMessage();
+        futures.add(sender.sendAsync(message, regIds, RETRIES, deadline(message, entries)));
+        sent.add(entries);
+      } catch (IOException e) {
+        L.warn("Could not read outbox message {}", entries.get(0).getMessage().getId(), e);
+        self.record(entries, null);
+      }
+    }
+
+    for (int i = 0; i < sent.size(); i++) {
+      List<OutboxEntry> entries = sent.get(i);
+      MulticastResult result = null;
+      try {
+        result = futures.get(i).get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (ExecutionException e) {
+        L.warn("Could not send outbox message {}", entries.get(0).getMessage().getId(), e.getCause());
+      }
+      self.record(entries, result);
+    }
+  }
+
+  /**
+   * Gets the deadline of a send, early enough in the lease of its entries that no other node claims them while it is
+   * retried, and no later than the time to live of its message.
+   */
+  private long deadline(Message message, List<OutboxEntry> entries) {
+    long leaseUntil = Long.MAX_VALUE;
+    for (OutboxEntry entry : entries) {
+      leaseUntil = Math.min(leaseUntil, entry.getLeaseUntil());
+    }
+    // leave an attempt started just before the deadline, and the recording of its results, time to finish
+    long deadline = leaseUntil - leaseMillis() / LEASE_MARGIN_DIVISOR;
+    Integer timeToLive = message.getTimeToLive();
+    return timeToLive == null
+        ? deadline : Math.min(deadline, System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(timeToLive));
+  }
+
+  private long leaseMillis() {
+    return (lease == null ? DEFAULT_LEASE : lease) * 1000L;
+  }
+}
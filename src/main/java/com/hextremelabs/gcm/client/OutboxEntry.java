@@ -0,0 +1,202 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hextremelabs.gcm.client;
+
+import javax.persistence.Basic;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.FetchType;
+import javax.persistence.ForeignKey;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.JoinColumn;
+import javax.persistence.ManyToOne;
+import javax.persistence.SequenceGenerator;
+import javax.persistence.Table;
+import javax.persistence.Version;
+import java.io.Serializable;
+
+/**
+ * Delivery of an {@link OutboxMessage} to one registration id, claimed and sent by an {@link OutboxDispatcher}.
+ *
+ * <p>
+ * A dispatcher claims an entry by setting its lease token and expiry; other dispatchers skip it until the lease
+ * expires. The version column lets claims be made with optimistic updates.
+ */
+@Entity
+@Table(name = "gcm_outbox", indexes = @Index(name = "IX-gcm_outbox-status", columnList = "status, lease_until"))
+public class OutboxEntry implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * Delivery status of an entry.
+   */
+  public enum Status {
+
+    /**
+     * Not sent yet, or to be sent again.
+     */
+    PENDING,
+
+    /**
+     * Accepted by GCM.
+     */
+    SENT,
+
+    /**
+     * Rejected by GCM, or not sent after the maximum number of attempts.
+     */
+    FAILED
+  }
+
+  @Id
+  @SequenceGenerator(name = "gcm_outbox_id", sequenceName = "gcm_outbox_seq", allocationSize = 50)
+  @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "gcm_outbox_id")
+  @Basic(optional = false)
+  @Column(nullable = false)
+  private Long id;
+
+  @ManyToOne(fetch = FetchType.LAZY, optional = false)
+  @JoinColumn(name = "message_id", nullable = false,
+      foreignKey = @ForeignKey(name = "FK-gcm_outbox-gcm_outbox_message"))
+  private OutboxMessage message;
+
+  @Column(name = "registration_id", nullable = false, length = 1000)
+  private String registrationId;
+
+  @Enumerated(EnumType.STRING)
+  @Column(name = "status", nullable = false, length = 10)
+  private Status status;
+
+  @Column(name = "lease_token", length = 36)
+  private String leaseToken;
+
+  @Column(name = "lease_until")
+  private Long leaseUntil;
+
+  @Column(name = "attempts", nullable = false)
+  private int attempts;
+
+  @Column(name = "gcm_message_id", length = 1000)
+  private String messageId;
+
+  @Column(name = "canonical_registration_id", length = 1000)
+  private String canonicalRegistrationId;
+
+  @Column(name = "error_code", length = 45)
+  private String errorCode;
+
+  @Version
+  @Column(name = "version", nullable = false)
+  private long version;
+
+  protected OutboxEntry() {
+  }
+
+  OutboxEntry(OutboxMessage message, String registrationId) {
+    this.message = message;
+    this.registrationId = registrationId;
+    status = Status.PENDING;
+  }
+
+  public Long getId() {
+    return id;
+  }
+
+  public OutboxMessage getMessage() {
+    return message;
+  }
+
+  public String getRegistrationId() {
+    return registrationId;
+  }
+
+  public Status getStatus() {
+    return status;
+  }
+
+  /**
+   * Gets the number of times the entry was claimed.
+   */
+  public int getAttempts() {
+    return attempts;
+  }
+
+  /**
+   * Gets the message id given by GCM, if sent.
+   */
+  public String getMessageId() {
+    return messageId;
+  }
+
+  /**
+   * Gets the canonical registration id given by GCM, if any.
+   */
+  public String getCanonicalRegistrationId() {
+    return canonicalRegistrationId;
+  }
+
+  /**
+   * Gets the error code given by GCM, if failed.
+   */
+  public String getErrorCode() {
+    return errorCode;
+  }
+
+  String getLeaseToken() {
+    return leaseToken;
+  }
+
+  /**
+   * Gets the time, in milliseconds since the epoch, at which the lease expires, {@literal null} if never leased.
+   */
+  Long getLeaseUntil() {
+    return leaseUntil;
+  }
+
+  /**
+   * Records the outcome of a send and releases the lease.
+   */
+  void complete(GcmResult result) {
+    messageId = result.getMessageId();
+    canonicalRegistrationId = result.getCanonicalRegistrationId();
+    errorCode = result.getErrorCodeName();
+    status = messageId != null ? Status.SENT : Status.FAILED;
+    leaseToken = null;
+    leaseUntil = null;
+  }
+
+  /**
+   * Gives up on the entry after its last attempt failed.
+   */
+  void fail(String error) {
+    errorCode = error;
+    status = Status.FAILED;
+    leaseToken = null;
+    leaseUntil = null;
+  }
+
+  void lease(String token, long until) {
+    leaseToken = token;
+    leaseUntil = until;
+    attempts++;
+  }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hextremelabs.gcm.client;
+
+import javax.persistence.Basic;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Lob;
+import javax.persistence.SequenceGenerator;
+import javax.persistence.Table;
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * Message added to the {@link Outbox}, shared by its {@link OutboxEntry entries}.
+ */
+@Entity
+@Table(name = "gcm_outbox_message")
+public class OutboxMessage implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  @Id
+  @SequenceGenerator(name = "gcm_outbox_message_id", sequenceName = "gcm_outbox_message_seq")
+  @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "gcm_outbox_message_id")
+  @Basic(optional = false)
+  @Column(nullable = false)
+  private Long id;
+
+  @Lob
+  @Column(name = "payload", nullable = false)
+  private byte[] payload;
+
+  @Column(name = "created", nullable = false)
+  private long created;
+
+  protected OutboxMessage() {
+  }
+
+  OutboxMessage(Message message) throws IOException {
+    payload = Journal.encode(message);
+    created = System.currentTimeMillis();
+  }
+
+  public Long getId() {
+    return id;
+  }
+
+  /**
+   * Gets the message to send.
+   */
+  public Message getMessage() throws IOException {
+    return (Message) Journal.decode(payload);
+  }
+
+  /**
+   * Gets the time the message was added, in milliseconds since the epoch.
+   */
+  public long getCreated() {
+    return created;
+  }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hextremelabs.gcm.client;
+
+/**
+ * What to do with a result when the queue of results waiting to be persisted is full. Set with
+ * {@literal gcm.queue.overflow}.
+ */
+public enum OverflowPolicy {
+
+  /**
+   * Wait until the queue has room.
+   */
+  BLOCK,
+
+  /**
+   * Discard the oldest queued result.
+   */
+  DROP_OLDEST,
+
+  /**
+   * Write the result to a file, read back on the next drain.
+   */
+  SPILL_TO_DISK,
+
+  /**
+   * Persist the queued results on the calling thread.
+   */
+  FLUSH
+}
@@ -0,0 +1,686 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hextremelabs.gcm.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link GcmTransport} keeping a pool of persistent HTTP/1.1 connections per route.
+ *
+ * <p>
+ * At most {@link Builder#maxConnectionsPerRoute(int)} requests are in flight per route; further requests wait up to
+ * the connect timeout for a connection to be released. Connections idle for longer than
+ * {@link Builder#idleTimeout(long)} are closed by a background sweeper. Call {@link #prewarm(String, int)} at startup to
+ * pay for TCP and TLS handshakes before the first message is sent.
+ *
+ * <p>
+ * Example:
+ * <pre><code>
+ * &#64;Produces
+ * &#64;ApplicationScoped
+ * GcmTransport transport() throws IOException {
+ *   PooledHttpTransport transport = new PooledHttpTransport.Builder()
+ *      .maxConnectionsPerRoute(50)
+ *      .connectTimeout(5000)
+ *      .readTimeout(30000)
+ *      .build();
+ *   transport.prewarm(Constants.GCM_SEND_ENDPOINT, 10);
+ *   return transport;
+ * }
+ * </code></pre>
+ */
+public final class PooledHttpTransport implements GcmTransport {
+
+  private static final Logger L = LoggerFactory.getLogger(PooledHttpTransport.class);
+
+  /**
+   * Time, in milliseconds, a connection must have been idle before it is probed for having been closed by the server.
+   * Connections reused sooner are taken as they are, a failed write being replayed on a new one anyway.
+   */
+  private static final long PROBE_IDLE_TIME = 1000;
+
+  private final ConcurrentHashMap<String, Route> routes = new ConcurrentHashMap<>();
+  private final ScheduledExecutorService evictor;
+  private final SSLSocketFactory sslSocketFactory;
+  private final int maxConnectionsPerRoute;
+  private final long idleTimeout;
+  private final int connectTimeout;
+  private final int readTimeout;
+
+  private PooledHttpTransport(Builder builder) {
+    sslSocketFactory = builder.sslSocketFactory;
+    maxConnectionsPerRoute = builder.maxConnectionsPerRoute;
+    idleTimeout = builder.idleTimeout;
+    connectTimeout = builder.connectTimeout;
+    readTimeout = builder.readTimeout;
+    evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "gcm-connection-evictor");
+      thread.setDaemon(true);
+      return thread;
+    });
+    long period = Math.max(idleTimeout / 2, 1000);
+    evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public GcmResponse post(String url, String contentType, String authorization, byte[] body, int length)
+      throws IOException {
+    if (url == null || contentType == null || body == null) {
+      throw new IllegalArgumentException("arguments cannot be null");
+    }
+
+    long started = System.nanoTime();
+    URL target = new URL(url);
+    Route route = route(target);
+    route.acquire(connectTimeout);
+    boolean released = false;
+    try {
+      Connection connection = route.idle.pollFirst();
+      while (connection != null && (connection.isStale(idleTimeout) || connection.isClosedByPeer())) {
+        connection.close();
+        connection = route.idle.pollFirst();
+      }
+
+      GcmResponse response;
+      if (connection == null) {
+        response = exchange(route, route.open(), target, contentType, authorization, body, length, started);
+      } else {
+        try {
+          response = exchange(route, connection, target, contentType, authorization, body, length, started);
+        } catch (NoResponseException e) {
+          // the pooled connection could not even take the request, so the server cannot have processed it; once a
+          // request is written it is never sent again here, as that could deliver the message twice
+          L.debug("Pooled connection to {} failed, retrying on a new one", route.key, e);
+          response = exchange(route, route.open(), target, contentType, authorization, body, length, started);
+        }
+      }
+      released = true;
+      return response;
+    } finally {
+      if (!released) {
+        route.permits.release();
+      }
+    }
+  }
+
+  /**
+   * Opens connections to the route of the given URL ahead of time, completing their TLS handshakes, and adds them to
+   * the pool. No more than the maximum connections per route are opened.
+   *
+   * @param url any URL on the route to warm up.
+   * @param connections number of connections to open.
+   *
+   * @throws IOException if a connection could not be opened.
+   */
+  public void prewarm(String url, int connections) throws IOException {
+    Route route = route(new URL(url));
+    int count = Math.min(connections, maxConnectionsPerRoute) - route.idle.size();
+    for (int i = 0; i < count; i++) {
+      route.idle.offerFirst(route.open());
+    }
+    L.debug("Prewarmed {} connections to {}", Math.max(count, 0), route.key);
+  }
+
+  /**
+   * Closes connections that have been idle for longer than the idle timeout.
+   */
+  public void evictIdle() {
+    for (Route route : routes.values()) {
+      Iterator<Connection> iterator = route.idle.iterator();
+      while (iterator.hasNext()) {
+        Connection connection = iterator.next();
+        if (connection.isStale(idleTimeout) && route.idle.removeFirstOccurrence(connection)) {
+          connection.close();
+        }
+      }
+    }
+  }
+
+  @Override
+  public void close() {
+    evictor.shutdownNow();
+    for (Route route : routes.values()) {
+      Connection connection;
+      while ((connection = route.idle.poll()) != null) {
+        connection.close();
+      }
+    }
+  }
+
+  private Route route(URL url) {
+    boolean secure = "https".equalsIgnoreCase(url.getProtocol());
+    int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+    String key = url.getProtocol().toLowerCase() + "://" + url.getHost() + ":" + port;
+    return routes.computeIfAbsent(key, k -> new Route(k, url.getHost(), port, secure));
+  }
+
+  /**
+   * @param started time the post started, from {@link System#nanoTime()}.
+   */
+  private GcmResponse exchange(Route route, Connection connection, URL url, String contentType,
+      String authorization, byte[] body, int length, long started) throws IOException {
+    try {
+      long connected = System.nanoTime();
+      connection.socket.setSoTimeout(readTimeout);
+      try {
+        writeRequest(connection.out, url, contentType, authorization, body, length);
+      } catch (IOException e) {
+        throw new NoResponseException("Could not write request to " + route.key, e);
+      }
+      long written = System.nanoTime();
+      GcmResponse response = readResponse(route, connection);
+      return response.timings(connected - started, written - connected, System.nanoTime() - written);
+    } catch (IOException | RuntimeException e) {
+      connection.close();
+      throw e;
+    }
+  }
+
+  private static void writeRequest(OutputStream out, URL url, String contentType, String authorization,
+      byte[] body, int length) throws IOException {
+    String path = url.getFile().isEmpty() ? "/" : url.getFile();
+    StringBuilder head = new StringBuilder(256)
+        .append("POST ").append(path).append(" HTTP/1.1\r\n")
+        .append("Host: ").append(url.getAuthority()).append("\r\n")
+        .append("Content-Type: ").append(contentType).append("\r\n")
+        .append("Content-Length: ").append(length).append("\r\n")
+        .append("Connection: keep-alive\r\n");
+    if (authorization != null) {
+      head.append("Authorization: ").append(authorization).append("\r\n");
+    }
+    head.append("\r\n");
+    out.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+    out.write(body, 0, length);
+    out.flush();
+  }
+
+  private GcmResponse readResponse(Route route, Connection connection) throws IOException {
+    InputStream in = connection.in;
+    int status;
+    Map<String, String> headers;
+    do {
+      String statusLine = readLine(in);
+      if (statusLine == null) {
+        // the request was written, the server may have processed it
+        throw new IOException("Connection closed before response from " + route.key);
+      }
+      String[] parts = statusLine.split(" ", 3);
+      if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+        throw new IOException("Malformed status line: " + statusLine);
+      }
+      try {
+        status = Integer.parseInt(parts[1]);
+      } catch (NumberFormatException e) {
+        throw new IOException("Malformed status line: " + statusLine);
+      }
+      headers = readHeaders(in);
+    } while (status >= 100 && status < 200);
+
+    boolean keepAlive = !"close".equalsIgnoreCase(headers.get("Connection"));
+    InputStream body;
+    String contentLength = headers.get("Content-Length");
+    if ("chunked".equalsIgnoreCase(headers.get("Transfer-Encoding"))) {
+      body = new ChunkedInputStream(in);
+    } else if (contentLength != null) {
+      try {
+        body = new FixedLengthInputStream(in, Long.parseLong(contentLength.trim()));
+      } catch (NumberFormatException e) {
+        throw new IOException("Malformed Content-Length: " + contentLength);
+      }
+    } else {
+      // body is delimited by the server closing the connection
+      body = in;
+      keepAlive = false;
+    }
+    return new GcmResponse(status, headers, new ReleasingInputStream(body, route, connection, keepAlive));
+  }
+
+  private static Map<String, String> readHeaders(InputStream in) throws IOException {
+    Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    String line;
+    while ((line = readLine(in)) != null && !line.isEmpty()) {
+      int colon = line.indexOf(':');
+      if (colon > 0) {
+        headers.put(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
+      }
+    }
+    return headers;
+  }
+
+  /**
+   * Reads a CRLF terminated line, returning {@literal null} if the stream ended before any byte was read.
+   */
+  private static String readLine(InputStream in) throws IOException {
+    StringBuilder line = new StringBuilder(64);
+    int b;
+    while ((b = in.read()) != -1) {
+      if (b == '\n') {
+        int end = line.length();
+        if (end > 0 && line.charAt(end - 1) == '\r') {
+          line.setLength(end - 1);
+        }
+        return line.toString();
+      }
+      line.append((char) b);
+    }
+    return line.length() == 0 ? null : line.toString();
+  }
+
+  /**
+   * Thrown when a request could not be written, before the server could have acted on it, so it is safe to send again.
+   */
+  private static final class NoResponseException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    NoResponseException(String message, Throwable cause) {
+      super(message, cause);
+    }
+  }
+
+  /**
+   * Connections to a single scheme, host and port.
+   */
+  private final class Route {
+
+    private final ConcurrentLinkedDeque<Connection> idle = new ConcurrentLinkedDeque<>();
+    private final Semaphore permits = new Semaphore(maxConnectionsPerRoute, true);
+    private final String key;
+    private final String host;
+    private final int port;
+    private final boolean secure;
+
+    Route(String key, String host, int port, boolean secure) {
+      this.key = key;
+      this.host = host;
+      this.port = port;
+      this.secure = secure;
+    }
+
+    void acquire(int timeout) throws IOException {
+      try {
+        boolean acquired = timeout > 0 ? permits.tryAcquire(timeout, TimeUnit.MILLISECONDS) : acquireForever();
+        if (!acquired) {
+          throw new IOException("Timed out waiting for a connection to " + key);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted waiting for a connection to " + key);
+      }
+    }
+
+    private boolean acquireForever() throws InterruptedException {
+      permits.acquire();
+      return true;
+    }
+
+    Connection open() throws IOException {
+      Socket socket = new Socket();
+      try {
+        socket.setTcpNoDelay(true);
+        socket.setKeepAlive(true);
+        socket.connect(new InetSocketAddress(host, port), connectTimeout);
+        if (secure) {
+          SSLSocket sslSocket = (SSLSocket) sslSocketFactory.createSocket(socket, host, port, true);
+          SSLParameters parameters = sslSocket.getSSLParameters();
+          parameters.setEndpointIdentificationAlgorithm("HTTPS");
+          sslSocket.setSSLParameters(parameters);
+          sslSocket.setSoTimeout(connectTimeout);
+          sslSocket.startHandshake();
+          socket = sslSocket;
+        }
+      } catch (IOException e) {
+        socket.close();
+        throw e;
+      }
+      return new Connection(socket);
+    }
+
+    void release(Connection connection, boolean reusable) {
+      try {
+        if (reusable) {
+          connection.lastUsed = System.currentTimeMillis();
+          idle.offerFirst(connection);
+        } else {
+          connection.close();
+        }
+      } finally {
+        permits.release();
+      }
+    }
+  }
+
+  private static final class Connection {
+
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+    private volatile long lastUsed = System.currentTimeMillis();
+
+    Connection(Socket socket) throws IOException {
+      this.socket = socket;
+      in = new BufferedInputStream(socket.getInputStream());
+      out = new BufferedOutputStream(socket.getOutputStream());
+    }
+
+    boolean isStale(long idleTimeout) {
+      return socket.isClosed() || System.currentTimeMillis() - lastUsed > idleTimeout;
+    }
+
+    /**
+     * Tells whether the server sent something unexpected while the connection was idle, or, if it was idle for more
+     * than {@link #PROBE_IDLE_TIME}, closed it. Only called by the thread that took the connection from the pool.
+     */
+    boolean isClosedByPeer() {
+      try {
+        if (in.available() > 0) {
+          return true;
+        }
+        if (System.currentTimeMillis() - lastUsed <= PROBE_IDLE_TIME) {
+          return false;
+        }
+        socket.setSoTimeout(1);
+        try {
+          // an idle connection has nothing to read, so this times out unless the server closed it
+          in.read();
+          return true;
+        } catch (SocketTimeoutException e) {
+          return false;
+        }
+      } catch (IOException e) {
+        return true;
+      }
+    }
+
+    void close() {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        L.debug("IOException closing connection", e);
+      }
+    }
+  }
+
+  /**
+   * Response body that hands its connection back to the pool once fully read and closed.
+   *
+   * <p>
+   * A body closed before its end, as the JSON parser leaves it after the closing brace, is read to its end first so
+   * that the connection can still be reused, unless more than {@link #MAX_DRAIN} bytes are left.
+   */
+  private static final class ReleasingInputStream extends FilterInputStream {
+
+    private static final int MAX_DRAIN = 8192;
+
+    private final Route route;
+    private final Connection connection;
+    private final boolean keepAlive;
+    private boolean exhausted;
+    private boolean closed;
+
+    ReleasingInputStream(InputStream in, Route route, Connection connection, boolean keepAlive) {
+      super(in);
+      this.route = route;
+      this.connection = connection;
+      this.keepAlive = keepAlive;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      exhausted = b == -1;
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int read = super.read(b, off, len);
+      exhausted = read == -1;
+      return read;
+    }
+
+    @Override
+    public void close() {
+      if (!closed) {
+        closed = true;
+        route.release(connection, keepAlive && (exhausted || drain()));
+      }
+    }
+
+    /**
+     * Reads what is left of the body.
+     *
+     * @return {@literal true} if the end of the body was reached.
+     */
+    private boolean drain() {
+      byte[] buffer = new byte[512];
+      int drained = 0;
+      try {
+        while (drained <= MAX_DRAIN) {
+          int read = in.read(buffer);
+          if (read == -1) {
+            return true;
+          }
+          drained += read;
+        }
+      } catch (IOException e) {
+        L.debug("IOException draining response body", e);
+      }
+      return false;
+    }
+  }
+
+  /**
+   * Body delimited by a {@literal Content-Length} header.
+   */
+  private static final class FixedLengthInputStream extends FilterInputStream {
+
+    private long remaining;
+
+    FixedLengthInputStream(InputStream in, long length) {
+      super(in);
+      remaining = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (remaining <= 0) {
+        return -1;
+      }
+      int b = super.read();
+      if (b == -1) {
+        throw new IOException("Connection closed before end of response body");
+      }
+      remaining--;
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (remaining <= 0) {
+        return -1;
+      }
+      int read = super.read(b, off, (int) Math.min(len, remaining));
+      if (read == -1) {
+        throw new IOException("Connection closed before end of response body");
+      }
+      remaining -= read;
+      return read;
+    }
+
+    @Override
+    public int available() throws IOException {
+      return (int) Math.min(super.available(), remaining);
+    }
+
+    @Override
+    public void close() {
+      // the underlying stream belongs to the connection
+    }
+  }
+
+  /**
+   * Body sent with {@literal Transfer-Encoding: chunked}.
+   */
+  private static final class ChunkedInputStream extends FilterInputStream {
+
+    private long remaining;
+    private boolean eof;
+
+    ChunkedInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (eof) {
+        return -1;
+      }
+      if (remaining == 0) {
+        nextChunk();
+        if (eof) {
+          return -1;
+        }
+      }
+      int read = super.read(b, off, (int) Math.min(len, remaining));
+      if (read == -1) {
+        throw new IOException("Connection closed before end of chunked response body");
+      }
+      remaining -= read;
+      if (remaining == 0) {
+        readLine(in); // CRLF closing the chunk
+      }
+      return read;
+    }
+
+    private void nextChunk() throws IOException {
+      String line = readLine(in);
+      if (line == null) {
+        throw new IOException("Connection closed before end of chunked response body");
+      }
+      int extension = line.indexOf(';');
+      String size = extension == -1 ? line : line.substring(0, extension);
+      try {
+        remaining = Long.parseLong(size.trim(), 16);
+      } catch (NumberFormatException e) {
+        throw new IOException("Malformed chunk size: " + line);
+      }
+      if (remaining == 0) {
+        readHeaders(in); // trailers
+        eof = true;
+      }
+    }
+
+    @Override
+    public int available() throws IOException {
+      return (int) Math.min(super.available(), remaining);
+    }
+
+    @Override
+    public void close() {
+      // the underlying stream belongs to the connection
+    }
+  }
+
+  public static final class Builder {
+
+    private SSLSocketFactory sslSocketFactory = (SSLSocketFactory) SSLSocketFactory.getDefault();
+    private int maxConnectionsPerRoute = 20;
+    private long idleTimeout = TimeUnit.MINUTES.toMillis(1);
+    private int connectTimeout = 10000;
+    private int readTimeout = 30000;
+
+    /**
+     * Sets the maximum number of connections, and hence of requests in flight, per route (default value is
+     * {@literal 20}).
+     */
+    public Builder maxConnectionsPerRoute(int value) {
+      if (value < 1) {
+        throw new IllegalArgumentException("maxConnectionsPerRoute must be positive");
+      }
+      maxConnectionsPerRoute = value;
+      return this;
+    }
+
+    /**
+     * Sets how long, in milliseconds, a connection may stay idle before it is closed (default value is one minute).
+     */
+    public Builder idleTimeout(long value) {
+      idleTimeout = value;
+      return this;
+    }
+
+    /**
+     * Sets the timeout, in milliseconds, for connecting and for waiting on a free connection (default value is
+     * {@literal 10000}).
+     */
+    public Builder connectTimeout(int value) {
+      connectTimeout = value;
+      return this;
+    }
+
+    /**
+     * Sets the timeout, in milliseconds, for reading each response (default value is {@literal 30000}).
+     */
+    public Builder readTimeout(int value) {
+      readTimeout = value;
+      return this;
+    }
+
+    /**
+     * Sets the factory used for TLS connections (default value is the JDK default factory).
+     */
+    public Builder sslSocketFactory(SSLSocketFactory value) {
+      sslSocketFactory = value;
+      return this;
+    }
+
+    public PooledHttpTransport build() {
+      return new PooledHttpTransport(this);
+    }
+  }
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hextremelabs.gcm.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Bounded queue of results waiting to be persisted, backed by an array allocated once.
+ *
+ * <p>
+ * When the queue is full, {@link #offer(GcmResult)} applies the {@link OverflowPolicy} given at construction.
+ */
+final class ResultQueue {
+
+  private static final Logger L = LoggerFactory.getLogger(ResultQueue.class);
+
+  private final GcmResult[] items;
+  private final OverflowPolicy overflowPolicy;
+  private final Path spillFile;
+  private final Path drainingFile;
+  private final Path offsetFile;
+  private final Consumer<GcmResult> dropListener;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition notFull = lock.newCondition();
+  private final LongAdder dropped = new LongAdder();
+  private final LongAdder spilled = new LongAdder();
+  private final AtomicBoolean spillDraining = new AtomicBoolean();
+  // position in the draining file up to which results were read, -1 for its end
+  private volatile long drainedTo;
+  private int head;
+  private int count;
+
+  /**
+   * @param capacity number of results held in memory.
+   * @param overflowPolicy what to do when the queue is full.
+   * @param spillFile file results are written to under {@link OverflowPolicy#SPILL_TO_DISK}. Files named after it
+   * with the {@literal .draining} and {@literal .offset} suffixes hold the results being drained.
+   * @param dropListener called with every result discarded because the queue was full.
+   */
+  ResultQueue(int capacity, OverflowPolicy overflowPolicy, Path spillFile, Consumer<GcmResult> dropListener) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("capacity must be positive");
+    }
+    items = new GcmResult[capacity];
+    this.overflowPolicy = Sender.nonNull(overflowPolicy);
+    this.spillFile = spillFile;
+    drainingFile = spillFile == null ? null : spillFile.resolveSibling(spillFile.getFileName() + ".draining");
+    offsetFile = spillFile == null ? null : spillFile.resolveSibling(spillFile.getFileName() + ".offset");
+    this.dropListener = Sender.nonNull(dropListener);
+  }
+
+  /**
+   * Queues a result, applying the overflow policy if the queue is full.
+   *
+   * @return {@literal false} if the queue is full and its policy is {@link OverflowPolicy#FLUSH}, in which case the
+   * caller should drain the queue and offer the result again.
+   */
+  boolean offer(GcmResult result) {
+    lock.lock();
+    try {
+      while (count == items.length) {
+        switch (overflowPolicy) {
+          case BLOCK:
+            notFull.awaitUninterruptibly();
+            break;
+          case DROP_OLDEST:
+            dropOldest();
+            break;
+          case SPILL_TO_DISK:
+            if (spill(result)) {
+              return true;
+            }
+            // could not write to disk, make room rather than lose the newest result
+            dropOldest();
+            break;
+          default:
+            return false;
+        }
+      }
+      items[(head + count) % items.length] = result;
+      count++;
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Queues a result, discarding the oldest one if the queue is full whatever the overflow policy.
+   */
+  void force(GcmResult result) {
+    lock.lock();
+    try {
+      if (count == items.length) {
+        dropOldest();
+      }
+      items[(head + count) % items.length] = result;
+      count++;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void dropOldest() {
+    GcmResult oldest = items[head];
+    items[head] = null;
+    head = (head + 1) % items.length;
+    count--;
+    dropped.increment();
+    dropListener.accept(oldest);
+  }
+
+  /**
+   * Removes up to max results, oldest first, handing them to consumer outside the lock.
+   *
+   * @return number of results removed.
+   */
+  int drainTo(Consumer<GcmResult> consumer, int max) {
+    List<GcmResult> batch;
+    lock.lock();
+    try {
+      int n = Math.min(max, count);
+      batch = new ArrayList<>(n);
+      for (int i = 0; i < n; i++) {
+        batch.add(items[head]);
+        items[head] = null;
+        head = (head + 1) % items.length;
+      }
+      count -= n;
+      if (n > 0) {
+        notFull.signalAll();
+      }
+    } finally {
+      lock.unlock();
+    }
+    batch.forEach(consumer);
+    return batch.size();
+  }
+
+  /**
+   * Hands up to max results spilled to disk to consumer, oldest first, reading them one at a time.
+   *
+   * <p>
+   * New spills go to a fresh file while the previous one is drained, and the drained results are only removed from disk
+   * by {@link #finishSpilled(boolean)}, so that they are drained again if the transaction persisting them rolls back.
+   * Returns 0 while another drain is unfinished.
+   *
+   * @return number of results handed to consumer.
+   */
+  int drainSpilled(Consumer<GcmResult> consumer, int max) {
+    if (spillFile == null || !spillDraining.compareAndSet(false, true)) {
+      return 0;
+    }
+    long position = 0;
+    int n = 0;
+    try {
+      if (!Files.exists(drainingFile)) {
+        lock.lock();
+        try {
+          if (!Files.exists(spillFile)) {
+            spillDraining.set(false);
+            return 0;
+          }
+          Files.deleteIfExists(offsetFile);
+          Files.move(spillFile, drainingFile);
+        } finally {
+          lock.unlock();
+        }
+      } else if (Files.exists(offsetFile)) {
+        position = Long.parseLong(new String(Files.readAllBytes(offsetFile), StandardCharsets.US_ASCII).trim());
+      }
+      try (SeekableByteChannel channel = Files.newByteChannel(drainingFile)) {
+        channel.position(position);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+        for (; n < max; n++) {
+          int length;
+          byte[] record;
+          try {
+            length = in.readInt();
+            record = new byte[length];
+            in.readFully(record);
+          } catch (EOFException e) {
+            // end of the file, or a record cut short by a crash while spilling
+            position = -1;
+            break;
+          }
+          try (ObjectInputStream object = new ObjectInputStream(new ByteArrayInputStream(record))) {
+            consumer.accept((GcmResult) object.readObject());
+          }
+          position += Integer.BYTES + length;
+        }
+      }
+    } catch (IOException | ClassNotFoundException | NumberFormatException e) {
+      // rather than failing every drain, give up the unreadable rest of the file once these results are persisted
+      L.warn("Could not read spilled results from {}, {} recovered", drainingFile, n, e);
+      position = -1;
+    }
+    drainedTo = position;
+    return n;
+  }
+
+  /**
+   * Ends the drain started by {@link #drainSpilled(Consumer, int)}, removing the results it read from disk if
+   * committed is {@literal true}, and keeping them for the next drain otherwise. Does nothing if no drain is unfinished.
+   */
+  void finishSpilled(boolean committed) {
+    if (!spillDraining.get()) {
+      return;
+    }
+    try {
+      if (!committed) {
+        return;
+      }
+      if (drainedTo < 0) {
+        Files.deleteIfExists(drainingFile);
+        Files.deleteIfExists(offsetFile);
+      } else {
+        Files.write(offsetFile, Long.toString(drainedTo).getBytes(StandardCharsets.US_ASCII));
+      }
+    } catch (IOException e) {
+      L.warn("Could not remove drained results from {}", drainingFile, e);
+    } finally {
+      spillDraining.set(false);
+    }
+  }
+
+  private boolean spill(GcmResult result) {
+    if (spillFile == null) {
+      return false;
+    }
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+      try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+        out.writeObject(result);
+      }
+      try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(spillFile, StandardOpenOption.CREATE,
+          StandardOpenOption.APPEND))) {
+        out.writeInt(bytes.size());
+        bytes.writeTo(out);
+      }
+      spilled.increment();
+      return true;
+    } catch (IOException e) {
+      L.warn("Could not spill result to {}", spillFile, e);
+      return false;
+    }
+  }
+
+  /**
+   * Gets the number of results held in memory.
+   */
+  int size() {
+    lock.lock();
+    try {
+      return count;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  int capacity() {
+    return items.length;
+  }
+
+  /**
+   * Gets the number of results discarded because the queue was full.
+   */
+  long getDropped() {
+    return dropped.sum();
+  }
+
+  /**
+   * Gets the number of results written to disk because the queue was full.
+   */
+  long getSpilled() {
+    return spilled.sum();
+  }
+}
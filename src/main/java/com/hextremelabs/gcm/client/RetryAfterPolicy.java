@@ -0,0 +1,52 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hextremelabs.gcm.client;
+
+/**
+ * Waits as long as GCM asked for in its {@literal Retry-After} header, and defers to another policy when the header is
+ * absent.
+ */
+public final class RetryAfterPolicy implements RetryPolicy {
+
+  /**
+   * Longest {@literal Retry-After} honoured by default, in milliseconds, the largest delay of {@link ExponentialBackoff}.
+   */
+  public static final long DEFAULT_MAX_DELAY = ExponentialBackoff.DEFAULT_MAX_DELAY;
+
+  private final RetryPolicy fallback;
+  private final long maxDelay;
+
+  /**
+   * Honours {@literal Retry-After} up to {@link #DEFAULT_MAX_DELAY}, falling back to {@link ExponentialBackoff}.
+   */
+  public RetryAfterPolicy() {
+    this(new ExponentialBackoff(), DEFAULT_MAX_DELAY);
+  }
+
+  /**
+   * @param fallback policy used when GCM did not send {@literal Retry-After}.
+   * @param maxDelay longest delay honoured, in milliseconds; longer requests are cut down to it.
+   */
+  public RetryAfterPolicy(RetryPolicy fallback, long maxDelay) {
+    this.fallback = Sender.nonNull(fallback);
+    this.maxDelay = maxDelay;
+  }
+
+  @Override
+  public long delay(int attempt, long previousDelay, long retryAfter) {
+    return retryAfter >= 0 ? Math.min(retryAfter, maxDelay) : fallback.delay(attempt, previousDelay, retryAfter);
+  }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hextremelabs.gcm.client;
+
+/**
+ * Decides how long to wait before retrying a request that GCM could not process.
+ *
+ * <p>
+ * Implementations must be thread-safe, as one policy is shared by every send of a {@link Sender}. A policy can be
+ * plugged in by producing it as a CDI bean; otherwise {@link Sender} honours {@literal Retry-After} and falls back to
+ * {@link ExponentialBackoff}.
+ */
+public interface RetryPolicy {
+
+  /**
+   * Computes the delay before the next attempt.
+   *
+   * @param attempt number of the attempt that just failed, starting at 1.
+   * @param previousDelay delay, in milliseconds, that preceded that attempt, or 0 for the first one.
+   * @param retryAfter delay, in milliseconds, GCM asked for in its {@literal Retry-After} header, or -1 if it did not.
+   *
+   * @return delay before the next attempt, in milliseconds.
+   */
+  long delay(int attempt, long previousDelay, long retryAfter);
+}
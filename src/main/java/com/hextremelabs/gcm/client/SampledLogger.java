@@ -0,0 +1,119 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hextremelabs.gcm.client;
+
+import org.slf4j.Logger;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Logs one category of messages at no more than a number of messages per second, so that a busy sender does not
+ * spend its time writing logs. The first message logged after some were dropped tells how many.
+ *
+ * <p>
+ * Nothing is formatted, nor any sampling state touched, unless the level is enabled.
+ */
+final class SampledLogger {
+
+  private static final long INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+  private final Logger logger;
+  private final AtomicLong intervalStart = new AtomicLong(System.nanoTime());
+  private final AtomicInteger logged = new AtomicInteger();
+  private final AtomicInteger suppressed = new AtomicInteger();
+  private volatile int limit;
+
+  /**
+   * @param logger the logger written to.
+   * @param limit the most messages logged per second, or 0 to log them all.
+   */
+  SampledLogger(Logger logger, int limit) {
+    this.logger = logger;
+    this.limit = limit;
+  }
+
+  void setLimit(int limit) {
+    this.limit = limit;
+  }
+
+  boolean isDebugEnabled() {
+    return logger.isDebugEnabled();
+  }
+
+  void debug(String format, Object... arguments) {
+    if (logger.isDebugEnabled()) {
+      int dropped = admit();
+      if (dropped == 0) {
+        logger.debug(format, arguments);
+      } else if (dropped > 0) {
+        logger.debug(format + " ({} similar messages suppressed)", withSuppressed(arguments, dropped));
+      }
+    }
+  }
+
+  void info(String format, Object... arguments) {
+    if (logger.isInfoEnabled()) {
+      int dropped = admit();
+      if (dropped == 0) {
+        logger.info(format, arguments);
+      } else if (dropped > 0) {
+        logger.info(format + " ({} similar messages suppressed)", withSuppressed(arguments, dropped));
+      }
+    }
+  }
+
+  /**
+   * Counts a message against the current second.
+   *
+   * @return -1 if the message is to be dropped, otherwise the number of messages dropped since the last one logged.
+   */
+  private int admit() {
+    int max = limit;
+    if (max <= 0) {
+      return 0;
+    }
+
+    long now = System.nanoTime();
+    long start = intervalStart.get();
+    if (now - start >= INTERVAL && intervalStart.compareAndSet(start, now)) {
+      logged.set(0);
+    }
+    if (logged.incrementAndGet() > max) {
+      suppressed.incrementAndGet();
+      return -1;
+    }
+
+    return suppressed.getAndSet(0);
+  }
+
+  /**
+   * Adds the number of dropped messages to the arguments, ahead of a trailing exception so that it is still logged as
+   * one.
+   */
+  private static Object[] withSuppressed(Object[] arguments, int dropped) {
+    Object[] extended = Arrays.copyOf(arguments, arguments.length + 1);
+    int last = arguments.length;
+    if (last > 0 && arguments[last - 1] instanceof Throwable) {
+      extended[last] = arguments[last - 1];
+      last--;
+    }
+    extended[last] = dropped;
+    return extended;
+  }
+}
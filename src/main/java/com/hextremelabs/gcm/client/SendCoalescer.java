@@ -0,0 +1,175 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hextremelabs.gcm.client;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merges single-recipient sends of identical messages, made within a short window, into one multicast.
+ *
+ * <p>
+ * Messages are identical if their encoded fields are, whatever their instances. A batch is sent once its window
+ * elapses or it reaches its maximum size, and the result of every recipient completes the future of its own send. Its
+ * retries stop at the earliest deadline of its sends, so that none is retried past its own; as identical messages have
+ * the same time to live, the others lose at most a window.
+ */
+final class SendCoalescer {
+
+  /**
+   * Sends the multicast of a batch.
+   */
+  interface MulticastSender {
+
+    CompletableFuture<MulticastResult> send(Message message, List<String> regIds, int retries, long deadline);
+  }
+
+  private final Map<Key, Batch> open = new HashMap<>();
+  private final ScheduledExecutorService scheduler;
+  private final long window;
+  private final int maxBatch;
+
+  /**
+   * @param window time, in milliseconds, a batch waits for more sends.
+   * @param maxBatch number of recipients that sends a batch without waiting, at most
+   * {@link Constants#MULTICAST_SIZE_LIMIT}.
+   */
+  SendCoalescer(ScheduledExecutorService scheduler, long window, int maxBatch) {
+    if (window <= 0 || maxBatch <= 0 || maxBatch > Constants.MULTICAST_SIZE_LIMIT) {
+      throw new IllegalArgumentException("window must be positive and maxBatch between 1 and "
+          + Constants.MULTICAST_SIZE_LIMIT);
+    }
+    this.scheduler = scheduler;
+    this.window = window;
+    this.maxBatch = maxBatch;
+  }
+
+  /**
+   * Adds a send to the batch of its message, opening one if needed.
+   *
+   * @param deadline time, in milliseconds since the epoch, after which the send is not retried, 0 for none.
+   * @param sender sends the batch if this send opens it, so that the coalescer holds no sender beyond a window.
+   * @return future completed with the result of this recipient.
+   */
+  CompletableFuture<GcmResult> submit(Message message, String to, int retries, long deadline,
+      MulticastSender sender) {
+    CompletableFuture<GcmResult> future = new CompletableFuture<>();
+    Key key = new Key(message.getEncodedFields(), retries);
+    Batch full = null;
+    synchronized (open) {
+      Batch batch = open.get(key);
+      if (batch == null) {
+        batch = new Batch(message, retries, deadline, sender);
+        open.put(key, batch);
+        Batch scheduled = batch;
+        scheduler.schedule(() -> close(key, scheduled), window, TimeUnit.MILLISECONDS);
+      }
+      batch.regIds.add(to);
+      batch.futures.add(future);
+      if (batch.deadline == 0 || deadline != 0 && deadline < batch.deadline) {
+        batch.deadline = deadline;
+      }
+      if (batch.regIds.size() >= maxBatch) {
+        open.remove(key);
+        full = batch;
+      }
+    }
+    if (full != null) {
+      flush(full);
+    }
+    return future;
+  }
+
+  private void close(Key key, Batch batch) {
+    synchronized (open) {
+      // the batch may have been flushed for being full, and replaced by a new one
+      if (!open.remove(key, batch)) {
+        return;
+      }
+    }
+    flush(batch);
+  }
+
+  private void flush(Batch batch) {
+    List<CompletableFuture<GcmResult>> futures = batch.futures;
+    CompletableFuture<MulticastResult> multicast;
+    try {
+      multicast = batch.sender.send(batch.message, batch.regIds, batch.retries, batch.deadline);
+    } catch (RuntimeException e) {
+      futures.forEach(future -> future.completeExceptionally(e));
+      return;
+    }
+    multicast.whenComplete((result, e) -> {
+      for (int i = 0; i < futures.size(); i++) {
+        if (e == null) {
+          futures.get(i).complete(result.getResults().get(i));
+        } else {
+          futures.get(i).completeExceptionally(e);
+        }
+      }
+    });
+  }
+
+  private static final class Batch {
+
+    final Message message;
+    final int retries;
+    final MulticastSender sender;
+    final List<String> regIds = new ArrayList<>();
+    final List<CompletableFuture<GcmResult>> futures = new ArrayList<>();
+    long deadline;
+
+    Batch(Message message, int retries, long deadline, MulticastSender sender) {
+      this.message = message;
+      this.retries = retries;
+      this.sender = sender;
+      this.deadline = deadline;
+    }
+  }
+
+  private static final class Key {
+
+    private final byte[] fields;
+    private final int retries;
+    private final int hash;
+
+    Key(byte[] fields, int retries) {
+      this.fields = fields;
+      this.retries = retries;
+      hash = 31 * Arrays.hashCode(fields) + retries;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Key)) {
+        return false;
+      }
+      Key key = (Key) other;
+      return retries == key.retries && Arrays.equals(fields, key.fields);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hextremelabs.gcm.client;
+
+/**
+ * Receives the outcome of each registration id of a multicast sent in summary-only mode, as each result is decoded.
+ *
+ * <p>
+ * No {@link GcmResult} is created for these registration ids, so applications that only care about failures and
+ * canonical ids can send to large audiences without accumulating one object per recipient.
+ *
+ * <p>
+ * Callbacks run on the thread decoding the response, possibly concurrently for different chunks of an audience, and
+ * should return quickly. Every method does nothing by default.
+ */
+public interface SendListener {
+
+  /**
+   * Called when the message was accepted for a registration id.
+   */
+  default void onSuccess(String registrationId, String messageId) {
+  }
+
+  /**
+   * Called when the message was accepted but GCM reports a canonical registration id for the device, which should
+   * replace registrationId in the application's datastore.
+   */
+  default void onCanonicalId(String registrationId, String canonicalRegistrationId, String messageId) {
+  }
+
+  /**
+   * Called when the message was rejected for a registration id with an error that retrying would not fix, such as
+   * {@link Constants#ERROR_NOT_REGISTERED}.
+   */
+  default void onPermanentFailure(String registrationId, String errorCode) {
+  }
+
+  /**
+   * Called when the message could not be delivered to a registration id because of a transient error, such as
+   * {@link Constants#ERROR_UNAVAILABLE}, and no retry is left, or with {@link Constants#ERROR_DEADLINE_EXCEEDED} if the
+   * retry would have started after the deadline of the send.
+   */
+  default void onRetryableFailure(String registrationId, String errorCode) {
+  }
+}
@@ -21,70 +21,67 @@ import com.hextremelabs.quickee.core.DataHelper;
 import com.hextremelabs.quickee.response.BaseResponse;
 import com.hextremelabs.quickee.response.DefaultResponses;
 import com.hextremelabs.quickee.response.ResponseCodes;
-import org.json.simple.JSONArray;
-import org.json.simple.JSONObject;
-import org.json.simple.JSONValue;
-import org.json.simple.parser.JSONParser;
-import org.json.simple.parser.ParseException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.ejb.Asynchronous;
 import javax.ejb.Schedule;
+import javax.ejb.SessionContext;
 import javax.ejb.Stateless;
 import javax.ejb.TransactionAttribute;
 import javax.ejb.TransactionAttributeType;
+import javax.enterprise.concurrent.ManagedScheduledExecutorService;
+import javax.enterprise.inject.Instance;
+import javax.enterprise.inject.spi.CDI;
 import javax.inject.Inject;
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
 import java.io.BufferedReader;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.Serializable;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
-import java.util.concurrent.ConcurrentLinkedQueue;
-
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import static com.hextremelabs.gcm.client.Constants.ERROR_DEADLINE_EXCEEDED;
+import static com.hextremelabs.gcm.client.Constants.ERROR_NOT_SENT;
 import static com.hextremelabs.gcm.client.Constants.GCM_SEND_ENDPOINT;
-import static com.hextremelabs.gcm.client.Constants.JSON_CANONICAL_IDS;
-import static com.hextremelabs.gcm.client.Constants.JSON_ERROR;
-import static com.hextremelabs.gcm.client.Constants.JSON_FAILURE;
-import static com.hextremelabs.gcm.client.Constants.JSON_MESSAGE_ID;
-import static com.hextremelabs.gcm.client.Constants.JSON_MULTICAST_ID;
-import static com.hextremelabs.gcm.client.Constants.JSON_NOTIFICATION;
-import static com.hextremelabs.gcm.client.Constants.JSON_NOTIFICATION_BADGE;
-import static com.hextremelabs.gcm.client.Constants.JSON_NOTIFICATION_BODY;
-import static com.hextremelabs.gcm.client.Constants.JSON_NOTIFICATION_BODY_LOC_ARGS;
-import static com.hextremelabs.gcm.client.Constants.JSON_NOTIFICATION_BODY_LOC_KEY;
-import static com.hextremelabs.gcm.client.Constants.JSON_NOTIFICATION_CLICK_ACTION;
-import static com.hextremelabs.gcm.client.Constants.JSON_NOTIFICATION_COLOR;
-import static com.hextremelabs.gcm.client.Constants.JSON_NOTIFICATION_ICON;
-import static com.hextremelabs.gcm.client.Constants.JSON_NOTIFICATION_SOUND;
-import static com.hextremelabs.gcm.client.Constants.JSON_NOTIFICATION_TAG;
-import static com.hextremelabs.gcm.client.Constants.JSON_NOTIFICATION_TITLE;
-import static com.hextremelabs.gcm.client.Constants.JSON_NOTIFICATION_TITLE_LOC_ARGS;
-import static com.hextremelabs.gcm.client.Constants.JSON_NOTIFICATION_TITLE_LOC_KEY;
-import static com.hextremelabs.gcm.client.Constants.JSON_PAYLOAD;
-import static com.hextremelabs.gcm.client.Constants.JSON_REGISTRATION_IDS;
-import static com.hextremelabs.gcm.client.Constants.JSON_RESULTS;
-import static com.hextremelabs.gcm.client.Constants.JSON_SUCCESS;
-import static com.hextremelabs.gcm.client.Constants.JSON_TO;
-import static com.hextremelabs.gcm.client.Constants.PARAM_COLLAPSE_KEY;
-import static com.hextremelabs.gcm.client.Constants.PARAM_CONTENT_AVAILABLE;
-import static com.hextremelabs.gcm.client.Constants.PARAM_DELAY_WHILE_IDLE;
-import static com.hextremelabs.gcm.client.Constants.PARAM_DRY_RUN;
-import static com.hextremelabs.gcm.client.Constants.PARAM_PRIORITY;
-import static com.hextremelabs.gcm.client.Constants.PARAM_RESTRICTED_PACKAGE_NAME;
-import static com.hextremelabs.gcm.client.Constants.PARAM_TIME_TO_LIVE;
-import static com.hextremelabs.gcm.client.Constants.TOKEN_CANONICAL_REG_ID;
+import static com.hextremelabs.gcm.client.Constants.MULTICAST_SIZE_LIMIT;
 import static com.hextremelabs.gcm.client.Constants.TOPIC_PREFIX;
+import static com.hextremelabs.gcm.client.MulticastResult.NO_MULTICAST_ID;
 import static com.hextremelabs.quickee.response.ResponseCodes.REQUEST_SUCCESSFUL;
 import static com.hextremelabs.quickee.response.ResponseCodes.TRANSACTION_FAILED;
 
@@ -99,685 +96,2661 @@ public class Sender {
 
   /**
    * Initial delay before first retry, without jitter.
+   *
+   * @deprecated retries are scheduled by a {@link RetryPolicy}, see {@link ExponentialBackoff#DEFAULT_INITIAL_DELAY}.
    */
+  @Deprecated
   protected static final int BACKOFF_INITIAL_DELAY = 1000;
 
   /**
    * Maximum delay before a retry.
+   *
+   * @deprecated retries are scheduled by a {@link RetryPolicy}, see {@link ExponentialBackoff#DEFAULT_MAX_DELAY}.
    */
+  @Deprecated
   protected static final int MAX_BACKOFF_DELAY = 1024000;
 
-  protected static final Logger L = LoggerFactory.getLogger(Sender.class);
+  /**
+   * Number of chunks of a large multicast sent at once, unless {@literal gcm.multicast.parallelism} is set.
+   */
+  protected static final int DEFAULT_MULTICAST_PARALLELISM = 4;
 
-  private static final ConcurrentLinkedQueue<GcmResult> MESSAGE_QUEUE = new ConcurrentLinkedQueue<>();
+  protected static final Logger L = LoggerFactory.getLogger(Sender.class);
 
+  /**
+   * @deprecated no longer used, retry delays are drawn by the {@link RetryPolicy}.
+   */
+  @Deprecated
   protected final Random random = new Random();
 
+  /**
+   * Messages logged per second in each sampled category, unless {@literal gcm.log.rate} is set.
+   */
+  protected static final int DEFAULT_LOG_RATE = 10;
+
+  /**
+   * Results of sends, logged at info.
+   */
+  private static final SampledLogger RESULT_LOG = new SampledLogger(L, DEFAULT_LOG_RATE);
+
+  /**
+   * Attempts, requests and dead registration ids skipped, logged at debug.
+   */
+  private static final SampledLogger ATTEMPT_LOG = new SampledLogger(L, DEFAULT_LOG_RATE);
+
+  /**
+   * Requests that failed and will be retried, logged at debug.
+   */
+  private static final SampledLogger FAILURE_LOG = new SampledLogger(L, DEFAULT_LOG_RATE);
+
+  /**
+   * Number of results held in memory while waiting to be persisted, unless {@literal gcm.queue.capacity} is set.
+   */
+  protected static final int DEFAULT_QUEUE_CAPACITY = 10000;
+
+  /**
+   * Number of results persisted between flushes of the persistence context, one id block of {@link GcmResult}.
+   */
+  private static final int PERSIST_BATCH_SIZE = GcmResult.ID_ALLOCATION_SIZE;
+
+  /**
+   * Results waiting to be persisted, shared by all senders and created by the first one with its configuration.
+   */
+  private static volatile ResultQueue resultQueue;
+
+  private static final AtomicBoolean DRAINING = new AtomicBoolean();
+
+  /**
+   * Size of a journal segment file, in bytes, unless {@literal gcm.journal.segment.size} is set.
+   */
+  protected static final int DEFAULT_JOURNAL_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+  /**
+   * Time, in milliseconds, between two fsyncs of the journal, unless {@literal gcm.journal.sync.interval} is set.
+   */
+  protected static final int DEFAULT_JOURNAL_SYNC_INTERVAL = 10;
+
+  /**
+   * Coalescer of single-recipient sends, {@literal null} unless {@literal gcm.coalesce.window} is set.
+   */
+  private static volatile SendCoalescer coalescer;
+
+  /**
+   * Journal of pending sends and unpersisted results, {@literal null} unless {@literal gcm.journal.dir} is set.
+   */
+  private static volatile Journal journal;
+
+  /**
+   * Number of dead registration ids the registry is sized for, unless {@literal gcm.deadtokens.expected} is set.
+   */
+  protected static final int DEFAULT_DEAD_TOKENS_EXPECTED = 1000000;
+
+  /**
+   * Number of registration ids looked up, or loaded, per query on the dead token table.
+   */
+  private static final int DEAD_TOKEN_QUERY_SIZE = 500;
+
+  /**
+   * Registration ids that are not sent to, {@literal null} unless {@literal gcm.deadtokens.enabled} is set.
+   */
+  private static volatile DeadTokenRegistry deadTokens;
+
+  /**
+   * Canonical ids applied to recipients, {@literal null} unless {@literal gcm.canonical.cache.size} is set.
+   */
+  private static volatile CanonicalIdCache canonicalIds;
+
+  /**
+   * Requests in flight allowed at first, unless {@literal gcm.limit.concurrency} is set.
+   */
+  protected static final int DEFAULT_CONCURRENCY_LIMIT = 16;
+
+  /**
+   * Most requests in flight ever allowed, unless {@literal gcm.limit.concurrency.max} is set.
+   */
+  protected static final int DEFAULT_MAX_CONCURRENCY_LIMIT = 256;
+
+  /**
+   * Longest time, in milliseconds, a request waits to be admitted, unless {@literal gcm.limit.wait} is set.
+   */
+  protected static final int DEFAULT_ADMISSION_WAIT = 30000;
+
+  /**
+   * Throttle of requests to GCM, {@literal null} unless {@literal gcm.limit.rate} or {@literal gcm.limit.concurrency}
+   * is set.
+   */
+  private static volatile AdmissionController admission;
+
+  /**
+   * Number of request outcomes the circuit breaker looks at, unless {@literal gcm.circuit.window} is set.
+   */
+  protected static final int DEFAULT_CIRCUIT_WINDOW = 20;
+
+  /**
+   * Percentage of failed requests that opens the circuit, unless {@literal gcm.circuit.threshold} is set.
+   */
+  protected static final int DEFAULT_CIRCUIT_THRESHOLD = 50;
+
+  /**
+   * Time, in milliseconds, the circuit stays open, unless {@literal gcm.circuit.open} is set.
+   */
+  protected static final int DEFAULT_CIRCUIT_OPEN_TIME = 30000;
+
+  /**
+   * Number of probe requests sent while the circuit is half-open, unless {@literal gcm.circuit.probes} is set.
+   */
+  protected static final int DEFAULT_CIRCUIT_PROBES = 3;
+
+  /**
+   * Circuit breaker in front of GCM, {@literal null} unless {@literal gcm.circuit.enabled} is set.
+   */
+  private static volatile CircuitBreaker circuitBreaker;
+
+  /**
+   * Request writers kept for reuse, so that their buffers are not reallocated for every request.
+   */
+  private static final BlockingQueue<JsonRequestWriter> WRITERS = new ArrayBlockingQueue<>(32);
+
+  /**
+   * Largest buffer, in bytes, that a pooled request writer may keep.
+   */
+  private static final int MAX_POOLED_WRITER_CAPACITY = 256 * 1024;
+
+  /**
+   * Retries waiting on the scheduler for their delay to elapse, across all senders.
+   */
+  private static final AtomicInteger PENDING_RETRIES = new AtomicInteger();
+
+  /**
+   * Sends given up because a retry would have started after their deadline, across all senders.
+   */
+  private static final LongAdder EXPIRED_SENDS = new LongAdder();
+
+  /**
+   * Time, in milliseconds, a blocking send waits past its deadline for the attempt in flight to end.
+   */
+  private static final long AWAIT_GRACE = TimeUnit.MINUTES.toMillis(1);
+
+  /**
+   * Returned by {@link #postThrottled(JsonRequestWriter, Retry)} for a request the admission controller did not let
+   * through, which says nothing about the health of GCM.
+   */
+  private static final GcmResponse NOT_ADMITTED = new GcmResponse(0, Collections.emptyMap(), null);
+
   @Inject
   @Config
   @Key("gcm.api.key")
   private String key;
 
+  @Inject
+  @Config
+  @Key("gcm.endpoint")
+  private String endpoint;
+
   @Inject
   @Config
   @Key("gcm.ttl")
   private Integer timeToLive;
 
-  @Inject
-  @Config
-  @Key("gcm.messages.persistent")
-  private Boolean persistent;
+  @Inject
+  @Config
+  @Key("gcm.messages.persistent")
+  private Boolean persistent;
+
+  @Inject
+  @Config
+  @Key("gcm.multicast.parallelism")
+  private Integer parallelism;
+
+  @Inject
+  @Config
+  @Key("gcm.queue.capacity")
+  private Integer queueCapacity;
+
+  @Inject
+  @Config
+  @Key("gcm.queue.overflow")
+  private String queueOverflow;
+
+  @Inject
+  @Config
+  @Key("gcm.queue.spill.file")
+  private String queueSpillFile;
+
+  @Inject
+  @Config
+  @Key("gcm.coalesce.window")
+  private Integer coalesceWindow;
+
+  @Inject
+  @Config
+  @Key("gcm.coalesce.max.batch")
+  private Integer coalesceMaxBatch;
+
+  @Inject
+  @Config
+  @Key("gcm.journal.dir")
+  private String journalDir;
+
+  @Inject
+  @Config
+  @Key("gcm.journal.segment.size")
+  private Integer journalSegmentSize;
+
+  @Inject
+  @Config
+  @Key("gcm.journal.sync.interval")
+  private Integer journalSyncInterval;
+
+  @Inject
+  @Config
+  @Key("gcm.deadtokens.enabled")
+  private Boolean deadTokensEnabled;
+
+  @Inject
+  @Config
+  @Key("gcm.deadtokens.expected")
+  private Integer deadTokensExpected;
+
+  @Inject
+  @Config
+  @Key("gcm.canonical.cache.size")
+  private Integer canonicalCacheSize;
+
+  @Inject
+  @Config
+  @Key("gcm.canonical.persistent")
+  private Boolean canonicalPersistent;
+
+  @Inject
+  @Config
+  @Key("gcm.limit.rate")
+  private Integer limitRate;
+
+  @Inject
+  @Config
+  @Key("gcm.limit.burst")
+  private Integer limitBurst;
+
+  @Inject
+  @Config
+  @Key("gcm.limit.concurrency")
+  private Integer limitConcurrency;
+
+  @Inject
+  @Config
+  @Key("gcm.limit.concurrency.max")
+  private Integer limitConcurrencyMax;
+
+  @Inject
+  @Config
+  @Key("gcm.limit.wait")
+  private Integer limitWait;
+
+  @Inject
+  @Config
+  @Key("gcm.circuit.enabled")
+  private Boolean circuitEnabled;
+
+  @Inject
+  @Config
+  @Key("gcm.circuit.window")
+  private Integer circuitWindow;
+
+  @Inject
+  @Config
+  @Key("gcm.circuit.threshold")
+  private Integer circuitThreshold;
+
+  @Inject
+  @Config
+  @Key("gcm.circuit.open")
+  private Integer circuitOpenTime;
+
+  @Inject
+  @Config
+  @Key("gcm.circuit.probes")
+  private Integer circuitProbes;
+
+  @Inject
+  @Config
+  @Key("gcm.log.rate")
+  private Integer logRate;
+
+  @Inject
+  @Config
+  @Key("gcm.log.recipients")
+  private Integer logRecipients;
+
+  @Inject
+  private DefaultResponses dr;
+
+  @PersistenceContext
+  private EntityManager em;
+
+  @Resource
+  private ManagedScheduledExecutorService scheduler;
+
+  @Resource
+  private SessionContext context;
+
+  @Resource
+  private TransactionSynchronizationRegistry transactions;
+
+  @Resource(lookup = "java:app/AppName")
+  private String applicationName;
+
+  @Inject
+  private Instance<GcmTransport> transports;
+
+  @Inject
+  private Instance<RetryPolicy> retryPolicies;
+
+  @Inject
+  private Instance<DeadTokenListener> deadTokenListenerBeans;
+
+  private GcmTransport transport;
+
+  private RetryPolicy retryPolicy;
+
+  // resolved once, as every lookup of a dependent bean creates an instance that lives as long as this one
+  private List<DeadTokenListener> deadTokenListeners;
+
+  @PostConstruct
+  void init() {
+    transport = transports.isUnsatisfied() ? new HttpUrlConnectionTransport() : transports.get();
+    retryPolicy = retryPolicies.isUnsatisfied() ? new RetryAfterPolicy() : retryPolicies.get();
+    deadTokenListeners = new ArrayList<>();
+    deadTokenListenerBeans.forEach(deadTokenListeners::add);
+    // shared by every pooled instance, so none may keep this one: each call passes in what it needs of its caller
+    if (resultQueue == null) {
+      synchronized (Sender.class) {
+        if (resultQueue == null) {
+          resultQueue = new ResultQueue(queueCapacity == null ? DEFAULT_QUEUE_CAPACITY : queueCapacity,
+              queueOverflow == null ? OverflowPolicy.FLUSH : OverflowPolicy.valueOf(queueOverflow),
+              Paths.get(queueSpillFile == null ? System.getProperty("java.io.tmpdir") + "/gcm-results-"
+                  + applicationName + ".spill" : queueSpillFile),
+              Sender::acknowledge);
+          if (coalesceWindow != null && coalesceWindow > 0) {
+            coalescer = new SendCoalescer(scheduler, coalesceWindow,
+                coalesceMaxBatch == null ? MULTICAST_SIZE_LIMIT : coalesceMaxBatch);
+          }
+          if (Boolean.TRUE.equals(deadTokensEnabled)) {
+            deadTokens = new DeadTokenRegistry(
+                deadTokensExpected == null ? DEFAULT_DEAD_TOKENS_EXPECTED : deadTokensExpected);
+          }
+          if (canonicalCacheSize != null && canonicalCacheSize > 0) {
+            canonicalIds = new CanonicalIdCache(canonicalCacheSize, Boolean.TRUE.equals(canonicalPersistent));
+          }
+          if (limitRate != null || limitConcurrency != null) {
+            int rate = limitRate == null ? 0 : limitRate;
+            int concurrency = limitConcurrency == null ? DEFAULT_CONCURRENCY_LIMIT : limitConcurrency;
+            int maxConcurrency = limitConcurrencyMax == null
+                ? Math.max(concurrency, DEFAULT_MAX_CONCURRENCY_LIMIT) : limitConcurrencyMax;
+            admission = new AdmissionController(rate, limitBurst == null ? Math.max(rate, 1) : limitBurst,
+                concurrency, maxConcurrency, limitWait == null ? DEFAULT_ADMISSION_WAIT : limitWait);
+          }
+          if (Boolean.TRUE.equals(circuitEnabled)) {
+            circuitBreaker = new CircuitBreaker(circuitWindow == null ? DEFAULT_CIRCUIT_WINDOW : circuitWindow,
+                circuitThreshold == null ? DEFAULT_CIRCUIT_THRESHOLD : circuitThreshold,
+                circuitOpenTime == null ? DEFAULT_CIRCUIT_OPEN_TIME : circuitOpenTime,
+                circuitProbes == null ? DEFAULT_CIRCUIT_PROBES : circuitProbes, Sender::onCircuitStateChange);
+          }
+          if (logRate != null) {
+            RESULT_LOG.setLimit(logRate);
+            ATTEMPT_LOG.setLimit(logRate);
+            FAILURE_LOG.setLimit(logRate);
+          }
+          if (logRecipients != null) {
+            Abbreviated.setMaxElements(logRecipients);
+          }
+          GcmMetrics metrics = GcmMetrics.get();
+          metrics.register();
+          for (MetricsAdapter adapter : CDI.current().select(MetricsAdapter.class)) {
+            metrics.bind(adapter);
+          }
+          if (journalDir != null) {
+            openJournal();
+          }
+          // through the container, so that the state is restored within an invocation of its own
+          context.getBusinessObject(Sender.class).restore();
+        }
+      }
+    }
+  }
+
+  /**
+   * Restores the state kept from earlier runs: loads the persisted dead tokens and canonical ids, then restarts the
+   * sends and re-queues the results found in the journal. Invoked once the shared state is built; applications need not
+   * call it.
+   */
+  @Asynchronous
+  public void restore() {
+    if (deadTokens != null) {
+      loadDeadTokens();
+    }
+    if (canonicalIds != null && Boolean.TRUE.equals(canonicalPersistent)) {
+      loadCanonicalIds();
+    }
+    if (journal != null) {
+      recover();
+    }
+  }
+
+  private void openJournal() {
+    try {
+      journal = new Journal(Paths.get(journalDir),
+          journalSegmentSize == null ? DEFAULT_JOURNAL_SEGMENT_SIZE : journalSegmentSize,
+          journalSyncInterval == null ? DEFAULT_JOURNAL_SYNC_INTERVAL : journalSyncInterval);
+    } catch (IOException e) {
+      L.error("Could not open journal in {}, sends and results will not survive a restart", journalDir, e);
+    }
+  }
+
+  private static void onCircuitStateChange(CircuitBreakerEvent event) {
+    if (event.getState() == CircuitState.OPEN) {
+      L.warn("GCM circuit opened, requests fail fast");
+    } else {
+      L.info("GCM circuit {}", event.getState() == CircuitState.CLOSED ? "closed" : "half-opened");
+    }
+    try {
+      CDI.current().getBeanManager().fireEvent(event);
+    } catch (RuntimeException e) {
+      L.warn("Observer of {} failed", event, e);
+    }
+  }
+
+  /**
+   * Adds the persisted dead registration ids to the registry, a page at a time.
+   */
+  private void loadDeadTokens() {
+    int loaded = 0;
+    String last = "";
+    List<String> page;
+    do {
+      page = em.createQuery("SELECT d.registrationId FROM DeadToken d WHERE d.registrationId > :last"
+          + " ORDER BY d.registrationId", String.class)
+          .setParameter("last", last)
+          .setMaxResults(DEAD_TOKEN_QUERY_SIZE)
+          .getResultList();
+      page.forEach(deadTokens::load);
+      loaded += page.size();
+      if (!page.isEmpty()) {
+        last = page.get(page.size() - 1);
+      }
+    } while (page.size() == DEAD_TOKEN_QUERY_SIZE);
+    L.info("Loaded {} dead registration ids", loaded);
+  }
+
+  /**
+   * Adds the most recent persisted canonical ids to the cache, up to its size.
+   */
+  private void loadCanonicalIds() {
+    List<CanonicalId> loaded = em.createQuery("SELECT c FROM CanonicalId c ORDER BY c.created DESC", CanonicalId.class)
+        .setMaxResults(canonicalCacheSize)
+        .getResultList();
+    // oldest first, so that they are the first evicted
+    for (int i = loaded.size() - 1; i >= 0; i--) {
+      canonicalIds.load(loaded.get(i).getRegistrationId(), loaded.get(i).getCanonicalId());
+    }
+    L.info("Loaded {} canonical ids", loaded.size());
+  }
+
+  /**
+   * Finds which registration ids are persisted as dead.
+   */
+  private Map<String, String> findDeadTokens(Collection<String> regIds) {
+    Map<String, String> dead = new HashMap<>();
+    List<String> ids = new ArrayList<>(regIds);
+    for (int from = 0; from < ids.size(); from += DEAD_TOKEN_QUERY_SIZE) {
+      em.createQuery("SELECT d FROM DeadToken d WHERE d.registrationId IN :ids", DeadToken.class)
+          .setParameter("ids", ids.subList(from, Math.min(from + DEAD_TOKEN_QUERY_SIZE, ids.size())))
+          .getResultList()
+          .forEach(token -> dead.put(token.getRegistrationId(), token.getErrorCode()));
+    }
+    return dead;
+  }
+
+  /**
+   * Restarts the sends and re-queues the results found in the journal when it was opened.
+   */
+  private void recover() {
+    for (Journal.Record record : journal.recover()) {
+      Object value;
+      try {
+        value = Journal.decode(record.payload);
+      } catch (IOException e) {
+        L.warn("Could not read journal record {}, discarding it", record.sequence, e);
+        journal.acknowledge(record.sequence);
+        continue;
+      }
+
+      if (value instanceof GcmResult) {
+        GcmResult result = (GcmResult) value;
+        result.setJournalSequence(record.sequence);
+        enqueue(Collections.singletonList(result));
+      } else {
+        JournaledSend send = (JournaledSend) value;
+        if (send.deadline != 0 && send.deadline <= System.currentTimeMillis()) {
+          L.info("Discarding send {} of message {}, its deadline has passed", record.sequence, send.message);
+          EXPIRED_SENDS.increment();
+          journal.acknowledge(record.sequence);
+          continue;
+        }
+        L.info("Restarting send {} of message {}", record.sequence, send.message);
+        // only the sends whose caller persists their results get them persisted once restarted
+        if (send.to != null) {
+          CompletableFuture<GcmResult> restarted = acknowledgeOnCompletion(
+              startSend(send.message, send.to, send.retries, send.deadline), record.sequence);
+          if (send.persist) {
+            restarted.thenAccept(result -> {
+              if (result.getMessageId() != null) {
+                enqueue(Collections.singletonList(result));
+              }
+            });
+          }
+        } else {
+          CompletableFuture<MulticastResult> restarted = acknowledgeOnCompletion(
+              startSend(send.message, send.regIds, send.retries, send.deadline), record.sequence);
+          if (send.persist) {
+            restarted.thenAccept(result -> enqueue(result.getResults()));
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Gets the number of retries currently waiting for their delay to elapse.
+   */
+  public static int getPendingRetries() {
+    return PENDING_RETRIES.get();
+  }
+
+  /**
+   * Gets the number of sends, or recipients of a multicast, given up because their deadline passed.
+   */
+  public static long getExpiredSends() {
+    return EXPIRED_SENDS.sum();
+  }
+
+  /**
+   * Gets the number of results held in memory while waiting to be persisted.
+   */
+  public static int getQueuedResults() {
+    ResultQueue queue = resultQueue;
+    return queue == null ? 0 : queue.size();
+  }
+
+  /**
+   * Gets the number of results discarded, rather than persisted, because the queue was full.
+   */
+  public static long getDroppedResults() {
+    ResultQueue queue = resultQueue;
+    return queue == null ? 0 : queue.getDropped();
+  }
+
+  /**
+   * Gets the number of results written to the spill file because the queue was full.
+   */
+  public static long getSpilledResults() {
+    ResultQueue queue = resultQueue;
+    return queue == null ? 0 : queue.getSpilled();
+  }
+
+  /**
+   * Gets the number of sends and results recorded in the journal and not completed or persisted yet.
+   */
+  public static int getJournaledRecords() {
+    Journal current = journal;
+    return current == null ? 0 : current.size();
+  }
+
+  /**
+   * Gets the number of sends to registration ids known to be dead that were skipped.
+   */
+  public static long getSkippedDeadTokens() {
+    DeadTokenRegistry registry = deadTokens;
+    return registry == null ? 0 : registry.getSkipped();
+  }
+
+  /**
+   * Gets the number of recipients that were sent to under their canonical id rather than the one given.
+   */
+  public static long getRewrittenCanonicalIds() {
+    CanonicalIdCache cache = canonicalIds;
+    return cache == null ? 0 : cache.getRewritten();
+  }
+
+  /**
+   * Gets the number of requests to GCM currently allowed in flight, 0 if requests are not throttled.
+   */
+  public static int getConcurrencyLimit() {
+    AdmissionController current = admission;
+    return current == null ? 0 : current.getLimit();
+  }
+
+  /**
+   * Gets the number of requests posted to GCM whose response headers have not been received yet.
+   */
+  public static int getInFlightRequests() {
+    return GcmMetrics.get().getInFlightRequests();
+  }
+
+  /**
+   * Gets the number of requests to GCM that had to wait to be admitted.
+   */
+  public static long getThrottledRequests() {
+    AdmissionController current = admission;
+    return current == null ? 0 : current.getThrottled();
+  }
+
+  /**
+   * Gets the number of requests to GCM that could not be admitted in time, and were treated as unavailability.
+   */
+  public static long getRejectedRequests() {
+    AdmissionController current = admission;
+    return current == null ? 0 : current.getRejected();
+  }
+
+  /**
+   * Gets the state of the circuit breaker in front of GCM, {@link CircuitState#CLOSED} if there is none.
+   */
+  public static CircuitState getCircuitState() {
+    CircuitBreaker breaker = circuitBreaker;
+    return breaker == null ? CircuitState.CLOSED : breaker.getState();
+  }
+
+  /**
+   * Gets the number of requests to GCM that failed fast because the circuit was open.
+   */
+  public static long getShortCircuitedRequests() {
+    CircuitBreaker breaker = circuitBreaker;
+    return breaker == null ? 0 : breaker.getRejected();
+  }
+
+  private static void close(Closeable closeable) {
+    if (closeable != null) {
+      try {
+        closeable.close();
+      } catch (IOException e) {
+        L.debug("IOException closing stream", e);
+      }
+    }
+  }
+
+  /**
+   * Creates a map with just one key-value pair.
+   */
+  protected static Map<String, String> newKeyValues(String key, String value) {
+    Map<String, String> keyValues = new HashMap<>(1);
+    keyValues.put(nonNull(key), nonNull(value));
+    return keyValues;
+  }
+
+  /**
+   * Creates a {@link StringBuilder} to be used as the body of an HTTP POST.
+   *
+   * @param name initial parameter for the POST.
+   * @param value initial value for that parameter.
+   * @return StringBuilder to be used an HTTP POST body.
+   */
+  protected static StringBuilder newBody(String name, String value) {
+    return new StringBuilder(nonNull(name)).append('=').append(nonNull(value));
+  }
+
+  /**
+   * Adds a new parameter to the HTTP POST body.
+   *
+   * @param body HTTP POST body.
+   * @param name parameter's name.
+   * @param value parameter's value.
+   */
+  protected static void addParameter(StringBuilder body, String name, String value) {
+    nonNull(body).append('&')
+        .append(nonNull(name)).append('=').append(nonNull(value));
+  }
+
+  /**
+   * Convenience method to convert an InputStream to a String.
+   * <p>
+   * If the stream ends in a newline character, it will be stripped.
+   * <p>
+   * If the stream is {@literal null}, returns an empty string.
+   */
+  protected static String getString(InputStream stream) throws IOException {
+    if (stream == null) {
+      return "";
+    }
+
+    BufferedReader reader = new BufferedReader(new InputStreamReader(stream));
+    StringBuilder content = new StringBuilder();
+
+    String newLine;
+    do {
+      newLine = reader.readLine();
+
+      if (newLine != null) {
+        content.append(newLine).append('\n');
+      }
+    } while (newLine != null);
+
+    if (content.length() > 0) {
+      // strip last newline
+      content.setLength(content.length() - 1);
+    }
+
+    return content.toString();
+  }
+
+  /**
+   * Make an HTTP post to a given URL.
+   *
+   * @return HTTP response.
+   *
+   * @deprecated messages are posted through a {@link GcmTransport}, which this method is not used by.
+   */
+  @Deprecated
+  protected HttpURLConnection post(String url, String body) throws IOException {
+    return post(url, "application/x-www-form-urlencoded;charset=UTF-8", body);
+  }
+
+  /**
+   * Makes an HTTP POST request to a given endpoint.
+   *
+   * <p>
+   * <strong>Note: </strong> the returned connected should not be disconnected, otherwise it would kill persistent
+   * connections made using Keep-Alive.
+   *
+   * @param url endpoint to post the request.
+   * @param contentType type of request.
+   * @param body body of the request.
+   *
+   * @return the underlying connection.
+   *
+   * @throws IOException propagated from underlying methods.
+   *
+   * @deprecated messages are posted through a {@link GcmTransport}, which this method is not used by; produce a
+   * {@link HttpUrlConnectionTransport} or another transport to change how they are posted.
+   */
+  @Deprecated
+  protected HttpURLConnection post(String url, String contentType, String body) throws IOException {
+    if (url == null || contentType == null || body == null) {
+      throw new IllegalArgumentException("arguments cannot be null");
+    }
+    if (!url.startsWith("https://")) {
+      L.warn("URL does not use https: {}", url);
+    }
+
+    L.debug("Sending POST to {}", url);
+    byte[] bytes = body.getBytes(UTF8);
+    HttpURLConnection conn = getConnection(url);
+    conn.setDoOutput(true);
+    conn.setUseCaches(false);
+    conn.setFixedLengthStreamingMode(bytes.length);
+    conn.setRequestMethod("POST");
+    conn.setRequestProperty("Content-Type", contentType);
+    conn.setRequestProperty("Authorization", "key=" + key);
+    OutputStream out = conn.getOutputStream();
+
+    try {
+      out.write(bytes);
+    } finally {
+      close(out);
+    }
+
+    return conn;
+  }
+
+  /**
+   * Gets an {@link HttpURLConnection} given an URL.
+   *
+   * @deprecated messages are posted through a {@link GcmTransport}, which this method is not used by.
+   */
+  @Deprecated
+  protected HttpURLConnection getConnection(String url) throws IOException {
+    return (HttpURLConnection) new URL(url).openConnection();
+  }
+
+  /**
+   * @deprecated retries are scheduled on the managed executor rather than slept on.
+   */
+  @Deprecated
+  void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  static <T> T nonNull(T argument) {
+    if (argument == null) {
+      throw new IllegalArgumentException("argument cannot be null");
+    }
+
+    return argument;
+  }
+
+  public BaseResponse<GcmResult> send(String message, String to) {
+    Message msg = toGcmMessage(message);
+    BaseResponse<GcmResult> response;
+    try {
+      long deadline = deadline(msg);
+      GcmResult result = await(sendAsync(msg, to, 3, deadline, true), deadline);
+      if (result.getMessageId() == null) {
+        response = new BaseResponse<>(TRANSACTION_FAILED, result.getErrorCodeName(), result);
+      } else {
+        RESULT_LOG.info("Push notification sent to {}. Result = {}", to, result);
+        if (persistent) {
+          queue(Collections.singletonList(result));
+        }
+        response = new BaseResponse<>(result);
+      }
+    } catch (IOException ex) {
+      L.warn("Error contacting GCM.", ex);
+      response = new BaseResponse<>(ResponseCodes.SERVICE_ERROR, "Error contacting GCM.");
+    }
+
+    return response;
+  }
+
+  public BaseResponse<MulticastResult> send(String message, Collection<String> to) {
+    if (DataHelper.hasBlank(to)) {
+      return new BaseResponse<>();
+    }
+
+    Message msg = toGcmMessage(message);
+    BaseResponse<MulticastResult> response;
+    try {
+      long deadline = deadline(msg);
+      MulticastResult mr = await(sendAsync(msg, to, 3, deadline, true), deadline);
+      RESULT_LOG.info("Multicast message sent. {} succeeded, {} failed.", mr.getSuccess(), mr.getFailure());
+      if (persistent) {
+        queue(mr.getResults());
+      }
+      response = new BaseResponse<>(dr.status(mr.getFailure() == 0
+          ? REQUEST_SUCCESSFUL : mr.getSuccess() == 0
+          ? TRANSACTION_FAILED : ResponseCodes.PARTIAL_SUCCESS), mr);
+    } catch (IOException ex) {
+      L.warn("Error contacting GCM.", ex);
+      response = new BaseResponse<>(ResponseCodes.SERVICE_ERROR, "Error contacting GCM.");
+    }
+
+    return response;
+  }
+
+  public BaseResponse<GcmResult> broadcast(String message, String topic) {
+    return send(message, "/topics/" + topic);
+  }
+
+  private Message toGcmMessage(String message) {
+    Message msg = new Message.Builder()
+        //.collapseKey(messageJson)
+        .timeToLive(timeToLive)
+        //.delayWhileIdle(true)
+        .addData("message", message)
+        //.notification(new Notification.Builder("clear_grey600").title(message.messageType()).body(messageJson).build())
+        .build();
+    return msg;
+  }
+
+  /**
+   * Sends a message to one device, retrying in case of unavailability.
+   *
+   * <p>
+   * <strong>Note: </strong> this method waits for retries scheduled by the {@link RetryPolicy} and hence could block
+   * the calling thread for many seconds. See {@link #sendAsync(Message, String, int)}.
+   *
+   * @param message message to be sent, including the device's registration id.
+   * @param to registration token, notification key, or topic where the message will be sent.
+   * @param retries number of retries in case of service unavailability errors.
+   *
+   * @return result of the request (see its javadoc for more details).
+   *
+   * @throws IllegalArgumentException if to is {@literal null}.
+   * @throws InvalidRequestException if GCM didn't returned a 200 or 5xx status.
+   * @throws IOException if message could not be sent.
+   */
+  public GcmResult send(Message message, String to, int retries) throws IOException {
+    return await(sendAsync(message, to, retries), deadline(message));
+  }
+
+  /**
+   * Sends a message without retrying in case of service unavailability. See {@link #send(Message, String, int)} for
+   * more info.
+   *
+   * @return result of the post, or {@literal null} if the GCM service was unavailable or any network exception caused
+   * the request to fail, or if the response contains more than one result.
+   *
+   * @throws InvalidRequestException if GCM didn't returned a 200 or 5xx status.
+   * @throws IllegalArgumentException if to is {@literal null}.
+   */
+  public GcmResult sendNoRetry(Message message, String to) throws IOException {
+    return sendNoRetry(message, to, null);
+  }
+
+  private GcmResult sendNoRetry(Message message, String to, Retry retry) throws IOException {
+    nonNull(to);
+    GcmResponse response;
+    JsonRequestWriter writer = acquireWriter();
+    try {
+      response = makeGcmHttpRequest(writer.writeRequest(message, to, retry == null ? null : retry.timeToLive(message)),
+          retry);
+    } finally {
+      releaseWriter(writer);
+    }
+
+    if (response == null) {
+      return null;
+    }
+
+    boolean healthy = false;
+    GcmResponseParseEvent event = Jfr.AVAILABLE ? GcmResponseParseEvent.start() : null;
+    long start = System.nanoTime();
+    try {
+      GcmResult result = GcmResponseParser.parseSingle(response.getBody(), to);
+      GcmMetrics.get().recordLatency(GcmMetrics.Phase.PARSE, System.nanoTime() - start);
+      if (event != null) {
+        boolean sent = result != null && result.getMessageId() != null;
+        event.complete(1, retry == null ? 1 : retry.attempt, sent ? 1 : 0, sent ? 0 : 1,
+            result == null ? null : result.getErrorCodeName());
+      }
+      if (result != null) {
+        GcmMetrics.get().recordResult(result.getErrorCodeName());
+      }
+      healthy = result == null || !isRetryable(result.getErrorCodeName());
+      return result;
+    } catch (JsonReader.SyntaxException e) {
+      throw newIoException(e);
+    } catch (IOException e) {
+      L.warn("IOException reading response", e);
+      return null;
+    } finally {
+      close(response);
+      recordOutcome(healthy);
+    }
+  }
+
+  /**
+   * Sends a message to many devices, retrying in case of unavailability.
+   *
+   * <p>
+   * <strong>Note: </strong> this method waits for retries scheduled by the {@link RetryPolicy} and hence could block
+   * the calling thread for many seconds.
+   *
+   * <p>
+   * Audiences larger than {@link Constants#MULTICAST_SIZE_LIMIT} are split into chunks which are sent concurrently, see
+   * {@link #sendAsync(Message, Collection, int)}.
+   *
+   * @param message message to be sent.
+   * @param regIds registration id of the devices that will receive the message.
+   * @param retries number of retries in case of service unavailability errors.
+   *
+   * @return combined result of all requests made.
+   *
+   * @throws IllegalArgumentException if registrationIds is {@literal null} or empty.
+   * @throws InvalidRequestException if GCM didn't returned a 200 or 503 status.
+   * @throws IOException if message could not be sent.
+   */
+  public MulticastResult send(Message message, Collection<String> regIds, int retries) throws IOException {
+    return await(sendAsync(message, regIds, retries), deadline(message));
+  }
+
+  /**
+   * Builds the overall result of a multicast send from the per-recipient results collected across attempts.
+   *
+   * @param regIds registration ids in the order they were given by the caller.
+   * @param rewrites canonical id each rewritten registration id was sent to.
+   * @param results latest result of each registration id sent to.
+   * @param multicastIds multicast id of every attempt that got a response, in order, empty if no request was made.
+   *
+   * @return combined result, listing individual results in the same order as regIds.
+   */
+  private MulticastResult summarize(Collection<String> regIds, Map<String, String> rewrites,
+      Map<String, GcmResult> results, List<Long> multicastIds) {
+    List<GcmResult> ordered = new ArrayList<>(regIds.size());
+    for (String regId : regIds) {
+      String canonicalId = rewrites.get(regId);
+      ordered.add(canonicalId == null ? results.get(regId) : withCanonicalId(results.get(canonicalId), canonicalId));
+    }
+    // calculate summary
+    int success = 0, failure = 0, canonicalIds = 0;
+    for (GcmResult result : ordered) {
+      if (result.getMessageId() != null) {
+        success++;
+        if (result.getCanonicalRegistrationId() != null) {
+          canonicalIds++;
+        }
+      } else {
+        failure++;
+      }
+    }
+    // build a new object with the overall result
+    MulticastResult.Builder builder = newResult(success, failure, canonicalIds, multicastIds);
+    // add results, in the same order as the input
+    ordered.forEach(builder::addResult);
+
+    return builder.build();
+  }
+
+  /**
+   * Starts building a result whose multicast id is the first of multicastIds, and retry multicast ids the others.
+   *
+   * @param multicastIds ids of the multicasts posted, in order, empty if no request was posted.
+   */
+  private static MulticastResult.Builder newResult(int success, int failure, int canonicalIds,
+      List<Long> multicastIds) {
+    List<Long> retryMulticastIds = new ArrayList<>(multicastIds);
+    long multicastId = retryMulticastIds.isEmpty() ? NO_MULTICAST_ID : retryMulticastIds.remove(0);
+    return new MulticastResult.Builder(success, failure, canonicalIds, multicastId)
+        .retryMulticastIds(retryMulticastIds);
+  }
+
+  /**
+   * Adds the ids of the multicasts posted for a result to multicastIds.
+   */
+  private static void addMulticastIds(List<Long> multicastIds, MulticastResult result) {
+    if (result.getMulticastId() != NO_MULTICAST_ID) {
+      multicastIds.add(result.getMulticastId());
+    }
+    multicastIds.addAll(result.getRetryMulticastIds());
+  }
+
+  /**
+   * Gives a successful result of a send made to the canonical id of the registration id the caller gave that canonical
+   * id, as GCM would have if sent to the registration id itself.
+   */
+  private static GcmResult withCanonicalId(GcmResult result, String canonicalId) {
+    if (result.getMessageId() == null || result.getCanonicalRegistrationId() != null) {
+      return result;
+    }
+    return new GcmResult.Builder()
+        .messageId(result.getMessageId())
+        .canonicalRegistrationId(canonicalId)
+        .build();
+  }
+
+  /**
+   * Sends a message to one device without blocking the calling thread, retrying in case of unavailability.
+   *
+   * <p>
+   * Each attempt runs on the container's managed scheduled executor and retries are scheduled on it after the delay
+   * given by the {@link RetryPolicy}, so no thread is held while waiting to retry. The request is retried if it could
+   * not be posted, if GCM answered with a 5xx status, or if the result has a retryable error code.
+   *
+   * <p>
+   * If {@literal gcm.coalesce.window} is set, sends of identical messages to registration tokens made within that many
+   * milliseconds are merged into one multicast of up to {@literal gcm.coalesce.max.batch} recipients. Sends to topics
+   * are never merged; sends to notification keys must not be made while coalescing is enabled, as GCM does not accept
+   * them in a multicast.
+   *
+   * <p>
+   * If {@literal gcm.deadtokens.enabled} is set, a registration token GCM already reported as
+   * {@link Constants#ERROR_NOT_REGISTERED} or {@link Constants#ERROR_INVALID_REGISTRATION} is not sent to: the future
+   * is completed at once with a result carrying that error code.
+   *
+   * <p>
+   * If {@literal gcm.canonical.cache.size} is set, a registration token GCM gave a canonical id for is sent to under
+   * that id, and a successful result carries it as its canonical registration id.
+   *
+   * <p>
+   * Retries stop once the message's time to live has elapsed, see {@link #sendAsync(Message, String, int, long)}.
+   *
+   * @param message message to be sent, including the device's registration id.
+   * @param to registration token, notification key, or topic where the message will be sent.
+   * @param retries number of retries in case of service unavailability errors.
+   *
+   * @return future completed with the result of the request, or exceptionally with an {@link IOException} if the
+   * message could not be sent.
+   *
+   * @throws IllegalArgumentException if to is {@literal null}.
+   */
+  public CompletableFuture<GcmResult> sendAsync(Message message, String to, int retries) {
+    return sendAsync(message, to, retries, deadline(message));
+  }
+
+  /**
+   * Sends a message to one device without blocking the calling thread, retrying in case of unavailability until a
+   * deadline. See {@link #sendAsync(Message, String, int)} for more info.
+   *
+   * <p>
+   * A retry that would start after the deadline is not made: the future is completed with a result with error code
+   * {@link Constants#ERROR_DEADLINE_EXCEEDED} instead. Retries are sent with a time to live lowered to the time left
+   * until the deadline.
+   *
+   * @param deadline time, in milliseconds since the epoch, after which the message is not worth sending, 0 for none.
+   */
+  public CompletableFuture<GcmResult> sendAsync(Message message, String to, int retries, long deadline) {
+    return sendAsync(message, to, retries, deadline, false);
+  }
+
+  /**
+   * @param persist whether the caller persists the result, so that the send also does if restarted from the journal.
+   */
+  private CompletableFuture<GcmResult> sendAsync(Message message, String to, int retries, long deadline,
+      boolean persist) {
+    nonNull(to);
+    long[] sequences = journal(new JournaledSend(message, to, null, retries, deadline, persist));
+    return acknowledgeOnCompletion(startSend(message, to, retries, deadline), sequences);
+  }
+
+  /**
+   * Gets the default deadline of a send: when the time to live of its message expires, if it has one.
+   */
+  private static long deadline(Message message) {
+    Integer timeToLive = message.getTimeToLive();
+    return timeToLive == null ? 0 : System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(timeToLive);
+  }
+
+  private CompletableFuture<GcmResult> startSend(Message message, String to, int retries, long deadline) {
+    if (to.startsWith(TOPIC_PREFIX)) {
+      CompletableFuture<GcmResult> future = new CompletableFuture<>();
+      Retry retry = new Retry(retries, deadline);
+      scheduler.execute(() -> attemptAsync(message, to, retry, future));
+      return future;
+    }
+
+    CanonicalIdCache cache = canonicalIds;
+    String target = cache == null ? to : cache.resolve(to);
+    CompletableFuture<GcmResult> future = startSendToToken(message, target, retries, deadline);
+    return target.equals(to) ? future : future.thenApply(result -> withCanonicalId(result, target));
+  }
+
+  private CompletableFuture<GcmResult> startSendToToken(Message message, String to, int retries, long deadline) {
+    DeadTokenRegistry registry = deadTokens;
+    String dead = registry == null ? null : registry.find(to, this::findDeadTokens);
+    if (dead != null) {
+      ATTEMPT_LOG.debug("Not sending message {} to dead regId {}", message, to);
+      return CompletableFuture.completedFuture(new GcmResult.Builder().errorCode(dead).build());
+    }
+
+    SendCoalescer current = coalescer;
+    if (current != null) {
+      return current.submit(message, to, retries, deadline, this::startSend);
+    }
+
+    CompletableFuture<GcmResult> future = new CompletableFuture<>();
+    Retry retry = new Retry(retries, deadline);
+    scheduler.execute(() -> attemptAsync(message, to, retry, future));
+    return future;
+  }
+
+  private void attemptAsync(Message message, String to, Retry retry, CompletableFuture<GcmResult> future) {
+    int attempt = retry.next();
+    ATTEMPT_LOG.debug("Attempt #{} to send message {} to regId {}", attempt, message, to);
+    GcmResult result;
+    try {
+      result = sendNoRetry(message, to, retry);
+    } catch (IOException | RuntimeException e) {
+      future.completeExceptionally(e);
+      return;
+    }
+
+    if (result != null && isRetryable(result.getErrorCodeName())) {
+      overloaded();
+    }
+    boolean retryable = result == null || isRetryable(result.getErrorCodeName());
+    if (retryable && retry.canRetry() && retry.schedule(() -> attemptAsync(message, to, retry, future), future)) {
+      return;
+    }
+    if (retryable && retry.isExpired()) {
+      EXPIRED_SENDS.increment();
+      future.complete(new GcmResult.Builder().errorCode(ERROR_DEADLINE_EXCEEDED).build());
+    } else if (result != null) {
+      recordCanonicalId(to, result.getCanonicalRegistrationId());
+      recordDeadToken(to, result.getErrorCodeName());
+      future.complete(result);
+    } else {
+      future.completeExceptionally(new IOException("Could not send message after " + attempt + " attempts"));
+    }
+  }
+
+  /**
+   * Sends a message to many devices without blocking the calling thread, retrying in case of unavailability.
+   *
+   * <p>
+   * Only the registration ids that failed with a retryable error are sent again, after the delay given by the
+   * {@link RetryPolicy}. Retries are scheduled rather than slept on.
+   *
+   * <p>
+   * Audiences larger than {@link Constants#MULTICAST_SIZE_LIMIT} are split into chunks of that size, at most
+   * {@literal gcm.multicast.parallelism} of which are in flight at once. Their results are merged in the order of
+   * regIds, and every multicast id is kept. Recipients of a chunk that could not be posted get a result with error code
+   * {@link Constants#ERROR_NOT_SENT}; the future only fails if no chunk could be posted.
+   *
+   * <p>
+   * Registration ids known to be dead, see {@link #sendAsync(Message, String, int)}, are left out of the requests and
+   * given a result with the error code GCM reported for them. Registration ids with a known canonical id are sent to
+   * under that id, and each distinct registration id is only sent to once.
+   *
+   * <p>
+   * Retries stop once the message's time to live has elapsed, see {@link #sendAsync(Message, Collection, int, long)}.
+   *
+   * @param message message to be sent.
+   * @param regIds registration id of the devices that will receive the message.
+   * @param retries number of retries in case of service unavailability errors.
+   *
+   * @return future completed with the combined result of all requests made, or exceptionally with an
+   * {@link IOException} if no request could be posted.
+   *
+   * @throws IllegalArgumentException if registrationIds is {@literal null} or empty.
+   */
+  public CompletableFuture<MulticastResult> sendAsync(Message message, Collection<String> regIds, int retries) {
+    return sendAsync(message, regIds, retries, deadline(message));
+  }
+
+  /**
+   * Sends a message to many devices without blocking the calling thread, retrying in case of unavailability until a
+   * deadline. See {@link #sendAsync(Message, Collection, int)} for more info.
+   *
+   * <p>
+   * Registration ids that would be retried after the deadline are not: they get a result with error code
+   * {@link Constants#ERROR_DEADLINE_EXCEEDED} instead. Retries are sent with a time to live lowered to the time left
+   * until the deadline.
+   *
+   * @param deadline time, in milliseconds since the epoch, after which the message is not worth sending, 0 for none.
+   */
+  public CompletableFuture<MulticastResult> sendAsync(Message message, Collection<String> regIds, int retries,
+      long deadline) {
+    return sendAsync(message, regIds, retries, deadline, false);
+  }
+
+  /**
+   * @param persist whether the caller persists the results, so that the send also does if restarted from the journal.
+   */
+  private CompletableFuture<MulticastResult> sendAsync(Message message, Collection<String> regIds, int retries,
+      long deadline, boolean persist) {
+    if (nonNull(regIds).isEmpty()) {
+      throw new IllegalArgumentException("registrationIds cannot be empty");
+    }
+
+    long[] sequences = journal(new JournaledSend(message, null, new ArrayList<>(regIds), retries, deadline, persist));
+    return acknowledgeOnCompletion(startSend(message, regIds, retries, deadline), sequences);
+  }
+
+  private CompletableFuture<MulticastResult> startSend(Message message, Collection<String> regIds, int retries,
+      long deadline) {
+    if (regIds.size() > MULTICAST_SIZE_LIMIT) {
+      return sendInChunks(message, regIds, retries, deadline);
+    }
+
+    return start(new AsyncMulticast(message, regIds, retries, deadline));
+  }
+
+  private CompletableFuture<MulticastResult> start(AsyncMulticast multicast) {
+    if (multicast.skipDeadTokens()) {
+      scheduler.execute(multicast::attempt);
+    }
+    return multicast.future;
+  }
+
+  private CompletableFuture<MulticastResult> start(ListenerMulticast multicast) {
+    if (multicast.skipDeadTokens()) {
+      scheduler.execute(multicast::attempt);
+    }
+    return multicast.future;
+  }
+
+  /**
+   * Sends a message to an audience of any size without holding it in memory, retrying in case of unavailability.
+   *
+   * <p>
+   * Registration ids are pulled from regIds in chunks of {@link Constants#MULTICAST_SIZE_LIMIT}, at most
+   * {@literal gcm.multicast.parallelism} of which are in flight at once, so memory use does not depend on the size of
+   * the audience. The outcome of every chunk is reported to listener as soon as it is known.
+   *
+   * @param message message to be sent.
+   * @param regIds registration ids of the devices that will receive the message, read from a single thread at a time.
+   * @param retries number of retries of each chunk in case of service unavailability errors.
+   * @param listener receives the result of each chunk.
+   *
+   * @return future completed with the summary of all chunks, which has no individual results, or exceptionally if no
+   * chunk could be posted.
+   */
+  public CompletableFuture<MulticastResult> sendAsync(Message message, Iterator<String> regIds, int retries,
+      ChunkListener listener) {
+    return sendInChunks(message, regIds, retries, deadline(message), listener);
+  }
+
+  private CompletableFuture<MulticastResult> sendInChunks(Message message, Iterator<String> regIds, int retries,
+      long deadline, ChunkListener listener) {
+    nonNull(listener);
+    ChunkedMulticast multicast = new ChunkedMulticast(nonNull(regIds),
+        chunk -> start(new AsyncMulticast(message, chunk, retries, deadline)), listener);
+    multicast.start(parallelism == null ? DEFAULT_MULTICAST_PARALLELISM : parallelism);
+    return multicast.future;
+  }
+
+  /**
+   * Sends a message to an audience of any size without holding it in memory. See
+   * {@link #sendAsync(Message, Iterator, int, ChunkListener)} for more info.
+   */
+  public CompletableFuture<MulticastResult> sendAsync(Message message, Stream<String> regIds, int retries,
+      ChunkListener listener) {
+    return sendAsync(message, nonNull(regIds).iterator(), retries, listener)
+        .whenComplete((result, e) -> regIds.close());
+  }
+
+  /**
+   * Sends a message to an audience of any size without holding it in memory, blocking until every chunk is done. See
+   * {@link #sendAsync(Message, Iterator, int, ChunkListener)} for more info.
+   *
+   * @throws IOException if no chunk could be posted.
+   */
+  public MulticastResult send(Message message, Iterator<String> regIds, int retries, ChunkListener listener)
+      throws IOException {
+    return await(sendAsync(message, regIds, retries, listener), deadline(message));
+  }
+
+  /**
+   * Sends a message to many devices in summary-only mode, retrying in case of unavailability.
+   *
+   * <p>
+   * The outcome of every registration id is handed to listener as the response is decoded, and no per-recipient
+   * {@link GcmResult} is kept. Registration ids that failed with a retryable error are sent again after the delay given
+   * by the {@link RetryPolicy}; they are only reported once they succeed or run out of retries. Audiences larger than
+   * {@link Constants#MULTICAST_SIZE_LIMIT} are chunked as in {@link #sendAsync(Message, Collection, int)}; the
+   * recipients of a chunk that could not be posted are reported as retryable failures with error code
+   * {@link Constants#ERROR_NOT_SENT}. Registration ids known to be dead are not sent to, and are reported as permanent failures. Registration ids with a known
+   * canonical id are sent to under that id and reported as {@link SendListener#onCanonicalId(String, String, String)}.
+   *
+   * @param message message to be sent.
+   * @param regIds registration id of the devices that will receive the message.
+   * @param retries number of retries in case of service unavailability errors.
+   * @param listener receives the outcome of each registration id.
+   *
+   * @return future completed with the summary of all requests made, which has no individual results, or exceptionally
+   * with an {@link IOException} if no request could be posted.
+   *
+   * @throws IllegalArgumentException if registrationIds is {@literal null} or empty.
+   */
+  public CompletableFuture<MulticastResult> sendAsync(Message message, Collection<String> regIds, int retries,
+      SendListener listener) {
+    if (nonNull(regIds).isEmpty()) {
+      throw new IllegalArgumentException("registrationIds cannot be empty");
+    }
+    nonNull(listener);
+
+    long deadline = deadline(message);
+    if (regIds.size() > MULTICAST_SIZE_LIMIT) {
+      ChunkedMulticast multicast = new ChunkedMulticast(regIds.iterator(),
+          chunk -> start(new ListenerMulticast(message, chunk, retries, deadline, listener)),
+          new ChunkListener() {
+            @Override
+            public void onChunkSent(int index, List<String> registrationIds, MulticastResult result) {
+            }
+
+            @Override
+            public void onChunkFailed(int index, List<String> registrationIds, Throwable cause) {
+              // the recipients of a chunk that could not be posted were never reported
+              for (String regId : registrationIds) {
+                try {
+                  listener.onRetryableFailure(regId, ERROR_NOT_SENT);
+                } catch (RuntimeException e) {
+                  L.warn("SendListener failed on regId {}", regId, e);
+                }
+              }
+            }
+          });
+      multicast.start(parallelism == null ? DEFAULT_MULTICAST_PARALLELISM : parallelism);
+      return multicast.future;
+    }
+    return start(new ListenerMulticast(message, new ArrayList<>(regIds), retries, deadline, listener));
+  }
+
+  /**
+   * Sends a message to many devices in summary-only mode, blocking until done. See
+   * {@link #sendAsync(Message, Collection, int, SendListener)} for more info.
+   *
+   * @throws IOException if no request could be posted.
+   */
+  public MulticastResult send(Message message, Collection<String> regIds, int retries, SendListener listener)
+      throws IOException {
+    return await(sendAsync(message, regIds, retries, listener), deadline(message));
+  }
+
+  private CompletableFuture<MulticastResult> sendInChunks(Message message, Collection<String> regIds, int retries,
+      long deadline) {
+    List<String> ids = regIds instanceof List ? (List<String>) regIds : new ArrayList<>(regIds);
+    List<List<String>> chunks = new ArrayList<>();
+    for (int from = 0; from < ids.size(); from += MULTICAST_SIZE_LIMIT) {
+      chunks.add(ids.subList(from, Math.min(from + MULTICAST_SIZE_LIMIT, ids.size())));
+    }
+    L.debug("Sending message to {} regIds in {} chunks", ids.size(), chunks.size());
+
+    MulticastResult[] results = new MulticastResult[chunks.size()];
+    ChunkListener collector = (index, chunk, result) -> results[index] = result;
+    return sendInChunks(message, ids.iterator(), retries, deadline, collector)
+        .thenApply(summary -> merge(chunks, results));
+  }
+
+  /**
+   * Merges the results of the chunks of a multicast, in chunk order.
+   *
+   * @param chunks registration ids of each chunk.
+   * @param results result of each chunk, {@literal null} for chunks that could not be posted.
+   */
+  private static MulticastResult merge(List<List<String>> chunks, MulticastResult[] results) {
+    int success = 0, failure = 0, canonicalIds = 0;
+    List<Long> multicastIds = new ArrayList<>();
+    for (int i = 0; i < results.length; i++) {
+      MulticastResult result = results[i];
+      if (result == null) {
+        failure += chunks.get(i).size();
+      } else {
+        success += result.getSuccess();
+        failure += result.getFailure();
+        canonicalIds += result.getCanonicalIds();
+        addMulticastIds(multicastIds, result);
+      }
+    }
+
+    MulticastResult.Builder builder = newResult(success, failure, canonicalIds, multicastIds);
+    for (int i = 0; i < results.length; i++) {
+      if (results[i] == null) {
+        GcmResult notSent = new GcmResult.Builder().errorCode(ERROR_NOT_SENT).build();
+        for (int j = 0; j < chunks.get(i).size(); j++) {
+          builder.addResult(notSent);
+        }
+      } else {
+        results[i].getResults().forEach(builder::addResult);
+      }
+    }
+    return builder.build();
+  }
+
+  /**
+   * Waits for an asynchronous send, unwrapping its failure.
+   *
+   * @param deadline deadline of the send, after which it is waited for {@link #AWAIT_GRACE} more at most, 0 for none.
+   */
+  private static <T> T await(CompletableFuture<T> future, long deadline) throws IOException {
+    try {
+      if (deadline == 0) {
+        return future.get();
+      }
+      return future.get(Math.max(0, deadline - System.currentTimeMillis()) + AWAIT_GRACE, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      throw new IOException("Timed out waiting for GCM past the deadline of the send", e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted waiting for GCM");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+
+  /**
+   * Updates the status of the messages sent to devices and the list of devices that should be retried.
+   *
+   * @param unsentRegIds list of devices that are still pending an update.
+   * @param allResults map of status that will be updated.
+   * @param multicastResult result of the last multicast sent.
+   *
+   * @return updated version of devices that should be retried.
+   */
+  List<String> updateStatus(List<String> unsentRegIds, Map<String, GcmResult> allResults,
+      MulticastResult multicastResult) {
+    List<GcmResult> results = multicastResult.getResults();
+    if (results.size() != unsentRegIds.size()) {
+      // should never happen, unless there is a flaw in the algorithm
+      throw new RuntimeException("Internal error: sizes do not match. " + "currentResults: " + results
+          + "; unsentRegIds: " + unsentRegIds);
+    }
+
+    List<String> newUnsentRegIds = new ArrayList<>();
+    for (int i = 0; i < unsentRegIds.size(); i++) {
+      String regId = unsentRegIds.get(i);
+      GcmResult result = results.get(i);
+      allResults.put(regId, result);
+      if (isRetryable(result.getErrorCodeName())) {
+        newUnsentRegIds.add(regId);
+      } else {
+        recordCanonicalId(regId, result.getCanonicalRegistrationId());
+        recordDeadToken(regId, result.getErrorCodeName());
+      }
+    }
 
-  @Inject
-  private DefaultResponses dr;
+    return newUnsentRegIds;
+  }
 
-  @PersistenceContext
-  private EntityManager em;
+  /**
+   * Records the canonical id GCM gave for a registration id in the cache, if any.
+   */
+  private static void recordCanonicalId(String regId, String canonicalId) {
+    CanonicalIdCache cache = canonicalIds;
+    if (cache != null && canonicalId != null) {
+      cache.put(regId, canonicalId);
+    }
+  }
 
-  private static void close(Closeable closeable) {
-    if (closeable != null) {
+  /**
+   * Records a registration id in the dead token registry, if any, and notifies the {@link DeadTokenListener}s, if GCM
+   * reported it as no longer valid.
+   */
+  private void recordDeadToken(String regId, String error) {
+    DeadTokenRegistry registry = deadTokens;
+    if (registry == null || !DeadTokenRegistry.isDead(error)) {
+      return;
+    }
+    registry.add(regId, error);
+    for (DeadTokenListener listener : deadTokenListeners) {
       try {
-        closeable.close();
-      } catch (IOException e) {
-        L.debug("IOException closing stream", e);
+        listener.onDeadToken(regId, error);
+      } catch (RuntimeException e) {
+        L.warn("DeadTokenListener failed on regId {}", regId, e);
       }
     }
   }
 
   /**
-   * Creates a map with just one key-value pair.
+   * Tells the admission controller, if any, that GCM asked for messages to be retried.
    */
-  protected static Map<String, String> newKeyValues(String key, String value) {
-    Map<String, String> keyValues = new HashMap<>(1);
-    keyValues.put(nonNull(key), nonNull(value));
-    return keyValues;
+  private static void overloaded() {
+    AdmissionController current = admission;
+    if (current != null) {
+      current.overloaded();
+    }
   }
 
   /**
-   * Creates a {@link StringBuilder} to be used as the body of an HTTP POST.
-   *
-   * @param name initial parameter for the POST.
-   * @param value initial value for that parameter.
-   * @return StringBuilder to be used an HTTP POST body.
+   * Tells whether a result with the given error code may succeed if sent again.
    */
-  protected static StringBuilder newBody(String name, String value) {
-    return new StringBuilder(nonNull(name)).append('=').append(nonNull(value));
+  static boolean isRetryable(String error) {
+    return Constants.ERROR_UNAVAILABLE.equals(error) || Constants.ERROR_INTERNAL_SERVER_ERROR.equals(error);
   }
 
   /**
-   * Adds a new parameter to the HTTP POST body.
+   * Sends a message without retrying in case of service unavailability. See {@link #send(String, Collection)}} for more
+   * info.
    *
-   * @param body HTTP POST body.
-   * @param name parameter's name.
-   * @param value parameter's value.
+   * @return multicast results if the message was sent successfully, {@literal null} if it failed but could be retried.
+   *
+   * @throws IllegalArgumentException if registrationIds is {@literal null} or empty.
+   * @throws InvalidRequestException if GCM didn't returned a 200 or 5xx status.
+   * @throws IOException if there was a JSON parsing error
    */
-  protected static void addParameter(StringBuilder body, String name, String value) {
-    nonNull(body).append('&')
-        .append(nonNull(name)).append('=').append(nonNull(value));
+  public MulticastResult sendNoRetry(Message message, Collection<String> registrationIds) throws IOException {
+    return sendNoRetry(message, registrationIds, (Retry) null);
+  }
+
+  private MulticastResult sendNoRetry(Message message, Collection<String> registrationIds, Retry retry)
+      throws IOException {
+    ResultCollector collector = new ResultCollector();
+    return sendNoRetry(message, registrationIds, collector, retry) ? collector.build() : null;
   }
 
   /**
-   * Convenience method to convert an InputStream to a String.
-   * <p>
-   * If the stream ends in a newline character, it will be stripped.
-   * <p>
-   * If the stream is {@literal null}, returns an empty string.
+   * Sends a message without retrying in case of service unavailability, handing each decoded result to handler.
+   *
+   * @return {@literal true} if the message was sent, {@literal false} if it failed but could be retried.
    */
-  protected static String getString(InputStream stream) throws IOException {
-    if (stream == null) {
-      return "";
+  private boolean sendNoRetry(Message message, Collection<String> registrationIds, MulticastResponseHandler handler,
+      Retry retry) throws IOException {
+    if (nonNull(registrationIds).isEmpty()) {
+      throw new IllegalArgumentException("registrationIds cannot be empty");
     }
 
-    BufferedReader reader = new BufferedReader(new InputStreamReader(stream));
-    StringBuilder content = new StringBuilder();
+    GcmResponse response;
+    JsonRequestWriter writer = acquireWriter();
+    try {
+      response = makeGcmHttpRequest(
+          writer.writeRequest(message, registrationIds, retry == null ? null : retry.timeToLive(message)), retry);
+    } finally {
+      releaseWriter(writer);
+    }
 
-    String newLine;
-    do {
-      newLine = reader.readLine();
+    if (response == null) {
+      return false;
+    }
 
-      if (newLine != null) {
-        content.append(newLine).append('\n');
+    OutcomeCounter counter = new OutcomeCounter(handler);
+    boolean healthy = false;
+    GcmResponseParseEvent event = Jfr.AVAILABLE ? GcmResponseParseEvent.start() : null;
+    long start = System.nanoTime();
+    try {
+      GcmResponseParser.parseMulticast(response.getBody(), counter);
+      GcmMetrics.get().recordLatency(GcmMetrics.Phase.PARSE, System.nanoTime() - start);
+      if (event != null) {
+        event.complete(counter.results, retry == null ? 1 : retry.attempt, counter.results - counter.failed,
+            counter.failed, null);
       }
-    } while (newLine != null);
-
-    if (content.length() > 0) {
-      // strip last newline
-      content.setLength(content.length() - 1);
+      healthy = counter.isHealthy();
+      return true;
+    } catch (JsonReader.SyntaxException e) {
+      throw newIoException(e);
+    } catch (IOException e) {
+      L.warn("IOException reading response", e);
+      return false;
+    } finally {
+      close(response);
+      recordOutcome(healthy);
     }
-
-    return content.toString();
   }
 
-  private static String getAndClose(InputStream stream) throws IOException {
-    try {
-      return getString(stream);
-    } finally {
-      if (stream != null) {
-        close(stream);
+  /**
+   * Posts a request to GCM, unless the circuit is open, once admitted if requests are throttled. The outcome of a
+   * response that is returned must be given to {@link #recordOutcome(boolean)} once decoded.
+   *
+   * @param retry retry state of the send, which gets the {@literal Retry-After} of the response, if any, or the time
+   * until the circuit half-opens.
+   *
+   * @return the response, left open for its body to be decoded, or {@literal null} if the circuit is open, or it could
+   * not be admitted in time or posted, or GCM answered with a 5xx status.
+   *
+   * @throws InvalidRequestException if GCM didn't returned a 200 or 5xx status.
+   */
+  private GcmResponse makeGcmHttpRequest(JsonRequestWriter request, Retry retry) throws InvalidRequestException {
+    CircuitBreaker breaker = circuitBreaker;
+    if (breaker == null) {
+      GcmResponse response = postThrottled(request, retry);
+      return response == NOT_ADMITTED ? null : response;
+    }
+
+    if (!breaker.allowRequest()) {
+      long remaining = breaker.getRemainingOpenTime();
+      L.debug("GCM circuit open, not posting for another {} ms", remaining);
+      if (retry != null && remaining > 0) {
+        retry.retryAfter = remaining;
       }
+      return null;
+    }
+    GcmResponse response;
+    try {
+      response = postThrottled(request, retry);
+    } catch (InvalidRequestException e) {
+      breaker.ignore();
+      throw e;
     }
+    if (response == NOT_ADMITTED) {
+      // refused or deferred locally, GCM was not asked
+      breaker.ignore();
+      return null;
+    }
+    if (response == null) {
+      breaker.record(false);
+    }
+    return response;
   }
 
-  static <T> T nonNull(T argument) {
-    if (argument == null) {
-      throw new IllegalArgumentException("argument cannot be null");
+  /**
+   * Records the outcome of a decoded response in the circuit breaker, if any.
+   *
+   * @param healthy whether the response could be decoded and did not ask for most of its messages to be retried.
+   */
+  private static void recordOutcome(boolean healthy) {
+    CircuitBreaker breaker = circuitBreaker;
+    if (breaker != null) {
+      breaker.record(healthy);
     }
-
-    return argument;
   }
 
-  public BaseResponse<GcmResult> send(String message, String to) {
-    Message msg = toGcmMessage(message);
-    BaseResponse<GcmResult> response;
-    try {
-      GcmResult result = send(msg, to, 3);
-      if (result.getMessageId() == null) {
-        response = new BaseResponse<>(TRANSACTION_FAILED, result.getErrorCodeName(), result);
-      } else {
-        L.info("Push notification sent to {}. Result = {}", to, result);
-        if (persistent) {
-          MESSAGE_QUEUE.add(result);
+  /**
+   * Posts a request once admitted, if requests are throttled.
+   *
+   * @return the response, {@literal null} if it could not be posted or GCM answered with a 5xx status, or
+   * {@link #NOT_ADMITTED} if it was not admitted.
+   */
+  private GcmResponse postThrottled(JsonRequestWriter request, Retry retry) throws InvalidRequestException {
+    AdmissionController current = admission;
+    if (current == null) {
+      return post(request, retry);
+    }
+
+    if (retry == null) {
+      try {
+        if (!current.acquire()) {
+          L.debug("Request not admitted within the maximum wait");
+          return NOT_ADMITTED;
         }
-        response = new BaseResponse<>(result);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return NOT_ADMITTED;
       }
-    } catch (IOException ex) {
-      L.warn("Error contacting GCM.", ex);
-      response = new BaseResponse<>(ResponseCodes.SERVICE_ERROR, "Error contacting GCM.");
+    } else {
+      // a scheduled attempt must not block the executor, it is rescheduled for when it may be admitted
+      long wait = current.tryAcquire(retry.admissionSince);
+      if (wait == AdmissionController.REJECTED) {
+        L.debug("Request not admitted within the maximum wait");
+        retry.admissionSince = 0;
+        return NOT_ADMITTED;
+      } else if (wait > 0) {
+        if (retry.admissionSince == 0) {
+          retry.admissionSince = System.nanoTime();
+        }
+        retry.admissionDelay = wait;
+        return NOT_ADMITTED;
+      }
+      retry.admissionSince = 0;
+    }
+    long start = System.nanoTime();
+    boolean dropped = true;
+    try {
+      GcmResponse response = post(request, retry);
+      dropped = response == null;
+      return response;
+    } catch (InvalidRequestException e) {
+      dropped = false;
+      throw e;
+    } finally {
+      current.release(System.nanoTime() - start, dropped);
     }
-
-    return response;
   }
 
-  public BaseResponse<MulticastResult> send(String message, Collection<String> to) {
-    if (DataHelper.hasBlank(to)) {
-      return new BaseResponse<>();
-    }
+  private GcmResponse post(JsonRequestWriter request, Retry retry) throws InvalidRequestException {
+    ATTEMPT_LOG.debug("JSON request: {}", Abbreviated.text(request));
 
-    Message msg = toGcmMessage(message);
-    BaseResponse<MulticastResult> response;
+    GcmMetrics metrics = GcmMetrics.get();
+    GcmSendEvent event = Jfr.AVAILABLE ? GcmSendEvent.start() : null;
+    int attempt = retry == null ? 1 : retry.attempt;
+    GcmResponse response;
+    metrics.requestStarted();
+    long start = System.nanoTime();
     try {
-      MulticastResult mr = send(msg, to, 3);
-      L.info("Multicast message sent. {} succeeded, {} failed.", mr.getSuccess(), mr.getFailure());
-      if (persistent) {
-        mr.getResults().forEach(MESSAGE_QUEUE::add);
+      response = transport.post(endpoint == null ? GCM_SEND_ENDPOINT : endpoint, "application/json", "key=" + key,
+          request.buffer(), request.size());
+    } catch (IOException e) {
+      FAILURE_LOG.debug("IOException posting to GCM", e);
+      if (event != null) {
+        event.complete(request.recipients(), request.size(), attempt, -1, e);
       }
-      response = new BaseResponse<>(dr.status(mr.getFailure() == 0
-          ? REQUEST_SUCCESSFUL : mr.getSuccess() == 0
-          ? TRANSACTION_FAILED : ResponseCodes.PARTIAL_SUCCESS), mr);
-    } catch (IOException ex) {
-      L.warn("Error contacting GCM.", ex);
-      response = new BaseResponse<>(ResponseCodes.SERVICE_ERROR, "Error contacting GCM.");
+      return null;
+    } finally {
+      metrics.requestEnded();
+    }
+    if (event != null) {
+      event.complete(request.recipients(), request.size(), attempt, response.getStatus(), null);
+    }
+    metrics.recordLatency(GcmMetrics.Phase.REQUEST, System.nanoTime() - start);
+    if (response.getConnectNanos() >= 0) {
+      metrics.recordLatency(GcmMetrics.Phase.CONNECT, response.getConnectNanos());
+      metrics.recordLatency(GcmMetrics.Phase.WRITE, response.getWriteNanos());
+      metrics.recordLatency(GcmMetrics.Phase.FIRST_BYTE, response.getFirstByteNanos());
+    }
+
+    if (retry != null) {
+      retry.retryAfter = response.getRetryAfter();
+    }
+    if (response.getStatus() >= 500) {
+      FAILURE_LOG.debug("GCM unavailable, status {}", response.getStatus());
+      close(response);
+      return null;
+    }
+    if (response.getStatus() != 200) {
+      String responseBody;
+      try {
+        responseBody = getString(response.getBody());
+        FAILURE_LOG.debug("JSON error response: {}", Abbreviated.text(responseBody));
+      } catch (IOException e) {
+        // ignore the exception since it will thrown an InvalidRequestException anyways
+        responseBody = "N/A";
+        L.debug("Exception reading response", e);
+      } finally {
+        close(response);
+      }
+      throw new InvalidRequestException(response.getStatus(), responseBody);
     }
 
     return response;
   }
 
-  public BaseResponse<GcmResult> broadcast(String message, String topic) {
-    return send(message, "/topics/" + topic);
+  private IOException newIoException(JsonReader.SyntaxException e) {
+    String message = "Error parsing JSON response";
+    L.warn(message, e);
+    return new IOException(message, e);
   }
 
-  private Message toGcmMessage(String message) {
-    Message msg = new Message.Builder()
-        //.collapseKey(messageJson)
-        .timeToLive(timeToLive)
-        //.delayWhileIdle(true)
-        .addData("message", message)
-        //.notification(new Notification.Builder("clear_grey600").title(message.messageType()).body(messageJson).build())
-        .build();
-    return msg;
+  /**
+   * Takes a request writer from the pool, or creates one if the pool is empty.
+   */
+  private static JsonRequestWriter acquireWriter() {
+    JsonRequestWriter writer = WRITERS.poll();
+    return writer == null ? new JsonRequestWriter() : writer;
   }
 
   /**
-   * Sends a message to one device, retrying in case of unavailability.
-   *
-   * <p>
-   * <strong>Note: </strong> this method uses exponential back-off to retry in case of service unavailability and hence
-   * could block the calling thread for many seconds.
-   *
-   * @param message message to be sent, including the device's registration id.
-   * @param to registration token, notification key, or topic where the message will be sent.
-   * @param retries number of retries in case of service unavailability errors.
-   *
-   * @return result of the request (see its javadoc for more details).
-   *
-   * @throws IllegalArgumentException if to is {@literal null}.
-   * @throws InvalidRequestException if GCM didn't returned a 200 or 5xx status.
-   * @throws IOException if message could not be sent.
+   * Returns a request writer to the pool, unless its buffer grew too large to be worth keeping.
    */
-  public GcmResult send(Message message, String to, int retries) throws IOException {
-    int attempt = 0;
-    GcmResult result;
-    int backoff = BACKOFF_INITIAL_DELAY;
-    boolean tryAgain;
-    do {
-      attempt++;
-      L.debug("Attempt #{} to send message {} to regIds {}", attempt, message, to);
-
-      result = sendNoRetry(message, to);
-      tryAgain = result == null && attempt <= retries;
-
-      if (tryAgain) {
-        int sleepTime = backoff / 2 + random.nextInt(backoff);
-        sleep(sleepTime);
-
-        if (2 * backoff < MAX_BACKOFF_DELAY) {
-          backoff *= 2;
-        }
-      }
-    } while (tryAgain);
-
-    if (result == null) {
-      throw new IOException("Could not send message after " + attempt + " attempts");
+  private static void releaseWriter(JsonRequestWriter writer) {
+    if (writer.capacity() <= MAX_POOLED_WRITER_CAPACITY) {
+      writer.reset();
+      WRITERS.offer(writer);
     }
-
-    return result;
   }
 
   /**
-   * Sends a message without retrying in case of service unavailability. See {@link #send(Message, String, int)} for
-   * more info.
+   * Records a send in the journal, if any, split into as many records as its recipients need to fit in a segment.
    *
-   * @return result of the post, or {@literal null} if the GCM service was unavailable or any network exception caused
-   * the request to fail, or if the response contains more than one result.
+   * @return sequence numbers of the journal records, empty if the send was not recorded.
    *
-   * @throws InvalidRequestException if GCM didn't returned a 200 status.
-   * @throws IllegalArgumentException if to is {@literal null}.
+   * @throws IllegalArgumentException if the message alone does not fit in a journal record.
    */
-  public GcmResult sendNoRetry(Message message, String to) throws IOException {
-    nonNull(to);
-    Map<Object, Object> jsonRequest = new HashMap<>();
-    messageToMap(message, jsonRequest);
-    jsonRequest.put(JSON_TO, to);
-    String responseBody = makeGcmHttpRequest(jsonRequest);
-    L.info("RESPONSE BODY: {}", responseBody);
-
-    if (responseBody == null) {
-      return null;
+  private static long[] journal(JournaledSend send) {
+    Journal current = journal;
+    if (current == null) {
+      return new long[0];
     }
-
-    JSONParser parser = new JSONParser();
-    JSONObject jsonResponse;
+    long[] sequences = new long[0];
     try {
-      jsonResponse = (JSONObject) parser.parse(responseBody);
-      GcmResult.Builder resultBuilder = new GcmResult.Builder();
-      if (jsonResponse.containsKey("results")) {
-        // Handle response from message sent to specific device.
-        JSONArray jsonResults = (JSONArray) jsonResponse.get("results");
-        if (jsonResults.size() == 1) {
-          JSONObject jsonResult = (JSONObject) jsonResults.get(0);
-          String messageId = (String) jsonResult.get(JSON_MESSAGE_ID);
-          String canonicalRegId = (String) jsonResult.get(TOKEN_CANONICAL_REG_ID);
-          String error = (String) jsonResult.get(JSON_ERROR);
-          resultBuilder.messageId(messageId)
-              .canonicalRegistrationId(canonicalRegId)
-              .errorCode(error);
-        } else {
-          L.warn("Found null or {} results, expected one", jsonResults.size());
-          return null;
-        }
-      } else if (to.startsWith(TOPIC_PREFIX)) {
-        if (jsonResponse.containsKey(JSON_MESSAGE_ID)) {
-          // message_id is expected when this is the response from a topic message.
-          Long messageId = (Long) jsonResponse.get(JSON_MESSAGE_ID);
-          resultBuilder.messageId(messageId.toString());
-        } else if (jsonResponse.containsKey(JSON_ERROR)) {
-          String error = (String) jsonResponse.get(JSON_ERROR);
-          resultBuilder.errorCode(error);
-        } else {
-          L.warn("Expected {} or {} found: {}", JSON_MESSAGE_ID, JSON_ERROR, responseBody);
-          return null;
-        }
-      } else if (jsonResponse.containsKey(JSON_SUCCESS) && jsonResponse.containsKey(JSON_FAILURE)) {
-        // success and failure are expected when response is from group message.
-        int success = getNumber(jsonResponse, JSON_SUCCESS).intValue();
-        int failure = getNumber(jsonResponse, JSON_FAILURE).intValue();
-        List<String> failedIds = null;
-        if (jsonResponse.containsKey("failed_registration_ids")) {
-          JSONArray jFailedIds = (JSONArray) jsonResponse.get("failed_registration_ids");
-          failedIds = new ArrayList<>();
-          for (int i = 0; i < jFailedIds.size(); i++) {
-            failedIds.add((String) jFailedIds.get(i));
-          }
-        }
-        resultBuilder.success(success).failure(failure)
-            .failedRegistrationIds(failedIds);
-      } else {
-        L.warn("Unrecognized response: {}", responseBody);
-        throw newIoException(responseBody, new Exception("Unrecognized response."));
+      List<byte[]> payloads = new ArrayList<>(1);
+      encode(send, current.maxPayloadSize(), payloads);
+      sequences = new long[payloads.size()];
+      for (int i = 0; i < sequences.length; i++) {
+        sequences[i] = current.append(Journal.SEND, payloads.get(i));
+      }
+      return sequences;
+    } catch (IOException e) {
+      L.warn("Could not journal send of message {}, it will not survive a restart", send.message, e);
+      for (long sequence : sequences) {
+        current.acknowledge(sequence);
       }
+      return new long[0];
+    }
+  }
 
-      return resultBuilder.build();
-    } catch (ParseException e) {
-      throw newIoException(responseBody, e);
+  /**
+   * Serializes a send into payloads of at most max bytes, halving its recipients until they fit.
+   */
+  private static void encode(JournaledSend send, int max, List<byte[]> payloads) throws IOException {
+    byte[] payload = Journal.encode(send);
+    if (payload.length <= max) {
+      payloads.add(payload);
+      return;
     }
+    if (send.regIds == null || send.regIds.size() == 1) {
+      throw new IllegalArgumentException("Message " + send.message + " is too large to be journaled");
+    }
+    int half = send.regIds.size() / 2;
+    encode(send.slice(0, half), max, payloads);
+    encode(send.slice(half, send.regIds.size()), max, payloads);
   }
 
   /**
-   * Sends a message to many devices, retrying in case of unavailability.
-   *
-   * <p>
-   * <strong>Note: </strong> this method uses exponential back-off to retry in case of service unavailability and hence
-   * could block the calling thread for many seconds.
-   *
-   * @param message message to be sent.
-   * @param regIds registration id of the devices that will receive the message.
-   * @param retries number of retries in case of service unavailability errors.
-   *
-   * @return combined result of all requests made.
-   *
-   * @throws IllegalArgumentException if registrationIds is {@literal null} or empty.
-   * @throws InvalidRequestException if GCM didn't returned a 200 or 503 status.
-   * @throws IOException if message could not be sent.
+   * Records results in the journal, if any, then waits once for all the records to be durable, so that they share
+   * fsyncs.
    */
-  public MulticastResult send(Message message, Collection<String> regIds, int retries) throws IOException {
-    int attempt = 0;
-    MulticastResult multicastResult;
-    int backoff = BACKOFF_INITIAL_DELAY;
-    // Map of results by registration id, it will be updated after each attempt
-    // to send the messages
-    Map<String, GcmResult> results = new HashMap<>();
-    List<String> unsentRegIds = new ArrayList<>(regIds);
-    boolean tryAgain;
-    List<Long> multicastIds = new ArrayList<>();
-    do {
-      multicastResult = null;
-      attempt++;
-      L.debug("Attempt #{} to send message {} to regIds {}", attempt, message, unsentRegIds);
+  private static void journal(Collection<GcmResult> results) {
+    Journal current = journal;
+    if (current == null) {
+      return;
+    }
+    long last = 0;
+    for (GcmResult result : results) {
+      if (result.getJournalSequence() != 0) {
+        continue;
+      }
       try {
-        multicastResult = sendNoRetry(message, unsentRegIds);
+        last = current.append(Journal.RESULT, Journal.encode(result));
+        result.setJournalSequence(last);
       } catch (IOException e) {
-        // no need for WARNING since exception might be already logged
-        L.debug("IOException on attempt {}", attempt, e);
+        L.warn("Could not journal result {}, it will not survive a restart", result, e);
       }
-      if (multicastResult != null) {
-        long multicastId = multicastResult.getMulticastId();
-        L.debug("multicast_id on attempt # {}: ", attempt, multicastId);
-        multicastIds.add(multicastId);
-        unsentRegIds = updateStatus(unsentRegIds, results, multicastResult);
-        tryAgain = !unsentRegIds.isEmpty() && attempt <= retries;
-      } else {
-        tryAgain = attempt <= retries;
+    }
+    if (last != 0) {
+      try {
+        current.awaitDurable(last);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
       }
-      if (tryAgain) {
-        int sleepTime = backoff / 2 + random.nextInt(backoff);
-        sleep(sleepTime);
-        if (2 * backoff < MAX_BACKOFF_DELAY) {
-          backoff *= 2;
+    }
+  }
+
+  private static void acknowledge(GcmResult result) {
+    Journal current = journal;
+    if (current != null && result.getJournalSequence() != 0) {
+      current.acknowledge(result.getJournalSequence());
+    }
+  }
+
+  /**
+   * Removes the journal records of a send once it completes, successfully or not.
+   */
+  private static <T> CompletableFuture<T> acknowledgeOnCompletion(CompletableFuture<T> future, long... sequences) {
+    Journal current = journal;
+    if (current != null && sequences.length > 0) {
+      future.whenComplete((result, e) -> {
+        for (long sequence : sequences) {
+          current.acknowledge(sequence);
         }
+      });
+    }
+    return future;
+  }
+
+  /**
+   * Queues results to be persisted, from a thread that cannot flush the queue. A result that does not fit stays in the
+   * journal, to be queued again on the next start. Only for results that were journaled, or sent, to be persisted.
+   */
+  private static void enqueue(Collection<GcmResult> results) {
+    journal(results);
+    for (GcmResult result : results) {
+      if (!resultQueue.offer(result)) {
+        L.warn("Result queue full, result {} left in the journal", result);
       }
-    } while (tryAgain);
-    if (multicastIds.isEmpty()) {
-      // all JSON posts failed due to GCM unavailability
-      throw new IOException("Could not post JSON requests to GCM after " + attempt + " attempts");
     }
-    // calculate summary
-    int success = 0, failure = 0, canonicalIds = 0;
-    for (GcmResult result : results.values()) {
-      if (result.getMessageId() != null) {
-        success++;
-        if (result.getCanonicalRegistrationId() != null) {
-          canonicalIds++;
+  }
+
+  /**
+   * Queues results to be persisted. Once the queue is half full it is drained in the background; if it is full the
+   * {@link OverflowPolicy} applies. If a journal is kept, the results are recorded in it first.
+   */
+  private void queue(Collection<GcmResult> results) {
+    journal(results);
+    for (GcmResult result : results) {
+      if (!resultQueue.offer(result)) {
+        context.getBusinessObject(Sender.class).processQueue();
+        if (!resultQueue.offer(result)) {
+          resultQueue.force(result);
         }
-      } else {
-        failure++;
+      }
+      if (resultQueue.size() >= resultQueue.capacity() / 2 && DRAINING.compareAndSet(false, true)) {
+        context.getBusinessObject(Sender.class).drainQueue();
       }
     }
-    // build a new object with the overall result
-    long multicastId = multicastIds.remove(0);
-    MulticastResult.Builder builder = new MulticastResult.Builder(success, failure, canonicalIds, multicastId)
-        .retryMulticastIds(multicastIds);
-    // add results, in the same order as the input
-    regIds.stream().map((regId) -> results.get(regId)).forEach((result) -> {
-      builder.addResult(result);
-    });
+  }
 
-    return builder.build();
+  @Schedule(hour = "*", minute = "*/5", persistent = false)
+  @TransactionAttribute(TransactionAttributeType.REQUIRED)
+  public void processQueue() {
+    GcmQueueFlushEvent event = Jfr.AVAILABLE ? GcmQueueFlushEvent.start() : null;
+    // results, dead tokens and canonical ids persisted
+    int[] count = {0, 0, 0};
+    DeadTokenRegistry registry = deadTokens;
+    if (registry != null) {
+      // merge, another node may have found the same registration id dead
+      registry.drainPending((regId, error) -> {
+        em.merge(new DeadToken(regId, error));
+        count[1]++;
+      });
+    }
+    CanonicalIdCache cache = canonicalIds;
+    if (cache != null) {
+      cache.drainPending((regId, canonicalId) -> {
+        em.merge(new CanonicalId(regId, canonicalId));
+        count[2]++;
+      });
+    }
+    if (persistent) {
+      List<Long> journaled = new ArrayList<>();
+      ResultQueue queue = resultQueue;
+      Journal current = journal;
+      // spilled results stay on disk, and results of a rolled back transaction in the journal, to be drained again
+      transactions.registerInterposedSynchronization(new Synchronization() {
+        @Override
+        public void beforeCompletion() {
+        }
+
+        @Override
+        public void afterCompletion(int status) {
+          boolean committed = status == Status.STATUS_COMMITTED;
+          queue.finishSpilled(committed);
+          if (committed && current != null) {
+            journaled.forEach(current::acknowledge);
+          }
+        }
+      });
+      Consumer<GcmResult> persist = result -> {
+        em.persist(result);
+        if (result.getJournalSequence() != 0) {
+          journaled.add(result.getJournalSequence());
+        }
+        if (++count[0] % PERSIST_BATCH_SIZE == 0) {
+          // flushed results need no dirty checking, detach them to keep the persistence context small
+          em.flush();
+          em.clear();
+        }
+      };
+      // stop after one queue's worth so that a busy sender cannot keep the transaction open forever
+      int limit = queue.capacity();
+      queue.drainSpilled(persist, limit);
+      int drained;
+      do {
+        drained = queue.drainTo(persist, PERSIST_BATCH_SIZE);
+      } while (drained > 0 && count[0] < limit);
+    }
+    if (event != null) {
+      event.complete(count[0], count[1], count[2]);
+    }
   }
 
   /**
-   * Updates the status of the messages sent to devices and the list of devices that should be retried.
-   *
-   * @param unsentRegIds list of devices that are still pending an update.
-   * @param allResults map of status that will be updated.
-   * @param multicastResult result of the last multicast sent.
-   *
-   * @return updated version of devices that should be retried.
+   * Drains the result queue in the background, see {@link #processQueue()}.
    */
-  private List<String> updateStatus(List<String> unsentRegIds, Map<String, GcmResult> allResults,
-      MulticastResult multicastResult) {
-    List<GcmResult> results = multicastResult.getResults();
-    if (results.size() != unsentRegIds.size()) {
-      // should never happen, unless there is a flaw in the algorithm
-      throw new RuntimeException("Internal error: sizes do not match. " + "currentResults: " + results
-          + "; unsentRegIds: " + unsentRegIds);
+  @Asynchronous
+  @TransactionAttribute(TransactionAttributeType.REQUIRED)
+  public void drainQueue() {
+    try {
+      processQueue();
+    } finally {
+      DRAINING.set(false);
     }
+  }
 
-    List<String> newUnsentRegIds = new ArrayList<>();
-    for (int i = 0; i < unsentRegIds.size(); i++) {
-      String regId = unsentRegIds.get(i);
-      GcmResult result = results.get(i);
-      allResults.put(regId, result);
-      String error = result.getErrorCodeName();
-      if (error != null && (error.equals(Constants.ERROR_UNAVAILABLE)
-          || error.equals(Constants.ERROR_INTERNAL_SERVER_ERROR))) {
-        newUnsentRegIds.add(regId);
-      }
+  /**
+   * Send recorded in the journal until it completes, so that it can be restarted after a crash or redeploy.
+   */
+  private static final class JournaledSend implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Message message;
+    private final String to;
+    private final ArrayList<String> regIds;
+    private final int retries;
+    private final long deadline;
+    // absent from records written by earlier versions, whose results are then not persisted
+    private final boolean persist;
+
+    JournaledSend(Message message, String to, ArrayList<String> regIds, int retries, long deadline,
+        boolean persist) {
+      this.message = message;
+      this.to = to;
+      this.regIds = regIds;
+      this.retries = retries;
+      this.deadline = deadline;
+      this.persist = persist;
     }
 
-    return newUnsentRegIds;
+    /**
+     * Gets the same send to the recipients between from, inclusive, and to, exclusive.
+     */
+    JournaledSend slice(int from, int to) {
+      return new JournaledSend(message, null, new ArrayList<>(regIds.subList(from, to)), retries, deadline, persist);
+    }
   }
 
   /**
-   * Sends a message without retrying in case of service unavailability. See {@link #send(String, Collection)}} for more
-   * info.
-   *
-   * @return multicast results if the message was sent successfully, {@literal null} if it failed but could be retried.
-   *
-   * @throws IllegalArgumentException if registrationIds is {@literal null} or empty.
-   * @throws InvalidRequestException if GCM didn't returned a 200 status.
-   * @throws IOException if there was a JSON parsing error
+   * Attempts made by one send, and the {@literal Retry-After} of its last response, from which the delay before the
+   * next attempt is computed. No attempt is scheduled past the deadline of the send.
    */
-  public MulticastResult sendNoRetry(Message message, Collection<String> registrationIds) throws IOException {
-    if (nonNull(registrationIds).isEmpty()) {
-      throw new IllegalArgumentException("registrationIds cannot be empty");
+  private final class Retry {
+
+    private final int retries;
+    private final long deadline;
+    private int attempt;
+    private long delay;
+    private long retryAfter = -1;
+    private boolean expired;
+    // System.nanoTime() when the attempt was first refused admission, 0 if it was not
+    private long admissionSince;
+    // nanoseconds after which the refused attempt may be admitted, 0 if it was not refused
+    private long admissionDelay;
+
+    /**
+     * @param deadline time, in milliseconds since the epoch, after which no attempt is made, 0 for none.
+     */
+    Retry(int retries, long deadline) {
+      this.retries = retries;
+      this.deadline = deadline;
     }
 
-    Map<Object, Object> jsonRequest = new HashMap<>();
-    messageToMap(message, jsonRequest);
-    jsonRequest.put(JSON_REGISTRATION_IDS, registrationIds);
-    String responseBody = makeGcmHttpRequest(jsonRequest);
-
-    if (responseBody == null) {
-      return null;
+    /**
+     * Starts a new attempt and returns its number.
+     */
+    int next() {
+      retryAfter = -1;
+      return ++attempt;
     }
 
-    JSONParser parser = new JSONParser();
-    JSONObject jsonResponse;
-    try {
-      jsonResponse = (JSONObject) parser.parse(responseBody);
-      int success = getNumber(jsonResponse, JSON_SUCCESS).intValue();
-      int failure = getNumber(jsonResponse, JSON_FAILURE).intValue();
-      int canonicalIds = getNumber(jsonResponse, JSON_CANONICAL_IDS).intValue();
-      long multicastId = getNumber(jsonResponse, JSON_MULTICAST_ID).longValue();
-      MulticastResult.Builder builder = new MulticastResult.Builder(success, failure, canonicalIds, multicastId);
-      @SuppressWarnings("unchecked")
-      List<Map<String, Object>> results = (List<Map<String, Object>>) jsonResponse.get(JSON_RESULTS);
-      if (results != null) {
-        for (Map<String, Object> jsonResult : results) {
-          String messageId = (String) jsonResult.get(JSON_MESSAGE_ID);
-          String canonicalRegId
-              = (String) jsonResult.get(TOKEN_CANONICAL_REG_ID);
-          String error = (String) jsonResult.get(JSON_ERROR);
-          GcmResult result = new GcmResult.Builder()
-              .messageId(messageId)
-              .canonicalRegistrationId(canonicalRegId)
-              .errorCode(error)
-              .build();
-          builder.addResult(result);
-        }
-      }
-      return builder.build();
-    } catch (ParseException e) {
-      throw newIoException(responseBody, e);
+    /**
+     * Tells whether another attempt may be made, always the case for one refused admission, which is made again.
+     */
+    boolean canRetry() {
+      return admissionDelay > 0 || attempt <= retries;
     }
-  }
 
-  private String makeGcmHttpRequest(Map<Object, Object> jsonRequest) throws InvalidRequestException {
-    String requestBody = JSONValue.toJSONString(jsonRequest);
-    L.debug("JSON request: {}", requestBody);
+    /**
+     * Tells whether the last call to {@link #schedule(Runnable, CompletableFuture)} gave up because of the deadline.
+     */
+    boolean isExpired() {
+      return expired;
+    }
 
-    HttpURLConnection conn;
-    int status;
-    try {
-      conn = post(GCM_SEND_ENDPOINT, "application/json", requestBody);
-      status = conn.getResponseCode();
-    } catch (IOException e) {
-      L.debug("IOException posting to GCM", e);
-      return null;
+    /**
+     * Gets the time to live of a retried message, lowered to the seconds left until the deadline.
+     *
+     * @return time to live to send, or {@literal null} to send the message's own.
+     */
+    Integer timeToLive(Message message) {
+      if (attempt <= 1 || deadline == 0) {
+        return null;
+      }
+      int remaining = (int) Math.max(0, TimeUnit.MILLISECONDS.toSeconds(deadline - System.currentTimeMillis()));
+      Integer timeToLive = message.getTimeToLive();
+      return timeToLive == null || remaining < timeToLive ? remaining : null;
     }
 
-    String responseBody;
-    if (status != 200) {
+    /**
+     * Schedules the next attempt, failing future if the scheduler rejects it.
+     *
+     * @return {@literal false} if the attempt would start after the deadline, and was not scheduled.
+     */
+    boolean schedule(Runnable task, CompletableFuture<?> future) {
+      if (admissionDelay > 0) {
+        return scheduleAdmission(task, future);
+      }
+      delay = retryPolicy.delay(attempt, delay, retryAfter);
+      if (deadline != 0 && System.currentTimeMillis() + delay >= deadline) {
+        L.debug("Not retrying after attempt #{}, the deadline would have passed", attempt);
+        expired = true;
+        return false;
+      }
+      ATTEMPT_LOG.debug("Retrying in {} ms after attempt #{}", delay, attempt);
+      Runnable next = Jfr.AVAILABLE ? GcmRetryBackoffEvent.wrap(task, attempt, delay, retryAfter) : task;
+      PENDING_RETRIES.incrementAndGet();
       try {
-        responseBody = getAndClose(conn.getErrorStream());
-        L.debug("JSON error response: {}", responseBody);
-      } catch (IOException e) {
-        // ignore the exception since it will thrown an InvalidRequestException anyways
-        responseBody = "N/A";
-        L.debug("Exception reading response: {}", e);
+        scheduler.schedule(() -> {
+          PENDING_RETRIES.decrementAndGet();
+          next.run();
+        }, delay, TimeUnit.MILLISECONDS);
+      } catch (RejectedExecutionException e) {
+        PENDING_RETRIES.decrementAndGet();
+        future.completeExceptionally(e);
       }
-      throw new InvalidRequestException(status, responseBody);
+      return true;
     }
 
-    try {
-      responseBody = getAndClose(conn.getInputStream());
-    } catch (IOException e) {
-      L.warn("IOException reading response", e);
-      return null;
+    /**
+     * Schedules again the attempt refused admission, under the same number, for when it may be admitted.
+     */
+    private boolean scheduleAdmission(Runnable task, CompletableFuture<?> future) {
+      long wait = admissionDelay;
+      admissionDelay = 0;
+      if (deadline != 0 && System.currentTimeMillis() + TimeUnit.NANOSECONDS.toMillis(wait) >= deadline) {
+        L.debug("Not waiting for admission of attempt #{}, the deadline would have passed", attempt);
+        expired = true;
+        return false;
+      }
+      attempt--;
+      try {
+        scheduler.schedule(task, wait, TimeUnit.NANOSECONDS);
+      } catch (RejectedExecutionException e) {
+        future.completeExceptionally(e);
+      }
+      return true;
     }
-
-    L.debug("JSON response: {}", responseBody);
-    return responseBody;
   }
 
   /**
-   * Populate Map with message.
-   *
-   * @param message Message used to populate Map.
-   * @param mapRequest Map populated by Message.
+   * State of a multicast sent with {@link #sendAsync(Message, Collection, int)}, carried from one scheduled attempt to
+   * the next.
    */
-  private void messageToMap(Message message, Map<Object, Object> mapRequest) {
-    if (message == null || mapRequest == null) {
-      return;
+  private final class AsyncMulticast {
+
+    private final CompletableFuture<MulticastResult> future = new CompletableFuture<>();
+    private final Map<String, GcmResult> results = new HashMap<>();
+    private final List<Long> multicastIds = new ArrayList<>();
+    private final Message message;
+    private final Collection<String> regIds;
+    private final Map<String, String> rewrites;
+    private final Retry retry;
+    private List<String> unsentRegIds;
+
+    AsyncMulticast(Message message, Collection<String> regIds, int retries, long deadline) {
+      this.message = message;
+      this.regIds = regIds;
+      retry = new Retry(retries, deadline);
+      CanonicalIdCache cache = canonicalIds;
+      rewrites = cache == null ? Collections.emptyMap() : cache.resolve(regIds);
+      Set<String> distinct = new LinkedHashSet<>();
+      regIds.forEach(regId -> distinct.add(rewrites.getOrDefault(regId, regId)));
+      unsentRegIds = new ArrayList<>(distinct);
     }
 
-    setJsonField(mapRequest, PARAM_PRIORITY, message.getPriority());
-    setJsonField(mapRequest, PARAM_CONTENT_AVAILABLE, message.getContentAvailable());
-    setJsonField(mapRequest, PARAM_TIME_TO_LIVE, message.getTimeToLive());
-    setJsonField(mapRequest, PARAM_COLLAPSE_KEY, message.getCollapseKey());
-    setJsonField(mapRequest, PARAM_RESTRICTED_PACKAGE_NAME, message.getRestrictedPackageName());
-    setJsonField(mapRequest, PARAM_DELAY_WHILE_IDLE, message.isDelayWhileIdle());
-    setJsonField(mapRequest, PARAM_DRY_RUN, message.isDryRun());
+    /**
+     * Gives the dead registration ids their result without sending to them.
+     *
+     * @return {@literal true} if there is any registration id left to send to, otherwise the future is completed.
+     */
+    boolean skipDeadTokens() {
+      DeadTokenRegistry registry = deadTokens;
+      if (registry != null) {
+        Map<String, String> dead = registry.find(unsentRegIds, Sender.this::findDeadTokens);
+        if (!dead.isEmpty()) {
+          ATTEMPT_LOG.debug("Not sending message {} to {} dead regIds", message, dead.size());
+          dead.forEach((regId, error) -> results.put(regId, new GcmResult.Builder().errorCode(error).build()));
+          unsentRegIds.removeIf(dead::containsKey);
+        }
+      }
+      if (unsentRegIds.isEmpty()) {
+        future.complete(summarize(regIds, rewrites, results, multicastIds));
+        return false;
+      }
+      return true;
+    }
 
-    Map<String, String> payload = message.getData();
-    if (!payload.isEmpty()) {
-      mapRequest.put(JSON_PAYLOAD, payload);
+    /**
+     * Makes an attempt, completing the future exceptionally if it fails unexpectedly, as it runs on the scheduler where
+     * nothing else would.
+     */
+    void attempt() {
+      try {
+        attemptOnce();
+      } catch (Throwable e) {
+        future.completeExceptionally(e);
+      }
     }
 
-    if (message.getNotification() != null) {
-      Notification notification = message.getNotification();
-      Map<Object, Object> nMap = new HashMap<>();
+    private void attemptOnce() {
+      int attempt = retry.next();
+      ATTEMPT_LOG.debug("Attempt #{} to send message {} to regIds {}", attempt, message,
+          Abbreviated.list(unsentRegIds));
+      MulticastResult multicastResult = null;
+      try {
+        multicastResult = sendNoRetry(message, unsentRegIds, retry);
+      } catch (IOException e) {
+        FAILURE_LOG.debug("IOException on attempt {}", attempt, e);
+      } catch (RuntimeException e) {
+        future.completeExceptionally(e);
+        return;
+      }
 
-      if (notification.getBadge() != null) {
-        setJsonField(nMap, JSON_NOTIFICATION_BADGE, notification.getBadge().toString());
+      boolean tryAgain;
+      if (multicastResult != null) {
+        multicastIds.add(multicastResult.getMulticastId());
+        unsentRegIds = updateStatus(unsentRegIds, results, multicastResult);
+        if (!unsentRegIds.isEmpty()) {
+          overloaded();
+        }
+        tryAgain = !unsentRegIds.isEmpty() && retry.canRetry();
+      } else {
+        tryAgain = retry.canRetry();
       }
 
-      setJsonField(nMap, JSON_NOTIFICATION_BODY, notification.getBody());
-      setJsonField(nMap, JSON_NOTIFICATION_BODY_LOC_ARGS, notification.getBodyLocArgs());
-      setJsonField(nMap, JSON_NOTIFICATION_BODY_LOC_KEY, notification.getBodyLocKey());
-      setJsonField(nMap, JSON_NOTIFICATION_CLICK_ACTION, notification.getClickAction());
-      setJsonField(nMap, JSON_NOTIFICATION_COLOR, notification.getColor());
-      setJsonField(nMap, JSON_NOTIFICATION_ICON, notification.getIcon());
-      setJsonField(nMap, JSON_NOTIFICATION_SOUND, notification.getSound());
-      setJsonField(nMap, JSON_NOTIFICATION_TAG, notification.getTag());
-      setJsonField(nMap, JSON_NOTIFICATION_TITLE, notification.getTitle());
-      setJsonField(nMap, JSON_NOTIFICATION_TITLE_LOC_ARGS, notification.getTitleLocArgs());
-      setJsonField(nMap, JSON_NOTIFICATION_TITLE_LOC_KEY, notification.getTitleLocKey());
-      mapRequest.put(JSON_NOTIFICATION, nMap);
+      if (tryAgain && retry.schedule(this::attempt, future)) {
+        return;
+      }
+      if (retry.isExpired()) {
+        GcmResult expired = new GcmResult.Builder().errorCode(ERROR_DEADLINE_EXCEEDED).build();
+        unsentRegIds.forEach(regId -> results.put(regId, expired));
+        EXPIRED_SENDS.add(unsentRegIds.size());
+        future.complete(summarize(regIds, rewrites, results, multicastIds));
+      } else if (multicastIds.isEmpty()) {
+        future.completeExceptionally(
+            new IOException("Could not post JSON requests to GCM after " + attempt + " attempts"));
+      } else {
+        future.complete(summarize(regIds, rewrites, results, multicastIds));
+      }
     }
   }
 
-  private IOException newIoException(String responseBody, Exception e) {
-    // log exception, as IOException constructor that takes a message and cause
-    // is only available on Java 6
-    String message = "Error parsing JSON response (" + responseBody + ")";
-    L.warn(message, e);
-    return new IOException(message + ":" + e);
-  }
-
   /**
-   * Sets a JSON field, but only if the value is not {@literal null}.
+   * Counts the results of a multicast response, and those that ask for a retry, while handing them on to another
+   * handler.
    */
-  private void setJsonField(Map<Object, Object> json, String field, Object value) {
-    if (value != null) {
-      json.put(field, value);
-    }
-  }
+  private static final class OutcomeCounter implements MulticastResponseHandler {
+
+    private final MulticastResponseHandler handler;
+    private int results;
+    private int failed;
+    private int retryable;
 
-  private Number getNumber(Map<?, ?> json, String field) {
-    Object value = json.get(field);
+    OutcomeCounter(MulticastResponseHandler handler) {
+      this.handler = handler;
+    }
 
-    if (value == null) {
-      throw new CustomParserException("Missing field: " + field);
+    @Override
+    public void result(int index, String messageId, String canonicalRegistrationId, String error) {
+      results++;
+      if (error != null) {
+        failed++;
+      }
+      if (isRetryable(error)) {
+        retryable++;
+      }
+      GcmMetrics.get().recordResult(error);
+      handler.result(index, messageId, canonicalRegistrationId, error);
     }
 
-    if (!(value instanceof Number)) {
-      throw new CustomParserException("Field " + field + " does not contain a number: " + value);
+    @Override
+    public void summary(int success, int failure, int canonicalIds, long multicastId, int results) {
+      handler.summary(success, failure, canonicalIds, multicastId, results);
     }
 
-    return (Number) value;
+    /**
+     * Tells whether fewer than half of the results ask for a retry.
+     */
+    boolean isHealthy() {
+      return retryable * 2 < results || results == 0;
+    }
   }
 
   /**
-   * Make an HTTP post to a given URL.
-   *
-   * @return HTTP response.
+   * Builds a {@link MulticastResult} holding every decoded result.
    */
-  protected HttpURLConnection post(String url, String body) throws IOException {
-    return post(url, "application/x-www-form-urlencoded;charset=UTF-8", body);
+  private static final class ResultCollector implements MulticastResponseHandler {
+
+    private final List<GcmResult> results = new ArrayList<>();
+    private MulticastResult.Builder builder;
+
+    @Override
+    public void result(int index, String messageId, String canonicalRegistrationId, String error) {
+      results.add(new GcmResult.Builder()
+          .messageId(messageId)
+          .canonicalRegistrationId(canonicalRegistrationId)
+          .errorCode(error)
+          .build());
+    }
+
+    @Override
+    public void summary(int success, int failure, int canonicalIds, long multicastId, int results) {
+      builder = new MulticastResult.Builder(success, failure, canonicalIds, multicastId);
+    }
+
+    MulticastResult build() {
+      results.forEach(builder::addResult);
+      return builder.build();
+    }
   }
 
   /**
-   * Makes an HTTP POST request to a given endpoint.
-   *
-   * <p>
-   * <strong>Note: </strong> the returned connected should not be disconnected, otherwise it would kill persistent
-   * connections made using Keep-Alive.
-   *
-   * @param url endpoint to post the request.
-   * @param contentType type of request.
-   * @param body body of the request.
-   *
-   * @return the underlying connection.
-   *
-   * @throws IOException propagated from underlying methods.
+   * State of a multicast sent with {@link #sendAsync(Message, Collection, int, SendListener)}, carried from one
+   * scheduled attempt to the next. Only the registration ids still to be retried, and their last error, are kept.
    */
-  protected HttpURLConnection post(String url, String contentType, String body) throws IOException {
-    if (url == null || contentType == null || body == null) {
-      throw new IllegalArgumentException("arguments cannot be null");
+  private final class ListenerMulticast implements MulticastResponseHandler {
+
+    private final CompletableFuture<MulticastResult> future = new CompletableFuture<>();
+    private final List<Long> multicastIds = new ArrayList<>();
+    private final Message message;
+    private final Retry retry;
+    private final SendListener listener;
+    private final Map<String, List<String>> aliases = new HashMap<>();
+    private List<String> unsentRegIds;
+    private List<String> unsentErrors;
+    private List<String> retryRegIds;
+    private List<String> retryErrors;
+    private int decoded;
+    private int success;
+    private int failure;
+    private int canonicalIds;
+
+    ListenerMulticast(Message message, List<String> regIds, int retries, long deadline, SendListener listener) {
+      this.message = message;
+      retry = new Retry(retries, deadline);
+      this.listener = listener;
+      CanonicalIdCache cache = Sender.canonicalIds;
+      Map<String, String> rewrites = cache == null ? Collections.emptyMap() : cache.resolve(regIds);
+      Set<String> distinct = new LinkedHashSet<>();
+      for (String regId : regIds) {
+        String canonicalId = rewrites.getOrDefault(regId, regId);
+        distinct.add(canonicalId);
+        if (!rewrites.isEmpty()) {
+          List<String> originals = aliases.computeIfAbsent(canonicalId, id -> new ArrayList<>(2));
+          if (!originals.contains(regId)) {
+            originals.add(regId);
+          }
+        }
+      }
+      unsentRegIds = new ArrayList<>(distinct);
+      unsentErrors = new ArrayList<>(Collections.nCopies(unsentRegIds.size(), ERROR_NOT_SENT));
     }
-    if (!url.startsWith("https://")) {
-      L.warn("URL does not use https: {}", url);
+
+    /**
+     * Gets the registration ids given by the caller that were sent to as regId.
+     */
+    private List<String> originals(String regId) {
+      return aliases.getOrDefault(regId, Collections.singletonList(regId));
     }
 
-    L.info("Sending POST to {}", url);
-    L.debug("POST body: {}", body);
+    /**
+     * Reports the dead registration ids as permanent failures without sending to them.
+     *
+     * @return {@literal true} if there is any registration id left to send to, otherwise the future is completed.
+     */
+    boolean skipDeadTokens() {
+      DeadTokenRegistry registry = deadTokens;
+      if (registry != null) {
+        Map<String, String> dead = registry.find(unsentRegIds, Sender.this::findDeadTokens);
+        if (!dead.isEmpty()) {
+          ATTEMPT_LOG.debug("Not sending message {} to {} dead regIds", message, dead.size());
+          unsentRegIds = new ArrayList<>(unsentRegIds);
+          unsentRegIds.removeIf(dead::containsKey);
+          unsentErrors = new ArrayList<>(Collections.nCopies(unsentRegIds.size(), ERROR_NOT_SENT));
+          dead.forEach((regId, error) -> originals(regId).forEach(original -> {
+            failure++;
+            listener.onPermanentFailure(original, error);
+          }));
+        }
+      }
+      if (unsentRegIds.isEmpty()) {
+        future.complete(new MulticastResult.Builder(success, failure, canonicalIds, NO_MULTICAST_ID).build());
+        return false;
+      }
+      return true;
+    }
 
-    byte[] bytes = body.getBytes(UTF8);
-    HttpURLConnection conn = getConnection(url);
-    conn.setDoOutput(true);
-    conn.setUseCaches(false);
-    conn.setFixedLengthStreamingMode(bytes.length);
-    conn.setRequestMethod("POST");
-    conn.setRequestProperty("Content-Type", contentType);
-    conn.setRequestProperty("Authorization", "key=" + key);
-    OutputStream out = conn.getOutputStream();
+    void attempt() {
+      int attempt = retry.next();
+      ATTEMPT_LOG.debug("Attempt #{} to send message {} to {} regIds", attempt, message, unsentRegIds.size());
+      retryRegIds = new ArrayList<>();
+      retryErrors = new ArrayList<>();
+      decoded = 0;
+      boolean sent = false;
+      try {
+        sent = sendNoRetry(message, unsentRegIds, this, retry);
+      } catch (IOException e) {
+        FAILURE_LOG.debug("IOException on attempt {}", attempt, e);
+      } catch (RuntimeException e) {
+        future.completeExceptionally(e);
+        return;
+      }
 
-    try {
-      out.write(bytes);
-    } finally {
-      close(out);
+      if (sent) {
+        if (!retryRegIds.isEmpty()) {
+          overloaded();
+        }
+        unsentRegIds = retryRegIds;
+        unsentErrors = retryErrors;
+      } else if (decoded > 0) {
+        // the response broke off after some results were reported, only retry the rest
+        retryRegIds.addAll(unsentRegIds.subList(decoded, unsentRegIds.size()));
+        retryErrors.addAll(unsentErrors.subList(decoded, unsentErrors.size()));
+        unsentRegIds = retryRegIds;
+        unsentErrors = retryErrors;
+      }
+      if (!unsentRegIds.isEmpty() && retry.canRetry() && retry.schedule(this::attempt, future)) {
+        return;
+      }
+      boolean expired = retry.isExpired();
+      if (multicastIds.isEmpty() && !expired) {
+        future.completeExceptionally(
+            new IOException("Could not post JSON requests to GCM after " + attempt + " attempts"));
+      } else {
+        if (expired) {
+          EXPIRED_SENDS.add(unsentRegIds.size());
+        }
+        for (int i = 0; i < unsentRegIds.size(); i++) {
+          for (String original : originals(unsentRegIds.get(i))) {
+            failure++;
+            try {
+              listener.onRetryableFailure(original, expired ? ERROR_DEADLINE_EXCEEDED : unsentErrors.get(i));
+            } catch (RuntimeException e) {
+              L.warn("SendListener failed on regId {}", original, e);
+            }
+          }
+        }
+        future.complete(newResult(success, failure, canonicalIds, multicastIds).build());
+      }
     }
 
-    return conn;
+    @Override
+    public void result(int index, String messageId, String canonicalRegistrationId, String error) {
+      if (index >= unsentRegIds.size()) {
+        // should never happen, unless GCM returns more results than registration ids
+        throw new CustomParserException("Got more results than the " + unsentRegIds.size() + " regIds sent");
+      }
+      String regId = unsentRegIds.get(index);
+      decoded = index + 1;
+      if (messageId != null) {
+        recordCanonicalId(regId, canonicalRegistrationId);
+        for (String original : originals(regId)) {
+          success++;
+          String canonicalId = canonicalRegistrationId != null || original.equals(regId)
+              ? canonicalRegistrationId : regId;
+          if (canonicalId != null) {
+            canonicalIds++;
+            listener.onCanonicalId(original, canonicalId, messageId);
+          } else {
+            listener.onSuccess(original, messageId);
+          }
+        }
+      } else if (isRetryable(error)) {
+        // reported once it succeeds or runs out of retries
+        retryRegIds.add(regId);
+        retryErrors.add(error);
+      } else {
+        recordDeadToken(regId, error);
+        for (String original : originals(regId)) {
+          failure++;
+          listener.onPermanentFailure(original, error);
+        }
+      }
+    }
+
+    @Override
+    public void summary(int success, int failure, int canonicalIds, long multicastId, int results) {
+      if (results != unsentRegIds.size()) {
+        throw new CustomParserException("Got " + results + " results for " + unsentRegIds.size() + " regIds");
+      }
+      multicastIds.add(multicastId);
+    }
   }
 
   /**
-   * Gets an {@link HttpURLConnection} given an URL.
+   * State of a multicast whose registration ids are pulled from an iterator in chunks, each sent by chunkSender.
+   * Whenever a chunk completes the next one is read and dispatched, which keeps the number of chunks in flight, and so
+   * the number of registration ids held, constant.
    */
-  protected HttpURLConnection getConnection(String url) throws IOException {
-    return (HttpURLConnection) new URL(url).openConnection();
-  }
+  private final class ChunkedMulticast {
+
+    private final CompletableFuture<MulticastResult> future = new CompletableFuture<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final List<Long> multicastIds = new ArrayList<>();
+    private final Iterator<String> regIds;
+    private final Function<List<String>, CompletableFuture<MulticastResult>> chunkSender;
+    private final ChunkListener listener;
+    private int chunks;
+    private boolean exhausted;
+    private int success;
+    private int failure;
+    private int canonicalIds;
+    // whether any chunk completed, posted or not
+    private boolean recorded;
+    private Throwable lastFailure;
+
+    ChunkedMulticast(Iterator<String> regIds, Function<List<String>, CompletableFuture<MulticastResult>> chunkSender,
+        ChunkListener listener) {
+      this.regIds = regIds;
+      this.chunkSender = chunkSender;
+      this.listener = listener;
+    }
 
-  void sleep(long millis) {
-    try {
-      Thread.sleep(millis);
-    } catch (InterruptedException e) {
-      Thread.currentThread().interrupt();
+    void start(int parallelism) {
+      // hold a slot while dispatching so that early completions cannot finish the multicast
+      inFlight.incrementAndGet();
+      for (int i = 0; i < parallelism; i++) {
+        dispatchNext();
+      }
+      release();
     }
-  }
 
-  @Schedule(hour = "*", minute = "*/5", persistent = false)
-  @TransactionAttribute(TransactionAttributeType.REQUIRED)
-  public void processQueue() {
-    if (persistent) {
-      int count = 0;
-      while (!MESSAGE_QUEUE.isEmpty()) {
-        em.persist(MESSAGE_QUEUE.poll());
-        if (++count % 50 == 0) {
-          em.flush();
+    /**
+     * Sends the next chunks. A chunk whose future is already complete, such as one with only dead registration ids, is
+     * handled in this loop rather than by a callback that would dispatch the next chunk from deeper in the stack.
+     */
+    private void dispatchNext() {
+      while (true) {
+        List<String> chunk = new ArrayList<>();
+        int index;
+        synchronized (regIds) {
+          if (exhausted) {
+            return;
+          }
+          try {
+            while (chunk.size() < MULTICAST_SIZE_LIMIT && regIds.hasNext()) {
+              chunk.add(regIds.next());
+            }
+            exhausted = !regIds.hasNext();
+          } catch (RuntimeException e) {
+            // stop reading but still send, and wait for, what has already been read
+            L.warn("Could not read registration ids, the rest of the audience will not be sent", e);
+            exhausted = true;
+          }
+          if (chunk.isEmpty()) {
+            return;
+          }
+          index = chunks++;
+        }
+
+        inFlight.incrementAndGet();
+        CompletableFuture<MulticastResult> sent;
+        try {
+          sent = chunkSender.apply(chunk);
+        } catch (RuntimeException e) {
+          // such as a rejected execution, thrown where a completion callback would swallow it
+          onChunkDone(index, chunk, null, e);
+          release();
+          continue;
         }
+        if (!sent.isDone()) {
+          sent.whenComplete((result, e) -> {
+            onChunkDone(index, chunk, result, e);
+            dispatchNext();
+            release();
+          });
+          return;
+        }
+        sent.whenComplete((result, e) -> onChunkDone(index, chunk, result, e));
+        release();
+      }
+    }
+
+    private void onChunkDone(int index, List<String> chunk, MulticastResult result, Throwable e) {
+      try {
+        if (e == null) {
+          record(result);
+          listener.onChunkSent(index, chunk, result);
+        } else {
+          L.warn("Could not send chunk {}", index, e);
+          synchronized (this) {
+            failure += chunk.size();
+            lastFailure = e;
+          }
+          listener.onChunkFailed(index, chunk, e);
+        }
+      } catch (RuntimeException listenerException) {
+        L.warn("ChunkListener failed on chunk {}", index, listenerException);
+      }
+    }
+
+    private synchronized void record(MulticastResult result) {
+      success += result.getSuccess();
+      failure += result.getFailure();
+      canonicalIds += result.getCanonicalIds();
+      addMulticastIds(multicastIds, result);
+      recorded = true;
+    }
+
+    private void release() {
+      if (inFlight.decrementAndGet() == 0) {
+        complete();
+      }
+    }
+
+    private synchronized void complete() {
+      if (!recorded && lastFailure != null) {
+        future.completeExceptionally(lastFailure);
+        return;
       }
+      future.complete(newResult(success, failure, canonicalIds, multicastIds).build());
     }
   }
 